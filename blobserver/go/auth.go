@@ -1,23 +1,90 @@
 package main
 
 import (
+	"crypto/hmac"
+	"crypto/rand"
+	"crypto/sha256"
 	"encoding/base64"
+	"encoding/hex"
 	"fmt"
 	"net/http"
 	"regexp"
+	"strconv"
 	"strings"
+	"time"
 )
 
 var basicAuthPattern = regexp.MustCompile(`^Basic ([a-zA-Z0-9+/=]+)`)
 
 var accessPassword string
 
+// How long a session token handed out by /camli/preupload stays good.
+const authTokenLifetime = time.Hour
+
+// Key session tokens and upload URLs are signed with. It only lives as
+// long as the process, so they need no storage and a restart revokes them
+// all.
+var authTokenKey = newAuthTokenKey()
+
+func newAuthTokenKey() []byte {
+	key := make([]byte, 32)
+	if _, err := rand.Read(key); err != nil {
+		panic(err)
+	}
+	return key
+}
+
+// newAuthToken returns a session token good for authTokenLifetime after
+// now.
+func newAuthToken(now time.Time) string {
+	return signExpiry("token", now.Add(authTokenLifetime))
+}
+
+func isValidAuthToken(token string, now time.Time) bool {
+	return isValidSignedExpiry("token", token, now)
+}
+
+// signExpiry returns expiry in Unix seconds, a dot, and an HMAC of that
+// and purpose, so what's signed for one purpose (an upload URL, which
+// gets logged) can't stand in for another (a session token).
+func signExpiry(purpose string, expiry time.Time) string {
+	secs := strconv.FormatInt(expiry.Unix(), 10)
+	return secs + "." + expiryMAC(purpose, secs)
+}
+
+func expiryMAC(purpose, secs string) string {
+	mac := hmac.New(sha256.New, authTokenKey)
+	_, _ = mac.Write([]byte(purpose + ":" + secs))
+	return hex.EncodeToString(mac.Sum(nil))
+}
+
+// isValidSignedExpiry reports whether signed came from signExpiry for
+// purpose, with an expiry still after now.
+func isValidSignedExpiry(purpose, signed string, now time.Time) bool {
+	dot := strings.Index(signed, ".")
+	if dot < 0 {
+		return false
+	}
+	secs, sum := signed[:dot], signed[dot+1:]
+	if !hmac.Equal([]byte(sum), []byte(expiryMAC(purpose, secs))) {
+		return false
+	}
+	expiry, err := strconv.ParseInt(secs, 10, 64)
+	return err == nil && now.Unix() < expiry
+}
+
+// isAuthorized accepts the password, with HTTP Basic Auth, or a session
+// token from a preupload response, as "Authorization: Bearer <token>".
 func isAuthorized(req *http.Request) bool {
 	auth := req.Header.Get("Authorization")
 	if auth == "" {
 		return false
 	}
 
+	if strings.HasPrefix(auth, "Bearer ") {
+		return isValidAuthToken(strings.TrimPrefix(auth, "Bearer "), time.Now())
+	}
+
 	matches := basicAuthPattern.FindAllStringSubmatch(auth, -1)
 	if len(matches) != 1 || len(matches[0]) != 2 {
 		return false
@@ -42,7 +109,7 @@ func isAuthorized(req *http.Request) bool {
 }
 
 // requireAuth wraps a function to another function that encforces
-// HTTP Basic Auth.
+// HTTP Basic Auth, or a session token.
 func requireAuth(handler func(conn http.ResponseWriter, req *http.Request)) func(conn http.ResponseWriter,
 	req *http.Request) {
 	return func(conn http.ResponseWriter, req *http.Request) {
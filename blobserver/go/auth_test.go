@@ -0,0 +1,83 @@
+package main
+
+import (
+	"encoding/base64"
+	"net/http"
+	"net/http/httptest"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+)
+
+func withPassword(password string) func() {
+	old := accessPassword
+	accessPassword = password
+	return func() {
+		accessPassword = old
+	}
+}
+
+func authRequest(auth string) *http.Request {
+	req := httptest.NewRequest("POST", "/camli/upload", nil)
+	if auth != "" {
+		req.Header.Set("Authorization", auth)
+	}
+	return req
+}
+
+func basicAuth(user, password string) string {
+	return "Basic " + base64.StdEncoding.EncodeToString([]byte(user+":"+password))
+}
+
+func TestIsAuthorized(t *testing.T) {
+	defer withPassword("secret")()
+
+	tests := map[string]struct {
+		auth string
+		ok   bool
+	}{
+		"password":          {basicAuth("user", "secret"), true},
+		"wrong password":    {basicAuth("user", "guess"), false},
+		"no header":         {"", false},
+		"session token":     {"Bearer " + newAuthToken(time.Now()), true},
+		"expired token":     {"Bearer " + newAuthToken(time.Now().Add(-2 * authTokenLifetime)), false},
+		"bogus token":       {"Bearer 99999999999.abc", false},
+		"token without mac": {"Bearer 99999999999", false},
+	}
+	for name, tc := range tests {
+		t.Run(name, func(t *testing.T) {
+			assert.Equal(t, tc.ok, isAuthorized(authRequest(tc.auth)))
+		})
+	}
+}
+
+func TestIsValidAuthToken_TamperedExpiry(t *testing.T) {
+	now := time.Now()
+	token := newAuthToken(now)
+	assert.True(t, isValidAuthToken(token, now))
+	assert.False(t, isValidAuthToken(token, now.Add(authTokenLifetime+time.Second)))
+	assert.False(t, isValidAuthToken("9"+token, now))
+}
+
+func TestRequireAuth_Unauthorized(t *testing.T) {
+	defer withPassword("secret")()
+
+	called := false
+	handler := requireAuth(func(conn http.ResponseWriter, req *http.Request) {
+		called = true
+	})
+	rec := httptest.NewRecorder()
+	handler(rec, authRequest(basicAuth("user", "guess")))
+	assert.False(t, called)
+	assert.Equal(t, http.StatusUnauthorized, rec.Code)
+	assert.NotEmpty(t, rec.Header().Get("WWW-Authenticate"))
+}
+
+func TestPreUpload_IssuesAuthToken(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	res := doPreUpload(t)
+	assert.True(t, isValidAuthToken(res.AuthToken, time.Now()))
+	assert.Equal(t, int(authTokenLifetime/time.Second), res.AuthTokenExpirationSeconds)
+}
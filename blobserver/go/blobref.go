@@ -2,12 +2,14 @@ package main
 
 import (
 	"crypto/sha1"
+	"crypto/sha256"
 	"fmt"
 	"hash"
 	"regexp"
+	"sort"
 )
 
-var getPutPattern = regexp.MustCompile(`^/camli/(sha1)-([a-f0-9]+)$`)
+var getPutPattern = regexp.MustCompile(`^/camli/([a-z0-9]+)-([a-f0-9]+)$`)
 var blobRefPattern = regexp.MustCompile(`^([a-z0-9]+)-([a-f0-9]+)$`)
 
 // BlobRef ...
@@ -17,8 +19,27 @@ type BlobRef struct {
 }
 
 var expectedDigestSize = map[string]int{
-	"md5":  32,
-	"sha1": 40,
+	"md5":    32,
+	"sha1":   40,
+	"sha256": 64,
+}
+
+// Hash functions blobs can be stored under, by blobref hash name. Clients
+// learn the names from preupload and pick whichever is fastest for them.
+var supportedHashes = map[string]func() hash.Hash{
+	"sha1":   sha1.New,
+	"sha256": sha256.New,
+}
+
+// SupportedHashNames returns the names of the supported hash functions,
+// sorted.
+func SupportedHashNames() []string {
+	names := make([]string, 0, len(supportedHashes))
+	for name := range supportedHashes {
+		names = append(names, name)
+	}
+	sort.Strings(names)
+	return names
 }
 
 func blobIfValid(hashName, digest string) *BlobRef {
@@ -54,16 +75,14 @@ func ParsePath(path string) *BlobRef {
 
 // IsSupported ...
 func (o *BlobRef) IsSupported() bool {
-	if o.HashName == "sha1" {
-		return true
-	}
-	return false
+	_, ok := supportedHashes[o.HashName]
+	return ok
 }
 
 // Hash ...
 func (o *BlobRef) Hash() hash.Hash {
-	if o.HashName == "sha1" {
-		return sha1.New()
+	if newHash, ok := supportedHashes[o.HashName]; ok {
+		return newHash()
 	}
 	return nil
 }
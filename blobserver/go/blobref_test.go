@@ -2,12 +2,14 @@ package main
 
 import (
 	"crypto/sha1"
+	"crypto/sha256"
 	"github.com/stretchr/testify/assert"
 	"strings"
 	"testing"
 )
 
 const ref = "sha1-9242dbadb7827d697fab034a1e73f366b451ce4d"
+const sha256Ref = "sha256-ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"
 
 func TestParseBlobRef(t *testing.T) {
 
@@ -40,6 +42,19 @@ func TestParseBlobRef(t *testing.T) {
 			},
 			fails: false,
 		},
+		"passes on valid sha256 ref": {
+			input: sha256Ref,
+			output: &BlobRef{
+				HashName: "sha256",
+				Digest:   sha256Ref[7:],
+			},
+			fails: false,
+		},
+		"fails on short sha256 digest": {
+			input:  "sha256-9242dbadb7827d697fab034a1e73f366b451ce4d",
+			output: nil,
+			fails:  true,
+		},
 	}
 
 	for _, test := range tests {
@@ -80,6 +95,14 @@ func TestParsePath(t *testing.T) {
 			},
 			fails: false,
 		},
+		"passes on valid sha256 path": {
+			input: "/camli/" + sha256Ref,
+			output: &BlobRef{
+				HashName: "sha256",
+				Digest:   sha256Ref[7:],
+			},
+			fails: false,
+		},
 	}
 
 	for _, test := range tests {
@@ -99,11 +122,25 @@ func TestBlobRef_IsSupported(t *testing.T) {
 	assert.True(t, blobRef.IsSupported())
 }
 
+func TestBlobRef_IsSupported_Sha256(t *testing.T) {
+	assert.True(t, ParseBlobRef(sha256Ref).IsSupported())
+	assert.False(t, ParseBlobRef("md5-9242dbadb7827d697fab034a1e73f366").IsSupported())
+}
+
 func TestBlobRef_Hash(t *testing.T) {
 	blobRef := ParseBlobRef(ref)
 	assert.Equal(t, sha1.New(), blobRef.Hash())
 }
 
+func TestBlobRef_Hash_Sha256(t *testing.T) {
+	blobRef := ParseBlobRef(sha256Ref)
+	assert.Equal(t, sha256.New(), blobRef.Hash())
+}
+
+func TestSupportedHashNames(t *testing.T) {
+	assert.Equal(t, []string{"sha1", "sha256"}, SupportedHashNames())
+}
+
 func TestBlobRef_DirectoryName(t *testing.T) {
 	blobRef := ParseBlobRef(ref)
 	refSplit := strings.Split(ref, "-")
@@ -0,0 +1,10 @@
+//go:build !linux && !darwin
+// +build !linux,!darwin
+
+package main
+
+// diskFreeSpace returns -1: there's no portable way to ask, so uploads
+// are only turned down for lack of space once a write fails.
+func diskFreeSpace(dir string) int64 {
+	return -1
+}
@@ -7,7 +7,11 @@ import (
 )
 
 func badRequestError(conn http.ResponseWriter, errorMessage string) {
-	conn.WriteHeader(http.StatusBadRequest)
+	errorWithStatus(conn, http.StatusBadRequest, errorMessage)
+}
+
+func errorWithStatus(conn http.ResponseWriter, code int, errorMessage string) {
+	conn.WriteHeader(code)
 	_, _ = fmt.Fprintf(conn, "%s\n", errorMessage)
 }
 
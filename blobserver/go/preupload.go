@@ -4,6 +4,7 @@ import (
 	"fmt"
 	"net/http"
 	"os"
+	"time"
 )
 
 func handlePreUpload(conn http.ResponseWriter, req *http.Request) {
@@ -69,15 +70,24 @@ func handlePreUpload(conn http.ResponseWriter, req *http.Request) {
 	tmp := make([]*map[string]interface{}, len(haveVector))
 	copy(tmp, haveVector)
 
+	now := time.Now()
 	ret := make(map[string]interface{})
-	ret["maxUploadSize"] = 2147483647 // 2GB.. *shrug* :p
+	ret["maxUploadSize"] = maxUploadSize
 	ret["alreadyHave"] = tmp
-	ret["uploadUrlExpirationSeconds"] = 86400
+	ret["uploadUrlExpirationSeconds"] = int(uploadURLLifetime / time.Second)
+	ret["supportedHashes"] = SupportedHashNames()
+	ret["supportedEncodings"] = supportedEncodings
+	// Lets the client send this instead of the password on the uploads
+	// that follow.
+	ret["authToken"] = newAuthToken(now)
+	ret["authTokenExpirationSeconds"] = int(authTokenLifetime / time.Second)
+	// Signed, so uploads to it can be turned down once it's expired.
+	path := "/camli/upload?expires=" + newUploadURLExpiry(now)
 	if len(req.Host) > 0 {
 		scheme := "http" // TODO: https
-		ret["uploadUrl"] = fmt.Sprintf("%s://%s/camli/upload", scheme, req.Host)
+		ret["uploadUrl"] = fmt.Sprintf("%s://%s%s", scheme, req.Host, path)
 	} else {
-		ret["uploadUrl"] = "/camli/upload"
+		ret["uploadUrl"] = path
 	}
 
 	returnJSON(conn, ret)
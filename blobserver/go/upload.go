@@ -1,7 +1,7 @@
 package main
 
 import (
-	"crypto/sha1"
+	"compress/zlib"
 	"errors"
 	"fmt"
 	"github.com/manunio/camlistored/blobserver/go/util"
@@ -9,12 +9,69 @@ import (
 	"io/ioutil"
 	"net/http"
 	"os"
+	"time"
 )
 
+// The most one upload request may carry, as preupload tells clients.
+const maxUploadSize = 2147483647 // 2GB.. *shrug* :p
+
+// Content codings a multipart part may be sent in, as preupload tells
+// clients. Blobrefs are always of the decoded bytes.
+var supportedEncodings = []string{"deflate"}
+
+// How long an upload URL handed out by /camli/preupload stays good.
+const uploadURLLifetime = 24 * time.Hour
+
+// Free space in the storage root, in bytes, or -1 if unknown. A variable
+// so tests can fill the disk.
+var freeSpace = diskFreeSpace
+
+// newUploadURLExpiry returns the "expires" parameter of an upload URL
+// handed out now.
+func newUploadURLExpiry(now time.Time) string {
+	return signExpiry("upload", now.Add(uploadURLLifetime))
+}
+
+// checkUpload returns why req should be turned down, as an HTTP status
+// and message, or 0 if it shouldn't. It looks at nothing but the request
+// line and headers, so the answer can go out before the body is read.
+func checkUpload(req *http.Request, now time.Time) (int, string) {
+	// URLs without one, from clients that never preuploaded, don't expire.
+	expires := req.URL.Query().Get("expires")
+	if expires != "" && !isValidSignedExpiry("upload", expires, now) {
+		return http.StatusGone, "Upload URL expired; preupload for a new one."
+	}
+	if req.ContentLength > maxUploadSize {
+		return http.StatusRequestEntityTooLarge,
+			fmt.Sprintf("Upload larger than maxUploadSize (%d bytes).", maxUploadSize)
+	}
+	need := req.ContentLength
+	if need < 1 {
+		need = 1
+	}
+	if free := freeSpace(*storageRoot); free >= 0 && free < need {
+		return http.StatusInsufficientStorage, "Not enough free space."
+	}
+	return 0, ""
+}
+
 func handleMultiPartUpload(conn http.ResponseWriter, req *http.Request) {
 	if !(req.Method == "POST" && req.URL.Path == "/camli/upload") {
 		badRequestError(conn, "In-configured handler.")
+		return
+	}
+
+	// Anything that turns the upload down does so before reading the
+	// body. A client that sent "Expect: 100-continue" is still waiting to
+	// send it, and net/http only tells it to go ahead on the first read,
+	// so a refusal costs it a round trip instead of the whole transfer.
+	if code, msg := checkUpload(req, time.Now()); code != 0 {
+		fmt.Printf("Refusing upload: %s\n", msg)
+		errorWithStatus(conn, code, msg)
+		return
 	}
+	// Chunked bodies don't say how big they are up front.
+	req.Body = http.MaxBytesReader(conn, req.Body, maxUploadSize)
 
 	multipart, err := req.MultipartReader()
 	if multipart == nil {
@@ -28,6 +85,10 @@ func handleMultiPartUpload(conn http.ResponseWriter, req *http.Request) {
 		return
 	}
 
+	// Blobs stored so far. A client that loses its connection midway
+	// can ask /camli/preupload which of them made it, and resume from there.
+	received := make([]map[string]interface{}, 0)
+
 	for {
 		part, err := multipart.NextPart()
 		if err != nil {
@@ -45,17 +106,81 @@ func handleMultiPartUpload(conn http.ResponseWriter, req *http.Request) {
 			fmt.Printf("Ignoring form key [%s]\n", formName)
 			continue
 		}
-		ok, err := receiveBlob(ref, part)
-		if !ok {
+		if !ref.IsSupported() {
+			fmt.Printf("Ignoring unsupported blob %v\n", ref)
+			continue
+		}
+		source, err := decodePart(part, part.Header.Get("Content-Encoding"))
+		if err != nil {
+			fmt.Printf("Ignoring blob %v: %v\n", ref, err)
+			continue
+		}
+		blobGot, err := receiveBlob(ref, source)
+		_ = source.Close()
+		if err != nil {
 			fmt.Printf("Error receiving blob %v: %v\n", ref, err)
-		} else {
-			fmt.Printf("Received blob %v\n", ref)
+			continue
 		}
+		fmt.Printf("Received blob %v\n", ref)
+		info := make(map[string]interface{})
+		info["blobRef"] = blobGot.blobRef.String()
+		info["size"] = blobGot.size
+		received = append(received, info)
 	}
 	fmt.Println("Done reading multipart body.")
+
+	ret := make(map[string]interface{})
+	ret["received"] = received
+	returnJSON(conn, ret)
+}
+
+// decodePart returns a reader of the bytes a part encoded with the given
+// Content-Encoding stands for, or an error if that isn't one of
+// supportedEncodings.
+func decodePart(part io.Reader, encoding string) (io.ReadCloser, error) {
+	switch encoding {
+	case "", "identity":
+		return ioutil.NopCloser(part), nil
+	case "deflate":
+		zr, err := zlib.NewReader(part)
+		if err != nil {
+			return nil, err
+		}
+		// A few KB can inflate to gigabytes; stop at what an unencoded
+		// upload could have carried.
+		return &cappedReader{zr, maxUploadSize}, nil
+	}
+	return nil, fmt.Errorf("unsupported Content-Encoding %q", encoding)
+}
+
+// cappedReader fails once more than left bytes have been read from r.
+type cappedReader struct {
+	r    io.ReadCloser
+	left int64
+}
+
+func (c *cappedReader) Read(p []byte) (int, error) {
+	if int64(len(p)) > c.left+1 {
+		p = p[:c.left+1]
+	}
+	n, err := c.r.Read(p)
+	c.left -= int64(n)
+	if c.left < 0 {
+		return n, fmt.Errorf("decoded blob larger than maxUploadSize (%d bytes)", maxUploadSize)
+	}
+	return n, err
 }
 
-func receiveBlob(blobRef *BlobRef, source io.Reader) (ok bool, err error) {
+func (c *cappedReader) Close() error {
+	return c.r.Close()
+}
+
+type receivedBlob struct {
+	blobRef *BlobRef
+	size    int64
+}
+
+func receiveBlob(blobRef *BlobRef, source io.Reader) (blobGot *receivedBlob, err error) {
 	hashedDirectory := blobRef.DirectoryName()
 	if err = os.MkdirAll(hashedDirectory, 0700); err != nil {
 		return
@@ -76,15 +201,18 @@ func receiveBlob(blobRef *BlobRef, source io.Reader) (ok bool, err error) {
 		}
 	}()
 
-	sha1Hash := sha1.New()
+	hash := blobRef.Hash()
 	var written int64
-	written, err = io.Copy(util.NewTee(sha1Hash, tempFile), source)
+	written, err = io.Copy(util.NewTee(hash, tempFile), source)
 	if err != nil {
 		return
 	}
 	if err = tempFile.Close(); err != nil {
 		return
 	}
+	if digest := fmt.Sprintf("%x", hash.Sum(nil)); digest != blobRef.Digest {
+		return nil, fmt.Errorf("digest mismatch: got %s", digest)
+	}
 
 	fileName := blobRef.FileName()
 	if err = os.Rename(tempFile.Name(), fileName); err != nil {
@@ -96,10 +224,10 @@ func receiveBlob(blobRef *BlobRef, source io.Reader) (ok bool, err error) {
 		return
 	}
 	if !stat.Mode().IsRegular() || stat.Size() != written {
-		return false, errors.New("written size didn't match")
+		return nil, errors.New("written size didn't match")
 	}
 	success = true
-	return true, nil
+	return &receivedBlob{blobRef, written}, nil
 }
 
 func handlePut(conn http.ResponseWriter, req *http.Request) {
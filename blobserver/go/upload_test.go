@@ -0,0 +1,317 @@
+package main
+
+import (
+	"bytes"
+	"compress/zlib"
+	"crypto/sha1"
+	"encoding/json"
+	"fmt"
+	"io"
+	"io/ioutil"
+	"mime/multipart"
+	"net/http"
+	"net/http/httptest"
+	"net/textproto"
+	"net/url"
+	"os"
+	"strings"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/assert"
+)
+
+type testBlob struct {
+	ref  string
+	data []byte
+}
+
+func newTestBlob(data string) testBlob {
+	return testBlob{fmt.Sprintf("sha1-%x", sha1.Sum([]byte(data))), []byte(data)}
+}
+
+// withTempStorageRoot points storageRoot at a fresh directory for the
+// duration of a test.
+func withTempStorageRoot(t *testing.T) func() {
+	dir, err := ioutil.TempDir("", "camlistored-test")
+	assert.NoError(t, err)
+	oldRoot := *storageRoot
+	*storageRoot = dir
+	return func() {
+		*storageRoot = oldRoot
+		_ = os.RemoveAll(dir)
+	}
+}
+
+func multipartBody(t *testing.T, blobs ...testBlob) (*bytes.Buffer, string) {
+	body := new(bytes.Buffer)
+	mw := multipart.NewWriter(body)
+	for _, blob := range blobs {
+		w, err := mw.CreateFormField(blob.ref)
+		assert.NoError(t, err)
+		_, err = w.Write(blob.data)
+		assert.NoError(t, err)
+	}
+	assert.NoError(t, mw.Close())
+	return body, mw.FormDataContentType()
+}
+
+type uploadResponse struct {
+	Received []struct {
+		BlobRef string `json:"blobRef"`
+		Size    int64  `json:"size"`
+	} `json:"received"`
+}
+
+func doUpload(t *testing.T, body *bytes.Buffer, contentType string) uploadResponse {
+	req := httptest.NewRequest("POST", "/camli/upload", body)
+	req.Header.Set("Content-Type", contentType)
+	rec := httptest.NewRecorder()
+	handleMultiPartUpload(rec, req)
+	assert.Equal(t, http.StatusOK, rec.Code)
+
+	var res uploadResponse
+	assert.NoError(t, json.Unmarshal(rec.Body.Bytes(), &res))
+	return res
+}
+
+type preUploadResponse struct {
+	AlreadyHave []struct {
+		BlobRef string `json:"blobRef"`
+		Size    int64  `json:"size"`
+	} `json:"alreadyHave"`
+	AuthToken                  string   `json:"authToken"`
+	AuthTokenExpirationSeconds int      `json:"authTokenExpirationSeconds"`
+	UploadURL                  string   `json:"uploadUrl"`
+	SupportedEncodings         []string `json:"supportedEncodings"`
+}
+
+func doPreUpload(t *testing.T, refs ...string) preUploadResponse {
+	form := url.Values{}
+	form.Set("camliversion", "1")
+	for i, ref := range refs {
+		form.Set(fmt.Sprintf("blob%d", i+1), ref)
+	}
+	req := httptest.NewRequest("POST", "/camli/preupload", strings.NewReader(form.Encode()))
+	req.Header.Set("Content-Type", "application/x-www-form-urlencoded")
+	rec := httptest.NewRecorder()
+	handlePreUpload(rec, req)
+	assert.Equal(t, http.StatusOK, rec.Code)
+
+	var res preUploadResponse
+	assert.NoError(t, json.Unmarshal(rec.Body.Bytes(), &res))
+	return res
+}
+
+func TestMultiPartUpload_ReportsReceivedBlobs(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	one := newTestBlob("chunk one\n")
+	two := newTestBlob("chunk two\n")
+	body, contentType := multipartBody(t, one, two)
+	res := doUpload(t, body, contentType)
+
+	assert.Len(t, res.Received, 2)
+	assert.Equal(t, one.ref, res.Received[0].BlobRef)
+	assert.Equal(t, int64(len(one.data)), res.Received[0].Size)
+	assert.Equal(t, two.ref, res.Received[1].BlobRef)
+}
+
+func TestMultiPartUpload_RejectsDigestMismatch(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	bogus := testBlob{newTestBlob("something else").ref, []byte("not what the ref says")}
+	body, contentType := multipartBody(t, bogus)
+	res := doUpload(t, body, contentType)
+
+	assert.Len(t, res.Received, 0)
+	_, err := os.Stat(ParseBlobRef(bogus.ref).FileName())
+	assert.True(t, os.IsNotExist(err))
+}
+
+// A body cut off partway through (a dropped connection) keeps the blobs
+// that arrived whole, and preupload reports them so the client resumes
+// after the last one.
+func TestMultiPartUpload_TruncatedBodyKeepsCompleteBlobs(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	one := newTestBlob("chunk one\n")
+	two := newTestBlob(strings.Repeat("chunk two\n", 100))
+	body, contentType := multipartBody(t, one, two)
+	truncated := bytes.NewBuffer(body.Bytes()[:body.Len()-500])
+	res := doUpload(t, truncated, contentType)
+
+	assert.Len(t, res.Received, 1)
+	assert.Equal(t, one.ref, res.Received[0].BlobRef)
+
+	pre := doPreUpload(t, one.ref, two.ref)
+	assert.Len(t, pre.AlreadyHave, 1)
+	assert.Equal(t, one.ref, pre.AlreadyHave[0].BlobRef)
+}
+
+// readRecorder is a request body that notes whether anything read it.
+type readRecorder struct {
+	read bool
+}
+
+func (r *readRecorder) Read(p []byte) (int, error) {
+	r.read = true
+	return 0, io.EOF
+}
+
+func TestMultiPartUpload_RefusedBeforeBodyRead(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	expired := newUploadURLExpiry(time.Now().Add(-2 * uploadURLLifetime))
+	tests := map[string]struct {
+		target        string
+		contentLength int64
+		free          int64
+		code          int
+	}{
+		"expired url": {"/camli/upload?expires=" + expired, 100, -1, http.StatusGone},
+		"bogus url":   {"/camli/upload?expires=99999999999.abc", 100, -1, http.StatusGone},
+		"too large":   {"/camli/upload", maxUploadSize + 1, -1, http.StatusRequestEntityTooLarge},
+		"disk full":   {"/camli/upload", 100, 99, http.StatusInsufficientStorage},
+	}
+	for name, tc := range tests {
+		t.Run(name, func(t *testing.T) {
+			oldFreeSpace := freeSpace
+			freeSpace = func(string) int64 { return tc.free }
+			defer func() { freeSpace = oldFreeSpace }()
+
+			body := &readRecorder{}
+			req := httptest.NewRequest("POST", tc.target, body)
+			req.ContentLength = tc.contentLength
+			req.Header.Set("Content-Type", "multipart/form-data; boundary=x")
+			rec := httptest.NewRecorder()
+			handleMultiPartUpload(rec, req)
+			assert.Equal(t, tc.code, rec.Code)
+			assert.False(t, body.read)
+		})
+	}
+}
+
+func TestMultiPartUpload_PreUploadURLAccepted(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	pre := doPreUpload(t)
+	assert.True(t, strings.HasPrefix(pre.UploadURL, "http://example.com/camli/upload?expires="))
+	target := strings.TrimPrefix(pre.UploadURL, "http://example.com")
+
+	one := newTestBlob("chunk one\n")
+	body, contentType := multipartBody(t, one)
+	req := httptest.NewRequest("POST", target, body)
+	req.Header.Set("Content-Type", contentType)
+	rec := httptest.NewRecorder()
+	handleMultiPartUpload(rec, req)
+	assert.Equal(t, http.StatusOK, rec.Code)
+}
+
+// Over a real connection: a client that asks before sending the body
+// hears it's unauthorized without sending it.
+func TestUpload_ExpectContinue_RefusedWithoutBody(t *testing.T) {
+	defer withTempStorageRoot(t)()
+	defer withPassword("secret")()
+
+	server := httptest.NewServer(http.HandlerFunc(handleCamli))
+	defer server.Close()
+
+	one := newTestBlob("chunk one\n")
+	body, contentType := multipartBody(t, one)
+	recorded := &readRecorder{}
+	req, err := http.NewRequest("POST", server.URL+"/camli/upload",
+		io.MultiReader(recorded, body))
+	assert.NoError(t, err)
+	req.ContentLength = int64(body.Len())
+	req.Header.Set("Content-Type", contentType)
+	req.Header.Set("Authorization", basicAuth("user", "guess"))
+	req.Header.Set("Expect", "100-continue")
+
+	client := &http.Client{Transport: &http.Transport{ExpectContinueTimeout: 10 * time.Second}}
+	res, err := client.Do(req)
+	assert.NoError(t, err)
+	_ = res.Body.Close()
+	assert.Equal(t, http.StatusUnauthorized, res.StatusCode)
+	assert.False(t, recorded.read)
+}
+
+// encodedPart adds blob to mw as a part with the given Content-Encoding,
+// and returns the writer its encoded bytes go to.
+func encodedPart(t *testing.T, mw *multipart.Writer, blob testBlob, encoding string) io.Writer {
+	h := make(textproto.MIMEHeader)
+	h.Set("Content-Disposition", fmt.Sprintf(`form-data; name="%s"`, blob.ref))
+	h.Set("Content-Encoding", encoding)
+	w, err := mw.CreatePart(h)
+	assert.NoError(t, err)
+	return w
+}
+
+func TestMultiPartUpload_DeflatedPartStoredDecoded(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	plain := newTestBlob("chunk one\n")
+	deflated := newTestBlob(strings.Repeat("a line of a log\n", 1000))
+	body := new(bytes.Buffer)
+	mw := multipart.NewWriter(body)
+	w, err := mw.CreateFormField(plain.ref)
+	assert.NoError(t, err)
+	_, _ = w.Write(plain.data)
+	zw := zlib.NewWriter(encodedPart(t, mw, deflated, "deflate"))
+	_, _ = zw.Write(deflated.data)
+	assert.NoError(t, zw.Close())
+	assert.NoError(t, mw.Close())
+	assert.True(t, body.Len() < len(deflated.data)/10)
+
+	res := doUpload(t, body, mw.FormDataContentType())
+	assert.Len(t, res.Received, 2)
+	assert.Equal(t, deflated.ref, res.Received[1].BlobRef)
+	assert.Equal(t, int64(len(deflated.data)), res.Received[1].Size)
+	stored, err := ioutil.ReadFile(ParseBlobRef(deflated.ref).FileName())
+	assert.NoError(t, err)
+	assert.Equal(t, deflated.data, stored)
+}
+
+// Parts in a coding the server can't decode, or that don't decode, are
+// skipped like unsupported blobs; the rest of the upload still counts.
+func TestMultiPartUpload_UndecodablePartsIgnored(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	unknown := newTestBlob("chunk one\n")
+	corrupt := newTestBlob("chunk two\n")
+	plain := newTestBlob("chunk three\n")
+	body := new(bytes.Buffer)
+	mw := multipart.NewWriter(body)
+	_, _ = encodedPart(t, mw, unknown, "br").Write(unknown.data)
+	_, _ = encodedPart(t, mw, corrupt, "deflate").Write(corrupt.data)
+	w, err := mw.CreateFormField(plain.ref)
+	assert.NoError(t, err)
+	_, _ = w.Write(plain.data)
+	assert.NoError(t, mw.Close())
+
+	res := doUpload(t, body, mw.FormDataContentType())
+	assert.Len(t, res.Received, 1)
+	assert.Equal(t, plain.ref, res.Received[0].BlobRef)
+	for _, ref := range []string{unknown.ref, corrupt.ref} {
+		_, err := os.Stat(ParseBlobRef(ref).FileName())
+		assert.True(t, os.IsNotExist(err))
+	}
+}
+
+func TestCappedReader_FailsPastLimit(t *testing.T) {
+	r := &cappedReader{ioutil.NopCloser(strings.NewReader("0123456789")), 10}
+	got, err := ioutil.ReadAll(r)
+	assert.NoError(t, err)
+	assert.Equal(t, "0123456789", string(got))
+
+	r = &cappedReader{ioutil.NopCloser(strings.NewReader("0123456789")), 9}
+	_, err = ioutil.ReadAll(r)
+	assert.Error(t, err)
+}
+
+func TestPreUpload_ListsSupportedEncodings(t *testing.T) {
+	defer withTempStorageRoot(t)()
+
+	res := doPreUpload(t)
+	assert.Equal(t, []string{"deflate"}, res.SupportedEncodings)
+}
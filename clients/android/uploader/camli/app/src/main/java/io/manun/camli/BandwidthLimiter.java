@@ -0,0 +1,409 @@
+package io.manun.camli;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Caps how fast, and how much, uploads send over each class of network:
+ * Wi-Fi (any unmetered network), cellular (any metered one, a phone's
+ * hotspot included) and cellular while roaming.
+ *
+ * One limiter is shared by every worker, so the caps hold for all
+ * uploads together. A class's speed cap is a token bucket holding a
+ * second's worth of bytes (BURST_MIN_BYTES at least): writes take tokens
+ * as they go, and once the bucket's empty they wait for it to refill. A
+ * write larger than what's left goes into debt, which the writes after it
+ * wait out, so every writer is paced without anything being split.
+ *
+ * Budgets count the bytes sent today and this month, in local time. A
+ * write that would overrun one fails with BudgetExceededException, and
+ * renewsInMillis() tells UploadScheduler to hold uploads on that class of
+ * network until the period ends. The counts outlive the process through
+ * saveUsage() and loadUsage().
+ *
+ * Unlimited classes cost a write one uncontended lock and a few additions;
+ * MultipartEntity writes 64 KB at a time, so that's lost in the noise
+ * (see BandwidthLimiterBenchmark). Reading a clock costs more than the
+ * rest put together, so the write path reads System.nanoTime() only for
+ * classes with a speed cap, and the wall clock, which only decides which
+ * day bytes count against, once every CLOCK_CHECK_BYTES.
+ *
+ * Otherwise times are passed in: System.nanoTime() for the buckets,
+ * wall-clock millis for the budget periods.
+ */
+
+public class BandwidthLimiter {
+
+    public static final int NETWORK_WIFI = 0;
+    public static final int NETWORK_CELLULAR = 1;
+    public static final int NETWORK_ROAMING = 2;
+    private static final int NETWORK_CLASSES = 3;
+    private static final String[] NAMES = {"wifi", "cellular", "roaming"};
+
+    // The least a bucket holds, so slow caps still let a whole write
+    // through at once after a pause.
+    static final long BURST_MIN_BYTES = 64 * 1024;
+    // Writers waiting for tokens check for a stop this often.
+    static final long WAIT_SLICE_MILLIS = 50;
+    // The write path reads the wall clock after this many bytes.
+    static final long CLOCK_CHECK_BYTES = 1024 * 1024;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // A class of network's caps; 0 is unlimited.
+    public static class Limits {
+        public static final Limits NONE = new Limits(0, 0, 0);
+
+        final long bytesPerSecond;
+        final long dailyBytes;
+        final long monthlyBytes;
+
+        public Limits(long bytesPerSecond, long dailyBytes, long monthlyBytes) {
+            this.bytesPerSecond = Math.max(0, bytesPerSecond);
+            this.dailyBytes = Math.max(0, dailyBytes);
+            this.monthlyBytes = Math.max(0, monthlyBytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Limits)) {
+                return false;
+            }
+            Limits l = (Limits) o;
+            return bytesPerSecond == l.bytesPerSecond && dailyBytes == l.dailyBytes &&
+                    monthlyBytes == l.monthlyBytes;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (31 * (31 * bytesPerSecond + dailyBytes) + monthlyBytes);
+        }
+
+        @Override
+        public String toString() {
+            return "Limits{" +
+                    "bytesPerSecond=" + bytesPerSecond +
+                    ", dailyBytes=" + dailyBytes +
+                    ", monthlyBytes=" + monthlyBytes +
+                    '}';
+        }
+    }
+
+    // Thrown by a write that would overrun a budget. Not the connection's
+    // fault, nor any file's. An InterruptedIOException, like a stop, so
+    // HttpClient neither retries the request nor wraps it.
+    public static class BudgetExceededException extends InterruptedIOException {
+        BudgetExceededException(String message) {
+            super(message);
+        }
+    }
+
+    // Guarded by 'this':
+    private final Limits[] mLimits = new Limits[NETWORK_CLASSES];
+    private final double[] mTokens = new double[NETWORK_CLASSES];
+    private final long[] mRefilledNanos = new long[NETWORK_CLASSES];
+    private final long[] mDayBytes = new long[NETWORK_CLASSES];
+    private final long[] mMonthBytes = new long[NETWORK_CLASSES];
+    // Set when a write was refused, so a budget with a little room left
+    // doesn't have workers started only to be refused again.
+    private final long[] mSpentUntilMillis = new long[NETWORK_CLASSES];
+    // The current periods; rollOver() moves them on.
+    private long mDayStartMillis = 0;
+    private long mDayEndMillis = 0;
+    private long mMonthStartMillis = 0;
+    private long mMonthEndMillis = 0;
+    // Counts changed since the last saveUsage().
+    private boolean mChanged = false;
+    // The write path's last wall clock reading, when it was taken, and
+    // the bytes charged since.
+    private long mClockMillis = 0;
+    private long mClockNanos = 0;
+    private long mUnclockedBytes = 0;
+
+    public BandwidthLimiter() {
+        for (int i = 0; i < NETWORK_CLASSES; i++) {
+            mLimits[i] = Limits.NONE;
+        }
+    }
+
+    // The class of network a connection's bytes count against.
+    static int networkClass(boolean unmetered, boolean roaming) {
+        return roaming ? NETWORK_ROAMING : unmetered ? NETWORK_WIFI : NETWORK_CELLULAR;
+    }
+
+    static String name(int networkClass) {
+        return NAMES[networkClass];
+    }
+
+    // Replaces networkClass's caps. A bucket whose speed cap changed
+    // starts full; budgets raised since a write was refused have room
+    // again.
+    public synchronized void setLimits(int networkClass, Limits limits) {
+        if (mLimits[networkClass].equals(limits)) {
+            return;
+        }
+        if (mLimits[networkClass].bytesPerSecond != limits.bytesPerSecond) {
+            mTokens[networkClass] = burstBytes(limits.bytesPerSecond);
+            mRefilledNanos[networkClass] = 0;
+        }
+        mLimits[networkClass] = limits;
+        mSpentUntilMillis[networkClass] = 0;
+    }
+
+    public synchronized Limits getLimits(int networkClass) {
+        return mLimits[networkClass];
+    }
+
+    // Counts n bytes about to be sent over networkClass. Returns how many
+    // nanoseconds the caller must wait before sending them, or 0; throws
+    // if they'd overrun a budget, in which case nothing is counted.
+    long charge(int networkClass, long n, long nowNanos, long nowMillis)
+            throws BudgetExceededException {
+        synchronized (this) {
+            // Only forwards: the write path's estimates of the time may
+            // trail one renewsInMillis() was given.
+            if (nowMillis >= mDayEndMillis) {
+                rollOver(nowMillis);
+            }
+            Limits limits = mLimits[networkClass];
+            if (limits.monthlyBytes > 0 && mMonthBytes[networkClass] + n > limits.monthlyBytes) {
+                mSpentUntilMillis[networkClass] = mMonthEndMillis;
+                throw new BudgetExceededException("monthly budget of " + limits.monthlyBytes +
+                        " bytes on " + name(networkClass) + " spent");
+            }
+            if (limits.dailyBytes > 0 && mDayBytes[networkClass] + n > limits.dailyBytes) {
+                mSpentUntilMillis[networkClass] = mDayEndMillis;
+                throw new BudgetExceededException("daily budget of " + limits.dailyBytes +
+                        " bytes on " + name(networkClass) + " spent");
+            }
+            mDayBytes[networkClass] += n;
+            mMonthBytes[networkClass] += n;
+            mChanged = true;
+            if (limits.bytesPerSecond == 0) {
+                return 0;
+            }
+            return take(networkClass, limits.bytesPerSecond, n, nowNanos);
+        }
+    }
+
+    // Like charge() above, for the write path, reading the clocks as
+    // seldom as it can. Between wall clock readings the time is estimated
+    // from the bucket's clock if the class has one; otherwise bytes may
+    // count against a day that ended less than CLOCK_CHECK_BYTES ago.
+    private long charge(int networkClass, long n) throws BudgetExceededException {
+        synchronized (this) {
+            boolean capped = mLimits[networkClass].bytesPerSecond > 0;
+            long nowNanos = capped ? System.nanoTime() : 0;
+            mUnclockedBytes += n;
+            if (mClockMillis == 0 || mUnclockedBytes >= CLOCK_CHECK_BYTES) {
+                mClockMillis = System.currentTimeMillis();
+                mClockNanos = capped ? nowNanos : System.nanoTime();
+                mUnclockedBytes = 0;
+            }
+            long nowMillis = mClockMillis;
+            if (capped) {
+                nowMillis += TimeUnit.NANOSECONDS.toMillis(nowNanos - mClockNanos);
+            }
+            return charge(networkClass, n, nowNanos, nowMillis);
+        }
+    }
+
+    // Takes n tokens from networkClass's bucket, refilling it first.
+    private long take(int networkClass, long rate, long n, long nowNanos) {
+        double burst = burstBytes(rate);
+        double tokens = mTokens[networkClass];
+        long refilled = mRefilledNanos[networkClass];
+        if (refilled != 0 && nowNanos > refilled) {
+            tokens = Math.min(burst, tokens + (double) (nowNanos - refilled) * rate /
+                    NANOS_PER_SECOND);
+        }
+        tokens -= n;
+        mTokens[networkClass] = tokens;
+        mRefilledNanos[networkClass] = nowNanos;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    private static double burstBytes(long rate) {
+        return Math.max(rate, BURST_MIN_BYTES);
+    }
+
+    // -1 if networkClass's budgets have room; else how long until the
+    // spent one renews.
+    public synchronized long renewsInMillis(int networkClass, long nowMillis) {
+        if (nowMillis >= mDayEndMillis || nowMillis < mDayStartMillis) {
+            rollOver(nowMillis);
+        }
+        Limits limits = mLimits[networkClass];
+        long until = mSpentUntilMillis[networkClass];
+        if (limits.dailyBytes > 0 && mDayBytes[networkClass] >= limits.dailyBytes) {
+            until = Math.max(until, mDayEndMillis);
+        }
+        if (limits.monthlyBytes > 0 && mMonthBytes[networkClass] >= limits.monthlyBytes) {
+            until = Math.max(until, mMonthEndMillis);
+        }
+        return until > nowMillis ? until - nowMillis : -1;
+    }
+
+    // Bytes counted against networkClass today, or this month if monthly.
+    public synchronized long usedBytes(int networkClass, boolean monthly, long nowMillis) {
+        if (nowMillis >= mDayEndMillis || nowMillis < mDayStartMillis) {
+            rollOver(nowMillis);
+        }
+        return monthly ? mMonthBytes[networkClass] : mDayBytes[networkClass];
+    }
+
+    // Starts the periods nowMillis falls in; counts from others are
+    // dropped. Also called if the clock went back past the day's start.
+    private void rollOver(long nowMillis) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(nowMillis);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        long dayStart = cal.getTimeInMillis();
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        long dayEnd = cal.getTimeInMillis();
+        cal.setTimeInMillis(dayStart);
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        long monthStart = cal.getTimeInMillis();
+        cal.add(Calendar.MONTH, 1);
+        long monthEnd = cal.getTimeInMillis();
+
+        if (dayStart != mDayStartMillis) {
+            for (int i = 0; i < NETWORK_CLASSES; i++) {
+                mDayBytes[i] = 0;
+            }
+            mChanged = true;
+        }
+        if (monthStart != mMonthStartMillis) {
+            for (int i = 0; i < NETWORK_CLASSES; i++) {
+                mMonthBytes[i] = 0;
+            }
+            mChanged = true;
+        }
+        mDayStartMillis = dayStart;
+        mDayEndMillis = dayEnd;
+        mMonthStartMillis = monthStart;
+        mMonthEndMillis = monthEnd;
+    }
+
+    // The counts, for loadUsage() to restore, or null if they haven't
+    // changed since last time.
+    public synchronized String saveUsage() {
+        if (!mChanged) {
+            return null;
+        }
+        mChanged = false;
+        StringBuilder sb = new StringBuilder();
+        sb.append(mDayStartMillis).append(',').append(mMonthStartMillis);
+        for (int i = 0; i < NETWORK_CLASSES; i++) {
+            sb.append(',').append(mDayBytes[i]).append(',').append(mMonthBytes[i]);
+        }
+        return sb.toString();
+    }
+
+    // Restores what saveUsage() returned, as far as it's from the current
+    // periods. Anything malformed is ignored.
+    public synchronized void loadUsage(String usage, long nowMillis) {
+        rollOver(nowMillis);
+        mChanged = false;
+        if (usage == null || usage.isEmpty()) {
+            return;
+        }
+        String[] fields = usage.split(",");
+        if (fields.length != 2 + 2 * NETWORK_CLASSES) {
+            return;
+        }
+        long[] values = new long[fields.length];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = Long.parseLong(fields[i]);
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+        for (int i = 0; i < NETWORK_CLASSES; i++) {
+            if (values[0] == mDayStartMillis) {
+                mDayBytes[i] = values[2 + 2 * i];
+            }
+            if (values[1] == mMonthStartMillis) {
+                mMonthBytes[i] = values[3 + 2 * i];
+            }
+        }
+    }
+
+    public synchronized String dump(long nowMillis) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NETWORK_CLASSES; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(name(i)).append(": ").append(mLimits[i])
+                    .append(", today ").append(usedBytes(i, false, nowMillis))
+                    .append(" bytes, this month ").append(usedBytes(i, true, nowMillis))
+                    .append(" bytes");
+            long renews = renewsInMillis(i, nowMillis);
+            if (renews >= 0) {
+                sb.append(", spent for ").append(renews).append("ms");
+            }
+        }
+        return sb.toString();
+    }
+
+    // A stage for the upload write path: everything written to the
+    // returned stream is charged to networkClass first. Waiting for tokens
+    // gives up with InterruptedIOException once stop is set.
+    OutputStream wrap(OutputStream out, int networkClass, AtomicBoolean stop) {
+        return new LimitedOutputStream(out, networkClass, stop);
+    }
+
+    private class LimitedOutputStream extends FilterOutputStream {
+        private final int mNetworkClass;
+        private final AtomicBoolean mStop;
+
+        LimitedOutputStream(OutputStream out, int networkClass, AtomicBoolean stop) {
+            super(out);
+            mNetworkClass = networkClass;
+            mStop = stop;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            await(1);
+            out.write(b);
+        }
+
+        // FilterOutputStream's own writes a byte at a time.
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            await(len);
+            out.write(b, off, len);
+        }
+
+        private void await(long n) throws IOException {
+            long wait = charge(mNetworkClass, n);
+            if (wait == 0) {
+                return;
+            }
+            long deadline = System.nanoTime() + wait;
+            for (long left = wait; left > 0; left = deadline - System.nanoTime()) {
+                if (mStop != null && mStop.get()) {
+                    throw new InterruptedIOException("stopped waiting for bandwidth");
+                }
+                try {
+                    Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(left) + 1,
+                            WAIT_SLICE_MILLIS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for bandwidth");
+                }
+            }
+        }
+    }
+}
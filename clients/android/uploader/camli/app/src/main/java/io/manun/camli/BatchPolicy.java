@@ -0,0 +1,88 @@
+package io.manun.camli;
+
+/*
+ * Decides how much to put in one multipart upload POST.
+ *
+ * A batch is capped by bytes, file count and wall-clock time. The byte cap
+ * adapts to recent batches: it aims for a batch that takes about
+ * TARGET_BATCH_MILLIS at the observed throughput, discounted by the recent
+ * error rate, grows at most 2x per successful batch and halves after a
+ * failed one. Smaller batches mean a failure throws away less work; larger
+ * ones amortize the per-request round trips.
+ *
+ * Shared by all upload workers, so it's thread-safe.
+ */
+
+public class BatchPolicy {
+
+    static final long MIN_TARGET_BYTES = 256 * 1024;
+    static final long MAX_TARGET_BYTES = 64 * 1024 * 1024;
+    static final long INITIAL_TARGET_BYTES = 1024 * 1024;
+    static final int MAX_FILES = 100;
+    static final long MAX_BATCH_MILLIS = 30 * 1000;
+    static final long TARGET_BATCH_MILLIS = 10 * 1000;
+
+    // Weight of the newest sample in the moving averages.
+    private static final double THROUGHPUT_ALPHA = 0.3;
+    private static final double ERROR_ALPHA = 0.2;
+
+    // Guarded by 'this':
+    private long mTargetBytes = INITIAL_TARGET_BYTES;
+    private double mBytesPerMilli = 0; // 0 until the first successful batch.
+    private double mErrorRate = 0;
+
+    // Returns the byte cap for the next batch, given the server's
+    // maxUploadSize (or a non-positive value if it didn't say).
+    public synchronized long byteLimit(long serverMaxBytes) {
+        if (serverMaxBytes > 0) {
+            return Math.min(mTargetBytes, serverMaxBytes);
+        }
+        return mTargetBytes;
+    }
+
+    // Whether a batch that already holds filesWritten files totalling
+    // bytesWritten, and has been writing for elapsedMillis, should stop
+    // before adding a file of nextFileBytes. The first file of a batch is
+    // always allowed, however large, so big files still make progress.
+    public boolean isFull(long byteLimit, long bytesWritten, int filesWritten,
+                          long elapsedMillis, long nextFileBytes) {
+        if (filesWritten == 0) {
+            return false;
+        }
+        return filesWritten >= MAX_FILES ||
+                elapsedMillis >= MAX_BATCH_MILLIS ||
+                bytesWritten >= byteLimit ||
+                (nextFileBytes > 0 && bytesWritten + nextFileBytes > byteLimit);
+    }
+
+    public synchronized void onBatchDone(long bytes, long millis, boolean success) {
+        mErrorRate += ERROR_ALPHA * ((success ? 0 : 1) - mErrorRate);
+        if (!success) {
+            mTargetBytes = clamp(mTargetBytes / 2);
+            return;
+        }
+        if (bytes <= 0) {
+            return;
+        }
+        double sample = (double) bytes / Math.max(1, millis);
+        if (mBytesPerMilli == 0) {
+            mBytesPerMilli = sample;
+        } else {
+            mBytesPerMilli += THROUGHPUT_ALPHA * (sample - mBytesPerMilli);
+        }
+        long ideal = (long) (mBytesPerMilli * TARGET_BATCH_MILLIS * (1 - mErrorRate));
+        mTargetBytes = clamp(Math.min(mTargetBytes * 2, ideal));
+    }
+
+    public synchronized long targetBytes() {
+        return mTargetBytes;
+    }
+
+    public synchronized double errorRate() {
+        return mErrorRate;
+    }
+
+    private static long clamp(long bytes) {
+        return Math.max(MIN_TARGET_BYTES, Math.min(MAX_TARGET_BYTES, bytes));
+    }
+}
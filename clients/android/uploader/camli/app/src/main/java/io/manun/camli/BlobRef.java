@@ -0,0 +1,270 @@
+package io.manun.camli;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * Immutable blobref: the name of a hash function and a digest, written
+ * e.g. "sha1-" + 40 hex digits or "sha256-" + 64.
+ *
+ * The first 20 bytes of the digest (all of a SHA-1 one) are held in two
+ * longs and an int instead of a 45-char String, so a blobref is one small
+ * object that compares in a few word compares and hashes for free. Longer
+ * digests keep the bytes past 20 in mRest.
+ */
+
+public final class BlobRef {
+
+    // Supported hash functions, by id. Ids never leave the process, so the
+    // order is free to change; the names are what goes over the wire and
+    // must match the server's.
+    private static final String[] HASH_NAMES = {"sha1", "sha256"};
+    private static final int[] DIGEST_BYTES = {20, 32};
+    private static final String[] ALGORITHMS = {"SHA-1", "SHA-256"};
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    final int mHashId;
+    final long mHi;
+    final long mMid;
+    final int mLo;
+    final byte[] mRest; // null unless the digest is over 20 bytes.
+
+    BlobRef(int hashId, long hi, long mid, int lo, byte[] rest) {
+        mHashId = hashId;
+        mHi = hi;
+        mMid = mid;
+        mLo = lo;
+        mRest = rest;
+    }
+
+    // Throws IllegalArgumentException if hashName isn't supported or digest
+    // is the wrong length for it.
+    public static BlobRef of(String hashName, byte[] digest) {
+        int id = hashId(hashName);
+        if (id < 0)
+            throw new IllegalArgumentException("unsupported hash " + hashName);
+        if (digest.length != DIGEST_BYTES[id])
+            throw new IllegalArgumentException("unexpected " + hashName + " digest length");
+        byte[] rest = null;
+        if (digest.length > 20) {
+            rest = Arrays.copyOfRange(digest, 20, digest.length);
+        }
+        return new BlobRef(id, getLong(digest, 0), getLong(digest, 8),
+                (int) getBits(digest, 16, 4), rest);
+    }
+
+    public static BlobRef sha1(byte[] digest) {
+        return of("sha1", digest);
+    }
+
+    // The blobref of data's SHA-1.
+    public static BlobRef sha1Of(byte[] data) {
+        return hashOf("sha1", data);
+    }
+
+    // The blobref of data under hashName, which must be supported.
+    public static BlobRef hashOf(String hashName, byte[] data) {
+        return of(hashName, newDigest(hashName).digest(data));
+    }
+
+    public static boolean isSupported(String hashName) {
+        return hashId(hashName) >= 0;
+    }
+
+    // Names of the supported hash functions.
+    public static String[] hashNames() {
+        return HASH_NAMES.clone();
+    }
+
+    // Returns a fresh digest for hashName. Throws IllegalArgumentException
+    // if it isn't supported.
+    public static MessageDigest newDigest(String hashName) {
+        int id = hashId(hashName);
+        if (id < 0)
+            throw new IllegalArgumentException("unsupported hash " + hashName);
+        try {
+            return MessageDigest.getInstance(ALGORITHMS[id]);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release has both.
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Parses "<hash>-<hex digest>", returning null if s isn't a well-formed
+    // blobref of a supported hash.
+    public static BlobRef parse(String s) {
+        if (s == null) {
+            return null;
+        }
+        return parse(s.toCharArray(), 0, s.length());
+    }
+
+    // Like parse(String), for chars[off, off+len).
+    static BlobRef parse(char[] chars, int off, int len) {
+        int dash = -1;
+        for (int i = off; i < off + len; i++) {
+            if (chars[i] == '-') {
+                dash = i;
+                break;
+            }
+        }
+        if (dash < 0) {
+            return null;
+        }
+        int id = -1;
+        for (int i = 0; i < HASH_NAMES.length; i++) {
+            if (regionEquals(HASH_NAMES[i], chars, off, dash - off)) {
+                id = i;
+                break;
+            }
+        }
+        if (id < 0 || off + len - dash - 1 != DIGEST_BYTES[id] * 2) {
+            return null;
+        }
+        int hex = dash + 1;
+        if (!isHex(chars, hex, off + len - hex)) {
+            return null;
+        }
+        long hi = parseHex(chars, hex, 16);
+        long mid = parseHex(chars, hex + 16, 16);
+        long lo = parseHex(chars, hex + 32, 8);
+        byte[] rest = null;
+        int restBytes = DIGEST_BYTES[id] - 20;
+        if (restBytes > 0) {
+            rest = new byte[restBytes];
+            for (int i = 0; i < restBytes; i++) {
+                rest[i] = (byte) parseHex(chars, hex + 40 + 2 * i, 2);
+            }
+        }
+        return new BlobRef(id, hi, mid, (int) lo, rest);
+    }
+
+    public String getHashName() {
+        return HASH_NAMES[mHashId];
+    }
+
+    public byte[] getDigest() {
+        byte[] digest = new byte[DIGEST_BYTES[mHashId]];
+        putBits(digest, 0, mHi, 8);
+        putBits(digest, 8, mMid, 8);
+        putBits(digest, 16, mLo, 4);
+        if (mRest != null) {
+            System.arraycopy(mRest, 0, digest, 20, mRest.length);
+        }
+        return digest;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BlobRef that = (BlobRef) o;
+        return mHi == that.mHi && mMid == that.mMid && mLo == that.mLo &&
+                mHashId == that.mHashId && Arrays.equals(mRest, that.mRest);
+    }
+
+    // The digest is already uniformly distributed; any 32 bits of it will do.
+    @Override
+    public int hashCode() {
+        return (int) (mHi >>> 32) ^ mHashId;
+    }
+
+    @Override
+    public String toString() {
+        String name = HASH_NAMES[mHashId];
+        int digestBytes = DIGEST_BYTES[mHashId];
+        char[] c = new char[name.length() + 1 + 2 * digestBytes];
+        name.getChars(0, name.length(), c, 0);
+        int p = name.length();
+        c[p++] = '-';
+        p = putHex(c, p, mHi, 16);
+        p = putHex(c, p, mMid, 16);
+        p = putHex(c, p, mLo & 0xffffffffL, 8);
+        if (mRest != null) {
+            for (byte b : mRest) {
+                p = putHex(c, p, b & 0xff, 2);
+            }
+        }
+        return new String(c);
+    }
+
+    private static int hashId(String hashName) {
+        for (int i = 0; i < HASH_NAMES.length; i++) {
+            if (HASH_NAMES[i].equals(hashName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(String s, char[] chars, int off, int len) {
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != chars[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses digits (at most 16) hex chars, already checked by isHex().
+    private static long parseHex(char[] chars, int off, int digits) {
+        long v = 0;
+        for (int i = off; i < off + digits; i++) {
+            v = (v << 4) | hexValue(chars[i]);
+        }
+        return v;
+    }
+
+    private static boolean isHex(char[] chars, int off, int digits) {
+        for (int i = off; i < off + digits; i++) {
+            if (hexValue(chars[i]) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static int putHex(char[] c, int p, long v, int digits) {
+        for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4) {
+            c[p++] = HEX[(int) (v >>> shift) & 0xf];
+        }
+        return p;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return getBits(b, off, 8);
+    }
+
+    private static long getBits(byte[] b, int off, int n) {
+        long v = 0;
+        for (int i = off; i < off + n; i++) {
+            v = (v << 8) | (b[i] & 0xff);
+        }
+        return v;
+    }
+
+    private static void putBits(byte[] b, int off, long v, int n) {
+        for (int i = off + n - 1; i >= off; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+}
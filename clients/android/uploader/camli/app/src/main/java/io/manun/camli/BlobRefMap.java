@@ -0,0 +1,183 @@
+package io.manun.camli;
+
+import java.util.Arrays;
+
+/*
+ * Map from BlobRef to long, for the big blobref indexes (what the server
+ * already has, what's been acknowledged). Open addressing with linear
+ * probing over parallel primitive arrays: an entry costs two longs, two
+ * ints and a long value per slot, with no per-entry objects, where a
+ * HashMap<String, Long> spends a node, a boxed Long and a 45-char String.
+ * Until a non-zero value is put, as in a BlobRefSet, there are no values.
+ *
+ * Not thread-safe.
+ */
+
+public class BlobRefMap {
+
+    // Capacity is a power of two, so probes wrap with a mask, and the table
+    // is kept at most half full.
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mHi;
+    private long[] mMid;
+    private int[] mLo;
+    private int[] mHashId; // hash id + 1; 0 marks an empty slot.
+    private byte[][] mRest; // null until a digest over 20 bytes is stored.
+    private long[] mValues; // null until a non-zero value is stored.
+    private int mSize = 0;
+
+    public BlobRefMap() {
+        this(0);
+    }
+
+    public BlobRefMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < expectedSize) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+    }
+
+    // Returns true if key wasn't in the map before.
+    public boolean put(BlobRef key, long value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            storeValue(slot, value);
+            return false;
+        }
+        if (mSize + 1 > mHashId.length / 2) {
+            rehash(mHashId.length * 2);
+        }
+        slot = firstSlot(key);
+        while (mHashId[slot] != 0) {
+            slot = (slot + 1) & (mHashId.length - 1);
+        }
+        store(slot, key.mHashId + 1, key.mHi, key.mMid, key.mLo, key.mRest, value);
+        mSize++;
+        return true;
+    }
+
+    public long get(BlobRef key, long defaultValue) {
+        int slot = find(key);
+        if (slot < 0) {
+            return defaultValue;
+        }
+        return mValues == null ? 0 : mValues[slot];
+    }
+
+    public boolean containsKey(BlobRef key) {
+        return find(key) >= 0;
+    }
+
+    public boolean remove(BlobRef key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        // Backward-shift deletion: pull later entries of the probe run into
+        // the hole wherever that doesn't put them before their first slot,
+        // so lookups never need tombstones.
+        int mask = mHashId.length - 1;
+        int hole = slot;
+        for (int i = (hole + 1) & mask; mHashId[i] != 0; i = (i + 1) & mask) {
+            int home = firstSlot(mHashId[i] - 1, mHi[i]);
+            boolean movable = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+            if (movable) {
+                store(hole, mHashId[i], mHi[i], mMid[i], mLo[i],
+                        mRest == null ? null : mRest[i], mValues == null ? 0 : mValues[i]);
+                hole = i;
+            }
+        }
+        mHashId[hole] = 0;
+        if (mRest != null) {
+            mRest[hole] = null;
+        }
+        mSize--;
+        return true;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    private int find(BlobRef key) {
+        int mask = mHashId.length - 1;
+        int hashId = key.mHashId + 1;
+        for (int slot = firstSlot(key); mHashId[slot] != 0; slot = (slot + 1) & mask) {
+            if (mHi[slot] == key.mHi && mMid[slot] == key.mMid && mLo[slot] == key.mLo &&
+                    mHashId[slot] == hashId &&
+                    Arrays.equals(mRest == null ? null : mRest[slot], key.mRest)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int firstSlot(BlobRef key) {
+        return firstSlot(key.mHashId, key.mHi);
+    }
+
+    private int firstSlot(int hashId, long hi) {
+        // The digest is uniformly distributed already.
+        return ((int) (hi >>> 32) ^ hashId) & (mHashId.length - 1);
+    }
+
+    private void store(int slot, int hashId, long hi, long mid, int lo, byte[] rest, long value) {
+        mHashId[slot] = hashId;
+        mHi[slot] = hi;
+        mMid[slot] = mid;
+        mLo[slot] = lo;
+        storeValue(slot, value);
+        if (rest != null && mRest == null) {
+            mRest = new byte[mHashId.length][];
+        }
+        if (mRest != null) {
+            mRest[slot] = rest;
+        }
+    }
+
+    private void storeValue(int slot, long value) {
+        if (value != 0 && mValues == null) {
+            mValues = new long[mHashId.length];
+        }
+        if (mValues != null) {
+            mValues[slot] = value;
+        }
+    }
+
+    private void allocate(int capacity) {
+        mHi = new long[capacity];
+        mMid = new long[capacity];
+        mLo = new int[capacity];
+        mHashId = new int[capacity];
+        mValues = null;
+        mRest = null;
+    }
+
+    private void rehash(int capacity) {
+        long[] hi = mHi;
+        long[] mid = mMid;
+        int[] lo = mLo;
+        int[] hashId = mHashId;
+        byte[][] rest = mRest;
+        long[] values = mValues;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < hashId.length; i++) {
+            if (hashId[i] == 0) {
+                continue;
+            }
+            int slot = firstSlot(hashId[i] - 1, hi[i]);
+            while (mHashId[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            store(slot, hashId[i], hi[i], mid[i], lo[i], rest == null ? null : rest[i],
+                    values == null ? 0 : values[i]);
+        }
+    }
+}
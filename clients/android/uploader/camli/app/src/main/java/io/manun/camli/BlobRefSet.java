@@ -0,0 +1,38 @@
+package io.manun.camli;
+
+/*
+ * Set of BlobRefs, stored like BlobRefMap's keys. Not thread-safe.
+ */
+
+public class BlobRefSet {
+    private final BlobRefMap mMap;
+
+    public BlobRefSet() {
+        mMap = new BlobRefMap();
+    }
+
+    public BlobRefSet(int expectedSize) {
+        mMap = new BlobRefMap(expectedSize);
+    }
+
+    // Returns true if blobRef wasn't in the set before.
+    public boolean add(BlobRef blobRef) {
+        return mMap.put(blobRef, 0);
+    }
+
+    public boolean contains(BlobRef blobRef) {
+        return mMap.containsKey(blobRef);
+    }
+
+    public boolean remove(BlobRef blobRef) {
+        return mMap.remove(blobRef);
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+}
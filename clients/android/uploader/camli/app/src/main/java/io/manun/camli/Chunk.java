@@ -0,0 +1,45 @@
+package io.manun.camli;
+
+/*
+ * Immutable byte range of a large file that is uploaded as its own blob.
+ * See Chunker for where the ranges come from.
+ */
+
+public class Chunk {
+    private final long mOffset;
+    private final long mSize;
+    private final BlobRef mBlobRef;
+
+    public Chunk(long offset, long size, BlobRef blobRef) {
+        if (blobRef == null)
+            throw new NullPointerException("blobRef == null");
+        mOffset = offset;
+        mSize = size;
+        mBlobRef = blobRef;
+    }
+
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public BlobRef getBlobRef() {
+        return mBlobRef;
+    }
+
+    public String getContentName() {
+        return mBlobRef.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Chunk{" +
+                "mBlobRef=" + mBlobRef +
+                ", mOffset=" + mOffset +
+                ", mSize=" + mSize +
+                '}';
+    }
+}
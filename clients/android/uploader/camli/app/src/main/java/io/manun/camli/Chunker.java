@@ -0,0 +1,170 @@
+package io.manun.camli;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Content-defined chunker: cuts a byte stream where a rolling "gear" hash of
+ * the last 64 bytes matches a mask, rather than at fixed offsets. An edit
+ * only moves the boundaries right around it, so the rest of an edited
+ * file's chunks keep their blobrefs and dedup against what the server
+ * already has.
+ *
+ * Chunks are at least minSize and at most maxSize bytes, averaging around
+ * avgSize. Not thread-safe; use one per stream.
+ */
+
+public class Chunker {
+
+    static final int MIN_SIZE = 256 * 1024;
+    static final int AVG_SIZE = 1024 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    // The gear hash only remembers this many bytes, so the start of a
+    // chunk before its last WINDOW bytes under minSize needn't be hashed.
+    private static final int WINDOW = 64;
+
+    // The smallest limit forMaxSize() can keep chunks under: a chunk is at
+    // least one window.
+    static final int MIN_MAX_BYTES = WINDOW;
+
+    // Chunk boundaries, and so every chunked blobref ever uploaded, depend
+    // on this table. Never change the seed.
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long x = 0x63616d6c69L; // "camli"
+        for (int i = 0; i < GEAR.length; i++) {
+            // splitmix64
+            x += 0x9E3779B97F4A7C15L;
+            long z = x;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final long mMask;
+
+    private long mHash = 0;
+    private long mChunkLen = 0;
+
+    public Chunker() {
+        this(MIN_SIZE, AVG_SIZE, MAX_SIZE);
+    }
+
+    // avgSize is rounded down to a power of two.
+    public Chunker(int minSize, int avgSize, int maxSize) {
+        if (minSize < WINDOW || avgSize < minSize || maxSize < avgSize)
+            throw new IllegalArgumentException("need " + WINDOW +
+                    " <= minSize <= avgSize <= maxSize");
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        // Test the high bits: in a gear hash they depend on the whole
+        // window, the low ones only on the last few bytes.
+        int bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(avgSize));
+        mMask = ((1L << bits) - 1) << (64 - bits);
+    }
+
+    // Returns a chunker whose chunks never exceed maxBytes (the server's
+    // maxUploadSize, say), or the default one if that's no constraint.
+    // Throws IllegalArgumentException if maxBytes is under MIN_MAX_BYTES.
+    public static Chunker forMaxSize(long maxBytes) {
+        if (maxBytes <= 0 || maxBytes >= MAX_SIZE) {
+            return new Chunker();
+        }
+        if (maxBytes < MIN_MAX_BYTES)
+            throw new IllegalArgumentException("maxBytes " + maxBytes + " < " + MIN_MAX_BYTES);
+        int max = (int) maxBytes;
+        int avg = Math.max(WINDOW, Integer.highestOneBit(max / 4));
+        return new Chunker(Math.max(WINDOW, avg / 4), avg, max);
+    }
+
+    // Feeds buf[off, off+len) into the current chunk. Returns how many of
+    // those bytes belong to it if the chunk ends within them, in which case
+    // the next byte starts a new chunk, or -1 if all of them were consumed
+    // and the chunk continues.
+    public int scan(byte[] buf, int off, int len) {
+        long h = mHash;
+        long n = mChunkLen;
+        int i = 0;
+        long skip = mMinSize - WINDOW - n;
+        if (skip > 0) {
+            int s = (int) Math.min(skip, len);
+            i += s;
+            n += s;
+        }
+        for (; i < len; i++) {
+            h = (h << 1) + GEAR[buf[off + i] & 0xff];
+            n++;
+            if (n >= mMinSize && ((h & mMask) == 0 || n >= mMaxSize)) {
+                mHash = 0;
+                mChunkLen = 0;
+                return i + 1;
+            }
+        }
+        mHash = h;
+        mChunkLen = n;
+        return -1;
+    }
+
+    public List<Chunk> split(FileDescriptor fd, String hashName, StopSignal stop)
+            throws IOException {
+        return split(new FileInputStream(fd), hashName, stop);
+    }
+
+    public List<Chunk> split(InputStream in) throws IOException {
+        return split(in, "sha1");
+    }
+
+    public List<Chunk> split(InputStream in, String hashName) throws IOException {
+        return split(in, hashName, null);
+    }
+
+    // Reads in to EOF, cutting it into content-defined chunks and hashing
+    // each under hashName as it goes, in a single pass. Throws
+    // InterruptedIOException once stop, if not null, is stopped: files
+    // worth chunking can take a while to read.
+    public List<Chunk> split(InputStream in, String hashName, StopSignal stop)
+            throws IOException {
+        MessageDigest md = BlobRef.newDigest(hashName);
+        mHash = 0;
+        mChunkLen = 0;
+
+        List<Chunk> chunks = new ArrayList<>();
+        byte[] b = new byte[256 * 1024];
+        long offset = 0;
+        long size = 0;
+        for (int n; (n = in.read(b)) != -1; ) {
+            if (stop != null) {
+                stop.throwIfStopped();
+            }
+            int pos = 0;
+            while (pos < n) {
+                int cut = scan(b, pos, n - pos);
+                if (cut < 0) {
+                    md.update(b, pos, n - pos);
+                    size += n - pos;
+                    break;
+                }
+                md.update(b, pos, cut);
+                size += cut;
+                pos += cut;
+                chunks.add(new Chunk(offset, size, BlobRef.of(hashName, md.digest())));
+                offset += size;
+                size = 0;
+            }
+        }
+        if (size > 0 || chunks.isEmpty()) {
+            chunks.add(new Chunk(offset, size, BlobRef.of(hashName, md.digest())));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,161 @@
+package io.manun.camli;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Compresses blobs on their way to the server, when it pays.
+ *
+ * Photos and videos, most of what gets uploaded, are compressed already:
+ * deflating them costs CPU and saves nothing. Logs, documents, JSON
+ * schema blobs and XMP sidecars often shrink 3-10x. So a blob is only
+ * compressed if its MIME type isn't a known compressed format, its first
+ * bytes aren't one either (a type can be missing or wrong), and samples
+ * from its head and middle deflate to at most MAX_RATIO of their size.
+ *
+ * Parts go as "Content-Encoding: deflate", a zlib stream, when the
+ * preupload response lists it in "supportedEncodings". Blobrefs are still
+ * of the uncompressed bytes: the server inflates parts before hashing and
+ * storing them.
+ *
+ * Deflates at BEST_SPEED, which on a phone keeps up with most networks
+ * while saving nearly as much as the default level (see
+ * CompressionBenchmark). Not thread-safe: each UploadThread has its own,
+ * which reuses one Deflater for every blob; release() frees it.
+ */
+
+public class Compressor {
+
+    public static final String DEFLATE = "deflate";
+
+    // Blobs smaller than this go as they are: the saving is a few bytes
+    // at most.
+    static final long MIN_BYTES = 512;
+    // How much of a blob is sampled, at its head and again at its middle.
+    static final int SAMPLE_BYTES = 32 * 1024;
+    // Compressed samples must be at most this fraction of their size.
+    static final double MAX_RATIO = 0.8;
+
+    // MIME types, or type prefixes ending in '/', of formats that are
+    // compressed already.
+    private static final String[] COMPRESSED_TYPES = {
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/heic", "image/heif",
+            "image/avif", "video/", "audio/mpeg", "audio/mp4", "audio/aac", "audio/ogg",
+            "audio/opus", "audio/flac", "audio/amr", "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/vnd.rar", "application/x-xz", "application/x-bzip2", "application/zstd",
+            "application/vnd.android.package-archive", "application/java-archive",
+            "application/epub+zip", "application/vnd.openxmlformats-officedocument.",
+            "application/vnd.oasis.opendocument.",
+    };
+
+    // Leading bytes of compressed formats; null matches any byte.
+    private static final Byte[][] MAGIC = {
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff}, // JPEG
+            {(byte) 0x89, 'P', 'N', 'G'},
+            {'G', 'I', 'F', '8'},
+            {'P', 'K', 3, 4}, // zip, and everything built on it
+            {0x1f, (byte) 0x8b}, // gzip
+            {'7', 'z', (byte) 0xbc, (byte) 0xaf},
+            {'R', 'a', 'r', '!'},
+            {(byte) 0xfd, '7', 'z', 'X', 'Z'},
+            {'B', 'Z', 'h'},
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd}, // zstd
+            {'R', 'I', 'F', 'F', null, null, null, null, 'W', 'E', 'B', 'P'},
+            {null, null, null, null, 'f', 't', 'y', 'p'}, // MP4, MOV, HEIC, AVIF
+            {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3}, // Matroska, WebM
+            {'I', 'D', '3'}, // MP3
+            {'O', 'g', 'g', 'S'},
+            {'f', 'L', 'a', 'C'},
+    };
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] mScratch = new byte[8 * 1024];
+
+    // Whether mimeType (null if unknown) is a compressed format.
+    static boolean isCompressedType(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String type = mimeType.toLowerCase();
+        for (String compressed : COMPRESSED_TYPES) {
+            if (compressed.endsWith("/") || compressed.endsWith(".") ?
+                    type.startsWith(compressed) : type.equals(compressed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the len bytes at head's start are those of a compressed
+    // format.
+    static boolean hasCompressedMagic(byte[] head, int len) {
+        for (Byte[] magic : MAGIC) {
+            if (len < magic.length) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < magic.length && match; i++) {
+                match = magic[i] == null || magic[i] == head[i];
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether a blob of size bytes and type mimeType, whose head and middle
+    // are the given samples (middle null if the head is all of it), is
+    // worth compressing.
+    public boolean shouldCompress(String mimeType, long size, byte[] head, int headLen,
+                                  byte[] middle, int middleLen) {
+        if (size < MIN_BYTES || isCompressedType(mimeType) ||
+                hasCompressedMagic(head, headLen)) {
+            return false;
+        }
+        long in = headLen;
+        long out = deflatedSize(head, headLen);
+        if (middle != null) {
+            in += middleLen;
+            out += deflatedSize(middle, middleLen);
+        }
+        return in > 0 && out <= in * MAX_RATIO;
+    }
+
+    // Compressed bytes that len bytes of buf deflate to.
+    long deflatedSize(byte[] buf, int len) {
+        mDeflater.reset();
+        mDeflater.setInput(buf, 0, len);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            mDeflater.deflate(mScratch);
+        }
+        long n = mDeflater.getBytesWritten();
+        mDeflater.reset();
+        return n;
+    }
+
+    // A stage that deflates what's written to it into out, for one blob.
+    // finish() it when the blob's written; never close() it, which would
+    // close out too.
+    public DeflaterOutputStream stage(OutputStream out) {
+        mDeflater.reset();
+        return new DeflaterOutputStream(out, mDeflater, mScratch.length);
+    }
+
+    // Writes the rest of stage's stream, and returns how many compressed
+    // bytes it wrote in all.
+    public long finish(DeflaterOutputStream stage) throws IOException {
+        stage.finish();
+        long n = mDeflater.getBytesWritten();
+        mDeflater.reset();
+        return n;
+    }
+
+    public void release() {
+        mDeflater.end();
+    }
+}
@@ -0,0 +1,68 @@
+package io.manun.camli;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/*
+ * Outcome of IUploadService.enqueueUploads(): how many of the files were
+ * added to the queue, were already in it (or listed twice), or couldn't be
+ * opened or hashed.
+ */
+
+public class EnqueueResult implements Parcelable {
+
+    private final int mAccepted;
+    private final int mDuplicate;
+    private final int mFailed;
+
+    public EnqueueResult(int accepted, int duplicate, int failed) {
+        mAccepted = accepted;
+        mDuplicate = duplicate;
+        mFailed = failed;
+    }
+
+    public int getAccepted() {
+        return mAccepted;
+    }
+
+    public int getDuplicate() {
+        return mDuplicate;
+    }
+
+    public int getFailed() {
+        return mFailed;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mAccepted);
+        dest.writeInt(mDuplicate);
+        dest.writeInt(mFailed);
+    }
+
+    public static final Creator<EnqueueResult> CREATOR = new Creator<EnqueueResult>() {
+        @Override
+        public EnqueueResult createFromParcel(Parcel source) {
+            return new EnqueueResult(source.readInt(), source.readInt(), source.readInt());
+        }
+
+        @Override
+        public EnqueueResult[] newArray(int size) {
+            return new EnqueueResult[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "EnqueueResult{" +
+                "mAccepted=" + mAccepted +
+                ", mDuplicate=" + mDuplicate +
+                ", mFailed=" + mFailed +
+                '}';
+    }
+}
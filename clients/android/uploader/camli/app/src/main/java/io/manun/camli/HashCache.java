@@ -0,0 +1,90 @@
+package io.manun.camli;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.util.Log;
+
+/*
+ * Persistent cache of URI -> blobref, so a file that hasn't changed since it
+ * was last hashed (same size & modification time) isn't read again.
+ */
+
+public class HashCache extends SQLiteOpenHelper {
+    private static final String TAG = HashCache.class.getName();
+
+    private static final String DB_NAME = "hashcache.db";
+    // 2: blobrefs instead of bare sha1 digests.
+    private static final int DB_VERSION = 2;
+
+    private static final String TABLE = "hashes";
+    private static final String COL_URI = "uri";
+    private static final String COL_SIZE = "size";
+    private static final String COL_MTIME = "mtime";
+    private static final String COL_BLOBREF = "blobref";
+
+    public HashCache(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (" +
+                COL_URI + " TEXT PRIMARY KEY, " +
+                COL_SIZE + " INTEGER NOT NULL, " +
+                COL_MTIME + " INTEGER NOT NULL, " +
+                COL_BLOBREF + " TEXT NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // It's only a cache; start over.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    // Returns the cached blobref of uri under hashName, or null if it was
+    // never hashed with it or has changed since. An mtime of 0 means
+    // unknown, which is never trusted.
+    public BlobRef lookup(Uri uri, long size, long mtime, String hashName) {
+        if (size < 0 || mtime <= 0) {
+            return null;
+        }
+        Cursor c = getReadableDatabase().query(TABLE,
+                new String[]{COL_SIZE, COL_MTIME, COL_BLOBREF},
+                COL_URI + " = ?", new String[]{uri.toString()},
+                null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            if (c.getLong(0) != size || c.getLong(1) != mtime) {
+                Log.d(TAG, "lookup: stale entry for " + uri);
+                return null;
+            }
+            BlobRef blobRef = BlobRef.parse(c.getString(2));
+            if (blobRef == null || !blobRef.getHashName().equals(hashName)) {
+                return null;
+            }
+            return blobRef;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void put(Uri uri, long size, long mtime, BlobRef blobRef) {
+        if (size < 0 || mtime <= 0) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(COL_URI, uri.toString());
+        values.put(COL_SIZE, size);
+        values.put(COL_MTIME, mtime);
+        values.put(COL_BLOBREF, blobRef.toString());
+        getWritableDatabase().insertWithOnConflict(TABLE, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+}
@@ -0,0 +1,127 @@
+package io.manun.camli;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Hashes many files at once, one per core.
+ *
+ * Each pool thread keeps one large read buffer for its lifetime, so the
+ * memory hashing can take is the number of threads times bufferBytes,
+ * which is kept under maxBufferBytes. Jobs queue up to two per thread
+ * beyond those running; past that, submit() blocks, so a bulk import
+ * can't pile up open files or work faster than the cores get through it.
+ */
+
+public class HashEngine {
+
+    static final int DEFAULT_BUFFER_BYTES = 256 * 1024;
+    static final long DEFAULT_MAX_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    // Work for the engine. buf is the running thread's buffer, only valid
+    // until run() returns.
+    public interface Job<V> {
+        V run(byte[] buf) throws Exception;
+    }
+
+    private final int mThreads;
+    private final int mBufferBytes;
+    private final ThreadPoolExecutor mExecutor;
+    private final Semaphore mSlots;
+
+    private final ThreadLocal<byte[]> mBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[mBufferBytes];
+        }
+    };
+
+    // One thread per core, as far as DEFAULT_MAX_BUFFER_BYTES of buffers
+    // allow.
+    public HashEngine() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BUFFER_BYTES,
+                DEFAULT_MAX_BUFFER_BYTES);
+    }
+
+    public HashEngine(int threads, int bufferBytes, long maxBufferBytes) {
+        if (threads < 1 || bufferBytes < 1 || maxBufferBytes < bufferBytes)
+            throw new IllegalArgumentException("need threads, bufferBytes >= 1 and " +
+                    "maxBufferBytes >= bufferBytes");
+        mThreads = (int) Math.min(threads, maxBufferBytes / bufferBytes);
+        mBufferBytes = bufferBytes;
+        mSlots = new Semaphore(3 * mThreads);
+        mExecutor = new ThreadPoolExecutor(mThreads, mThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HashEngine-" + mCount.incrementAndGet());
+                        // Hashing shouldn't compete with the UI.
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                });
+        // Idle threads go, and their buffers with them.
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    // Queues job, blocking while the engine is full. Throws
+    // RejectedExecutionException once shut down.
+    public <V> Future<V> submit(final Job<V> job) throws InterruptedException {
+        mSlots.acquire();
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return job.run(mBuffer.get());
+            }
+        }) {
+            // Run, failed or cancelled before it ran: the slot is free.
+            @Override
+            protected void done() {
+                mSlots.release();
+            }
+        };
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mSlots.release();
+            throw e;
+        }
+        return task;
+    }
+
+    // Lets queued jobs finish, then stops the threads.
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    // Blobref, under hashName, of fd from its current position to EOF, read
+    // through buf.
+    public static BlobRef hash(String hashName, FileDescriptor fd, byte[] buf)
+            throws IOException {
+        MessageDigest md = BlobRef.newDigest(hashName);
+        // Not closed: fd belongs to the caller.
+        FileInputStream in = new FileInputStream(fd);
+        for (int n; (n = in.read(buf)) != -1; ) {
+            md.update(buf, 0, n);
+        }
+        return BlobRef.of(hashName, md.digest());
+    }
+}
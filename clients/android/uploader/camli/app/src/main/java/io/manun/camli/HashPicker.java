@@ -0,0 +1,88 @@
+package io.manun.camli;
+
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Picks the hash new blobrefs are made with: the fastest, on this device,
+ * of the ones both BlobRef and the server support.
+ *
+ * Which is fastest depends on the device: SHA-256 is the quicker one on
+ * CPUs with the ARMv8 crypto extensions, SHA-1 on most without. Speeds
+ * are measured once per process, hashing a buffer in memory.
+ */
+
+public class HashPicker {
+
+    // Every server understands it, including ones too old to say what they
+    // support.
+    public static final String DEFAULT_HASH = "sha1";
+
+    private static final int MEASURE_BYTES = 256 * 1024;
+    private static final long MEASURE_NANOS = 50 * 1000 * 1000;
+    private static final int MEASURE_ROUNDS = 3;
+
+    // Guarded by HashPicker.class: MB/s by hash name.
+    private static Map<String, Double> sSpeeds = null;
+
+    // Returns the fastest hash among serverHashes, or DEFAULT_HASH if none
+    // are supported here or serverHashes is null (the server didn't say).
+    public static String pick(Collection<String> serverHashes) {
+        if (serverHashes == null) {
+            return DEFAULT_HASH;
+        }
+        return pick(serverHashes, speeds());
+    }
+
+    static String pick(Collection<String> serverHashes, Map<String, Double> speeds) {
+        String best = DEFAULT_HASH;
+        double bestSpeed = -1;
+        for (String hashName : serverHashes) {
+            Double speed = speeds.get(hashName);
+            if (BlobRef.isSupported(hashName) && speed != null && speed > bestSpeed) {
+                best = hashName;
+                bestSpeed = speed;
+            }
+        }
+        return best;
+    }
+
+    // MB/s of each supported hash, measured on first use.
+    static synchronized Map<String, Double> speeds() {
+        if (sSpeeds == null) {
+            Map<String, Double> speeds = new HashMap<>();
+            byte[] buf = new byte[MEASURE_BYTES];
+            // Best of a few rounds, taking turns, so a hash isn't judged on
+            // code the JIT hasn't compiled yet. Runs once, on a worker.
+            for (int round = 0; round < MEASURE_ROUNDS; round++) {
+                for (String hashName : BlobRef.hashNames()) {
+                    double speed = measure(hashName, buf, MEASURE_NANOS);
+                    Double prev = speeds.get(hashName);
+                    speeds.put(hashName, prev == null ? speed : Math.max(prev, speed));
+                }
+            }
+            sSpeeds = speeds;
+        }
+        return sSpeeds;
+    }
+
+    // Hashes buf under hashName for at least minNanos, after a warm-up
+    // pass, and returns MB/s.
+    static double measure(String hashName, byte[] buf, long minNanos) {
+        MessageDigest md = BlobRef.newDigest(hashName);
+        md.update(buf);
+        md.digest();
+        long bytes = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            md.update(buf);
+            bytes += buf.length;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < minNanos);
+        md.digest();
+        return bytes / (1024.0 * 1024.0) / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,75 @@
+package io.manun.camli;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Histogram of non-negative longs (latencies, sizes) in power-of-two
+ * buckets: bucket i holds values in [2^(i-1), 2^i), bucket 0 just 0. That
+ * is a fixed 65 longs however many values are recorded, at the price of
+ * percentiles only being good to within a factor of two. Thread-safe.
+ */
+
+public class Histogram {
+    private final long[] mBuckets = new long[65];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    // Negative values are recorded as 0.
+    public synchronized void record(long value) {
+        value = Math.max(0, value);
+        mBuckets[64 - Long.numberOfLeadingZeros(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public synchronized long count() {
+        return mCount;
+    }
+
+    public synchronized long sum() {
+        return mSum;
+    }
+
+    // 0 if empty.
+    public synchronized long min() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long max() {
+        return mMax;
+    }
+
+    // Upper bound of the bucket holding the p'th percentile (0 < p <= 100),
+    // capped at the largest value seen; 0 if empty.
+    public synchronized long percentile(double p) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p / 100 * mCount);
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length; i++) {
+            seen += mBuckets[i];
+            if (seen >= Math.max(1, rank)) {
+                long upper = i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.max(min(), Math.min(upper, mMax));
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        return new JSONObject()
+                .put("count", mCount)
+                .put("sum", mSum)
+                .put("min", min())
+                .put("max", mMax)
+                .put("p50", percentile(50))
+                .put("p90", percentile(90))
+                .put("p99", percentile(99));
+    }
+}
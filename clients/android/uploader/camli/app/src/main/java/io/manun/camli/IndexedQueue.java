@@ -0,0 +1,166 @@
+package io.manun.camli;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * FIFO queue of distinct elements with O(1) add and remove-by-element,
+ * where a consumer can lease the next batch of elements without copying the
+ * rest of the queue. Leased elements still count towards size() and still
+ * block duplicates, but aren't handed out again until they are released.
+ *
+ * Not thread-safe; UploadService guards it with its own lock.
+ */
+
+public class IndexedQueue<E> {
+
+    private static final class Node<E> {
+        final E value;
+        Node<E> prev;
+        Node<E> next;
+        boolean leased;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    private final HashMap<E, Node<E>> mIndex = new HashMap<>();
+
+    // Pending (unleased) nodes, oldest first.
+    private Node<E> mHead;
+    private Node<E> mTail;
+    private int mLeased = 0;
+
+    // Returns false if e is already queued or leased.
+    public boolean add(E e) {
+        if (e == null)
+            throw new NullPointerException("e == null");
+        if (mIndex.containsKey(e)) {
+            return false;
+        }
+        Node<E> node = new Node<>(e);
+        mIndex.put(e, node);
+        linkLast(node);
+        return true;
+    }
+
+    public boolean contains(E e) {
+        return mIndex.containsKey(e);
+    }
+
+    // Whether e is queued and leased.
+    public boolean isLeased(E e) {
+        Node<E> node = mIndex.get(e);
+        return node != null && node.leased;
+    }
+
+    // Removes e whether it's pending or leased.
+    public boolean remove(E e) {
+        Node<E> node = mIndex.remove(e);
+        if (node == null) {
+            return false;
+        }
+        if (node.leased) {
+            mLeased--;
+        } else {
+            unlink(node);
+        }
+        return true;
+    }
+
+    // Leases up to max of the oldest pending elements.
+    public List<E> lease(int max) {
+        List<E> batch = new ArrayList<>(Math.min(max, pendingSize()));
+        while (batch.size() < max && mHead != null) {
+            Node<E> node = mHead;
+            unlink(node);
+            node.leased = true;
+            mLeased++;
+            batch.add(node.value);
+        }
+        return batch;
+    }
+
+    // Hands leased elements back, ahead of everything still pending and in
+    // their original order. Elements that were removed meanwhile, or aren't
+    // leased, are ignored.
+    public void release(List<E> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            Node<E> node = mIndex.get(batch.get(i));
+            if (node == null || !node.leased) {
+                continue;
+            }
+            node.leased = false;
+            mLeased--;
+            linkFirst(node);
+        }
+    }
+
+    // Hands a leased element back behind everything pending, so the next
+    // leases get to the rest first. Returns false if e isn't leased.
+    public boolean requeue(E e) {
+        Node<E> node = mIndex.get(e);
+        if (node == null || !node.leased) {
+            return false;
+        }
+        node.leased = false;
+        mLeased--;
+        linkLast(node);
+        return true;
+    }
+
+    public int size() {
+        return mIndex.size();
+    }
+
+    public int pendingSize() {
+        return mIndex.size() - mLeased;
+    }
+
+    public int leasedSize() {
+        return mLeased;
+    }
+
+    public boolean isEmpty() {
+        return mIndex.isEmpty();
+    }
+
+    private void linkLast(Node<E> node) {
+        node.prev = mTail;
+        node.next = null;
+        if (mTail == null) {
+            mHead = node;
+        } else {
+            mTail.next = node;
+        }
+        mTail = node;
+    }
+
+    private void linkFirst(Node<E> node) {
+        node.prev = null;
+        node.next = mHead;
+        if (mHead == null) {
+            mTail = node;
+        } else {
+            mHead.prev = node;
+        }
+        mHead = node;
+    }
+
+    private void unlink(Node<E> node) {
+        if (node.prev == null) {
+            mHead = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            mTail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+    }
+}
@@ -34,6 +34,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -46,6 +48,10 @@ public class MainActivity extends AppCompatActivity {
 
     private final ArrayList<Uri> pendingUrisToUpload = new ArrayList<>();
 
+    // Enqueue calls block while the service hashes, so they're made here,
+    // one at a time, rather than on the main thread or a thread per URI.
+    private final ExecutorService enqueueExecutor = Executors.newSingleThreadExecutor();
+
     private final IStatusCallback.Stub statusCallback = new IStatusCallback.Stub() {
         @Override
         public void logToClient(String stuff) throws RemoteException {
@@ -56,6 +62,11 @@ public class MainActivity extends AppCompatActivity {
         public void onUploadStatusChange(boolean uploading) throws RemoteException {
             Log.d(TAG, "upload status change: " + uploading);
         }
+
+        @Override
+        public void onProgress(UploadProgress progress) throws RemoteException {
+            Log.d(TAG, "upload progress: " + progress);
+        }
     };
 
     private final ServiceConnection serviceConnection = new ServiceConnection() {
@@ -66,9 +77,7 @@ public class MainActivity extends AppCompatActivity {
             try {
                 serviceStub.registerCallback(statusCallback);
                 // Drain the queue from before the service was connected.
-                for (Uri uri : pendingUrisToUpload) {
-                    startDownloadOfUri(uri);
-                }
+                startDownloadOfUris(new ArrayList<>(pendingUrisToUpload));
                 pendingUrisToUpload.clear();
             } catch (RemoteException e) {
                 e.printStackTrace();
@@ -131,16 +140,24 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        enqueueExecutor.shutdown();
+        super.onDestroy();
+    }
+
     private void handleSendMultiple(Intent intent) {
         ArrayList<Parcelable> items = intent.
                 getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+        ArrayList<Uri> uris = new ArrayList<>();
         for (Parcelable p : items) {
             if (!(p instanceof Uri)) {
                 Log.d(TAG, "handleSendMultiple: unknown thing" + p);
                 continue;
             }
-            startDownloadOfUri((Uri) p);
+            uris.add((Uri) p);
         }
+        startDownloadOfUris(uris);
     }
 
     private void handleSend(Intent intent) {
@@ -159,34 +176,39 @@ public class MainActivity extends AppCompatActivity {
         }
 
         Uri uri = (Uri) streamValue;
-        startDownloadOfUri(uri);
+        startDownloadOfUris(Collections.singletonList(uri));
     }
 
-    private void startDownloadOfUri(final Uri uri) {
-        Log.d(TAG, "startDownloadOfUri: " + uri);
+    private void startDownloadOfUris(final List<Uri> uris) {
+        Log.d(TAG, "startDownloadOfUris: " + uris.size() + " files");
+        if (uris.isEmpty()) {
+            return;
+        }
         if (serviceStub == null) {
-            Log.d(TAG, "serviceStub is null in startDownloadOfUri, enqueuing");
-            pendingUrisToUpload.add(uri);
+            Log.d(TAG, "serviceStub is null in startDownloadOfUris, enqueuing");
+            pendingUrisToUpload.addAll(uris);
             return;
         }
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Handler handler = new Handler(Looper.getMainLooper()); // only parameter-less constructor is deprecated.
-        executor.execute(new Runnable() {
+        final IUploadService stub = serviceStub;
+        final Handler handler = new Handler(Looper.getMainLooper()); // only parameter-less constructor is deprecated.
+        enqueueExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 // Background work here.
+                EnqueueResult result = null;
                 try {
-                    serviceStub.enqueueUpload(uri);
+                    result = stub.enqueueUploads(uris);
                 } catch (RemoteException e) {
-                    Log.d(TAG, "failure to enqueue upload", e);
+                    Log.d(TAG, "failure to enqueue uploads", e);
                 }
 
+                final EnqueueResult finalResult = result;
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
                         // UI thread work here.
-                        Log.d(TAG, "UI thread");
+                        Log.d(TAG, "enqueueUploads: " + finalResult);
                     }
                 });
             }
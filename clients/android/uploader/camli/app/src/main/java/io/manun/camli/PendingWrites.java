@@ -0,0 +1,61 @@
+package io.manun.camli;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Adds and removes waiting to be written to a durable set (QueueStore's
+ * table), collapsed so each item has at most one pending write.
+ *
+ * A remove cancels a pending add only when that add is for an item that
+ * isn't on disk. An add that replaced a pending remove may be for a row
+ * that's still there, so a remove after it is kept: dropping it would
+ * leave the stale row behind.
+ *
+ * Callers add an item only when it isn't already in the set, and remove it
+ * only when it is, as UploadService does with its queues.
+ *
+ * Not thread-safe; QueueStore guards it with its own lock.
+ */
+
+public class PendingWrites<E> {
+
+    private enum Write {
+        ADD,
+        // An add that replaced a pending remove: the row may be on disk.
+        READD,
+        REMOVE,
+    }
+
+    // In arrival order.
+    private LinkedHashMap<E, Write> mWrites = new LinkedHashMap<>();
+
+    public void add(E item) {
+        Write pending = mWrites.remove(item);
+        mWrites.put(item, pending == null || pending == Write.ADD ? Write.ADD : Write.READD);
+    }
+
+    public void remove(E item) {
+        Write pending = mWrites.remove(item);
+        if (pending == Write.ADD) {
+            return; // never made it to disk; nothing to undo.
+        }
+        mWrites.put(item, Write.REMOVE);
+    }
+
+    public int size() {
+        return mWrites.size();
+    }
+
+    // Returns the pending writes in arrival order, true for an add (an
+    // insert that must ignore a row already there) and false for a
+    // remove, and forgets them.
+    public Map<E, Boolean> drain() {
+        Map<E, Boolean> writes = new LinkedHashMap<>();
+        for (Map.Entry<E, Write> e : mWrites.entrySet()) {
+            writes.put(e.getKey(), e.getValue() != Write.REMOVE);
+        }
+        mWrites = new LinkedHashMap<>();
+        return writes;
+    }
+}
@@ -0,0 +1,318 @@
+package io.manun.camli;
+
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * UploadTransport over one HttpClient and its connection pool, shared by
+ * every upload worker.
+ *
+ * Apache HttpClient 4.x only speaks HTTP/1.1, so each connection carries
+ * one request at a time and concurrency comes from the pool; a transport
+ * that multiplexes over HTTP/2 can be slotted in behind the same interface.
+ *
+ * Credentials go out preemptively with every request, rather than after a
+ * 401 challenge: answering a challenge means sending the request again,
+ * and an upload's multipart body would cross the wire twice (if it could
+ * be replayed at all). Once a preupload hands out a session token, that is
+ * sent instead of the password until it expires.
+ *
+ * Large request bodies wait for the server's "100 Continue" before they go
+ * out, so a server that is going to refuse the request (bad credentials,
+ * an expired upload URL, too big, disk full) can say so before the phone
+ * has sent any of it. Servers that don't answer within the wait get the
+ * body anyway; one that answers "417 Expectation Failed" isn't asked
+ * again.
+ */
+
+public class PooledHttpTransport implements UploadTransport {
+    private static final String TAG = PooledHttpTransport.class.getName();
+
+    // How long to keep an idle connection when the server doesn't say.
+    static final long DEFAULT_KEEP_ALIVE_MILLIS = 60 * 1000;
+
+    // How long to wait to connect, and for the server to say anything once
+    // connected; a server that's gone quiet this long isn't coming back.
+    // Writes don't time out, but a stop() aborts them.
+    static final int CONNECT_TIMEOUT_MILLIS = 20 * 1000;
+    static final int SOCKET_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Socket buffer size; see UploadThread.TRANSFER_BUFFER_BYTES.
+    private static final int SOCKET_BUFFER_BYTES = 64 * 1024;
+
+    // The server only checks the password.
+    private static final String USER = "TOD-DUMMY-USER";
+
+    // A token this close to expiring isn't used, in case the clocks differ.
+    private static final long AUTH_TOKEN_MARGIN_MILLIS = 30 * 1000;
+
+    // How long a request body waits for "100 Continue" by default. The
+    // same as HttpClient's.
+    static final int DEFAULT_EXPECT_CONTINUE_MILLIS = 3000;
+
+    // Smaller bodies are sent straight away: waiting would cost them a
+    // round trip, for little saved if they're refused.
+    static final long EXPECT_CONTINUE_MIN_BYTES = 64 * 1024;
+
+    // HttpContext attribute: the Authorization header a request went out with.
+    private static final String ATTR_AUTHORIZATION = "io.manun.camli.authorization";
+
+    // What token expiry is measured against: SystemClock.uptimeMillis(),
+    // except in tests, which run where there's no SystemClock.
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    static final Clock UPTIME = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    // android.util.Base64, not commons-codec: before API 23 the platform's
+    // own codec 1.3 shadows the app's, and it has no encodeBase64String().
+    static String basicAuth(String password) {
+        return "Basic " + Base64.encodeToString(
+                (USER + ":" + password).getBytes(Charset.forName("UTF-8")), Base64.NO_WRAP);
+    }
+
+    private final PoolingHttpClientConnectionManager mPool;
+    private final CloseableHttpClient mClient;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+
+    // 0 if bodies don't wait.
+    private final int mExpectContinueMillis;
+    private final Clock mClock;
+    // Set once the server answers "417 Expectation Failed".
+    private volatile boolean mExpectContinueRefused = false;
+
+    private final Header mBasicAuth;
+    // Guarded by 'this':
+    private Header mTokenAuth = null;
+    private long mTokenExpiresAtMillis = 0;
+
+    public PooledHttpTransport(String password, int maxConnections) {
+        this(password, maxConnections, DEFAULT_EXPECT_CONTINUE_MILLIS);
+    }
+
+    // Bodies of EXPECT_CONTINUE_MIN_BYTES or more wait up to
+    // expectContinueMillis for the server to accept the request; 0 sends
+    // every body straight away.
+    public PooledHttpTransport(String password, int maxConnections, int expectContinueMillis) {
+        this(basicAuth(password), maxConnections, expectContinueMillis, UPTIME);
+    }
+
+    // Takes the Authorization header for the password, as basicAuth()
+    // makes it: tests build it without android.util.Base64.
+    PooledHttpTransport(String basicAuth, int maxConnections, int expectContinueMillis,
+                        Clock clock) {
+        mExpectContinueMillis = Math.max(0, expectContinueMillis);
+        mClock = clock;
+        mBasicAuth = new BasicHeader("Authorization", basicAuth);
+        mPool = new PoolingHttpClientConnectionManager();
+        mPool.setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setBufferSize(SOCKET_BUFFER_BYTES)
+                .build());
+        mPool.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoTimeout(SOCKET_TIMEOUT_MILLIS)
+                .build());
+        setMaxConnections(maxConnections);
+
+        mClient = HttpClients.custom()
+                .setConnectionManager(mPool)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                        .setConnectionRequestTimeout(CONNECT_TIMEOUT_MILLIS)
+                        .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                        .build())
+                // Responses are small JSON; no need to ask for them gzipped.
+                .disableContentCompression()
+                .setRequestExecutor(new HttpRequestExecutor(Math.max(1, mExpectContinueMillis)) {
+                    @Override
+                    public HttpResponse execute(HttpRequest request, HttpClientConnection conn,
+                                                HttpContext context)
+                            throws IOException, HttpException {
+                        mRequests.incrementAndGet();
+                        // Metrics are per connection, and this runs before
+                        // the request is sent, so any count means it was
+                        // used before.
+                        if (conn.getMetrics().getRequestCount() > 0) {
+                            mReused.incrementAndGet();
+                        }
+                        return super.execute(request, conn, context);
+                    }
+                })
+                .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        long millis = super.getKeepAliveDuration(response, context);
+                        return millis > 0 ? millis : DEFAULT_KEEP_ALIVE_MILLIS;
+                    }
+                })
+                .addInterceptorLast(new HttpRequestInterceptor() {
+                    @Override
+                    public void process(HttpRequest request, HttpContext context) {
+                        if (!request.containsHeader("Authorization")) {
+                            Header auth = authorization();
+                            request.addHeader(auth);
+                            context.setAttribute(ATTR_AUTHORIZATION, auth);
+                        }
+                        if (shouldExpectContinue(request)) {
+                            request.addHeader(HTTP.EXPECT_DIRECTIVE, HTTP.EXPECT_CONTINUE);
+                        }
+                    }
+                })
+                .addInterceptorLast(new HttpResponseInterceptor() {
+                    @Override
+                    public void process(HttpResponse response, HttpContext context) {
+                        int status = response.getStatusLine().getStatusCode();
+                        if (status == HttpStatus.SC_UNAUTHORIZED) {
+                            onUnauthorized((Header) context.getAttribute(ATTR_AUTHORIZATION));
+                        } else if (status == HttpStatus.SC_EXPECTATION_FAILED &&
+                                !mExpectContinueRefused) {
+                            Log.w(TAG, "process: server refused Expect: 100-continue; " +
+                                    "not asking again.");
+                            mExpectContinueRefused = true;
+                        }
+                    }
+                })
+                .build();
+    }
+
+    private boolean shouldExpectContinue(HttpRequest request) {
+        if (mExpectContinueMillis == 0 || mExpectContinueRefused ||
+                !(request instanceof HttpEntityEnclosingRequest) ||
+                request.containsHeader(HTTP.EXPECT_DIRECTIVE)) {
+            return false;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        // A length of -1 (chunked) could be anything.
+        return entity != null && (entity.getContentLength() < 0 ||
+                entity.getContentLength() >= EXPECT_CONTINUE_MIN_BYTES);
+    }
+
+    @Override
+    public void setAuthToken(String token, long expiresAtMillis) {
+        synchronized (this) {
+            mTokenAuth = token == null ? null : new BasicHeader("Authorization",
+                    "Bearer " + token);
+            mTokenExpiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    // The session token while it's good, else the password.
+    private Header authorization() {
+        synchronized (this) {
+            if (mTokenAuth != null &&
+                    mClock.uptimeMillis() < mTokenExpiresAtMillis - AUTH_TOKEN_MARGIN_MILLIS) {
+                return mTokenAuth;
+            }
+            return mBasicAuth;
+        }
+    }
+
+    // A request sent with auth was refused. If that was the session token
+    // (the server restarted, say), later requests go back to the password.
+    private void onUnauthorized(Header auth) {
+        synchronized (this) {
+            if (auth != null && auth == mTokenAuth) {
+                Log.d(TAG, "onUnauthorized: session token refused; using the password.");
+                mTokenAuth = null;
+            } else if (auth == mBasicAuth) {
+                Log.w(TAG, "onUnauthorized: password refused.");
+            }
+        }
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest req) throws IOException {
+        // Aborted before it started, by a StopSignal that was already
+        // stopped: don't send it at all. The client checks again once it
+        // holds a connection, for an abort that lands meanwhile.
+        if (req.isAborted()) {
+            throw new InterruptedIOException("request aborted before it was sent");
+        }
+        try {
+            return mClient.execute(req);
+        } catch (InterruptedIOException e) {
+            // Aborting a request that's still waiting for a connection also
+            // interrupts the thread executing it. The exception says enough;
+            // the flag would only break that thread's next channel read.
+            if (req.isAborted()) {
+                Thread.interrupted();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void setMaxConnections(int max) {
+        mPool.setMaxTotal(max);
+        mPool.setDefaultMaxPerRoute(max);
+    }
+
+    @Override
+    public void closeIdleConnections(long idleMillis) {
+        mPool.closeExpiredConnections();
+        mPool.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long requestCount() {
+        return mRequests.get();
+    }
+
+    @Override
+    public long reusedConnectionCount() {
+        return mReused.get();
+    }
+
+    @Override
+    public int leasedConnectionCount() {
+        return mPool.getTotalStats().getLeased();
+    }
+
+    @Override
+    public void shutdown() {
+        Log.d(TAG, "shutdown: reused connections for " + mReused.get() + " of " +
+                mRequests.get() + " requests.");
+        try {
+            mClient.close();
+        } catch (IOException e) {
+            Log.w(TAG, "shutdown: ", e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package io.manun.camli;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A preupload response, parsed straight off the wire.
+ *
+ * The alreadyHave list can run to thousands of entries. Rather than
+ * slurping the body and building a JSONObject over it, it's streamed
+ * through a JsonReader, each entry going straight into a BlobRefMap of
+ * blobref -> size.
+ */
+
+public class PreUploadResponse {
+
+    private final BlobRefMap mHave = new BlobRefMap();
+
+    private String mUploadUrl = null;
+    private long mMaxUploadSize = 0;
+    private long mUploadUrlExpirationSeconds = 0;
+    private List<String> mSupportedHashes = null;
+    private List<String> mSupportedEncodings = null;
+    private String mAuthToken = null;
+    private long mAuthTokenExpirationSeconds = 0;
+
+    private PreUploadResponse() {
+    }
+
+    // Reads a preupload response from in, which is UTF-8 JSON. Throws
+    // IOException if it isn't well formed.
+    public static PreUploadResponse read(InputStream in) throws IOException {
+        PreUploadResponse res = new PreUploadResponse();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+        try {
+            res.parse(reader);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // A value of the wrong type where one was required.
+            throw new IOException("malformed preupload response: " + e.getMessage(), e);
+        }
+        return res;
+    }
+
+    // Whether the server said it has blobRef.
+    public boolean alreadyHas(BlobRef blobRef) {
+        return mHave.containsKey(blobRef);
+    }
+
+    // The size the server gave for blobRef, or 0.
+    public long alreadyHaveSize(BlobRef blobRef) {
+        return mHave.get(blobRef, 0);
+    }
+
+    public int alreadyHaveCount() {
+        return mHave.size();
+    }
+
+    // null if the server didn't give one.
+    public String getUploadUrl() {
+        return mUploadUrl;
+    }
+
+    // 0 if the server didn't say.
+    public long getMaxUploadSize() {
+        return mMaxUploadSize;
+    }
+
+    public long getUploadUrlExpirationSeconds() {
+        return mUploadUrlExpirationSeconds;
+    }
+
+    // Hash names the server accepts blobrefs of, or null if it didn't say,
+    // in which case it only takes sha1.
+    public List<String> getSupportedHashes() {
+        return mSupportedHashes;
+    }
+
+    // Content codings the server takes parts in, or null if it didn't
+    // say, in which case parts must go as they are.
+    public List<String> getSupportedEncodings() {
+        return mSupportedEncodings;
+    }
+
+    // Session token to send instead of the password until it expires, or
+    // null if the server didn't issue one.
+    public String getAuthToken() {
+        return mAuthToken;
+    }
+
+    public long getAuthTokenExpirationSeconds() {
+        return mAuthTokenExpirationSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "PreUploadResponse{" +
+                "alreadyHave=" + alreadyHaveCount() +
+                ", mUploadUrl='" + mUploadUrl + '\'' +
+                ", mMaxUploadSize=" + mMaxUploadSize +
+                ", mUploadUrlExpirationSeconds=" + mUploadUrlExpirationSeconds +
+                ", mSupportedHashes=" + mSupportedHashes +
+                ", mSupportedEncodings=" + mSupportedEncodings +
+                ", mAuthToken=" + (mAuthToken == null ? null : "<redacted>") +
+                ", mAuthTokenExpirationSeconds=" + mAuthTokenExpirationSeconds +
+                '}';
+    }
+
+    private void parse(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("alreadyHave")) {
+                readAlreadyHave(reader);
+            } else if (name.equals("uploadUrl")) {
+                mUploadUrl = readStringOrNull(reader);
+            } else if (name.equals("maxUploadSize")) {
+                mMaxUploadSize = readLong(reader);
+            } else if (name.equals("uploadUrlExpirationSeconds")) {
+                mUploadUrlExpirationSeconds = readLong(reader);
+            } else if (name.equals("supportedHashes")) {
+                mSupportedHashes = readStrings(reader);
+            } else if (name.equals("supportedEncodings")) {
+                mSupportedEncodings = readStrings(reader);
+            } else if (name.equals("authToken")) {
+                mAuthToken = readStringOrNull(reader);
+            } else if (name.equals("authTokenExpirationSeconds")) {
+                mAuthTokenExpirationSeconds = readLong(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readAlreadyHave(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue(); // null, most likely.
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            BlobRef blobRef = null;
+            long size = 0;
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("blobRef")) {
+                    blobRef = BlobRef.parse(readStringOrNull(reader));
+                } else if (name.equals("size")) {
+                    size = readLong(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (blobRef != null) {
+                mHave.put(blobRef, size);
+            }
+        }
+        reader.endArray();
+    }
+
+    // Reads a string, or skips a value of any other type and returns null.
+    private static String readStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.STRING) {
+            reader.skipValue();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    // Reads an array of strings, skipping anything else in it. Returns null
+    // if the value isn't an array.
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+        List<String> strings = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String s = readStringOrNull(reader);
+            if (s != null) {
+                strings.add(s);
+            }
+        }
+        reader.endArray();
+        return strings;
+    }
+
+    // Reads a number; null reads as 0.
+    private static long readLong(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+        if (reader.peek() != JsonToken.NUMBER) {
+            throw new IOException("malformed preupload response: expected a number");
+        }
+        return reader.nextLong();
+    }
+}
@@ -4,4 +4,28 @@ public class Preferences {
     public static final String NAME = "CamliUploader";
     public static final String HOST = "camli.host";
     public static final String PASSWORD = "camli.password";
+    public static final String UPLOAD_WORKERS = "camli.upload_workers";
+    // How long large uploads wait for the server to accept them before
+    // sending their body anyway; "0" doesn't wait.
+    public static final String EXPECT_CONTINUE_MILLIS = "camli.expect_continue_millis";
+    // When the backlog may go; one of UploadScheduler's POLICY_*.
+    public static final String BULK_POLICY = "camli.bulk_policy";
+    // Upload speed caps in KB/s and data budgets in MB, per class of
+    // network (see BandwidthLimiter); "" or "0" is unlimited.
+    public static final String WIFI_RATE_KB = "camli.wifi_rate_kb";
+    public static final String WIFI_DAILY_MB = "camli.wifi_daily_mb";
+    public static final String WIFI_MONTHLY_MB = "camli.wifi_monthly_mb";
+    public static final String CELLULAR_RATE_KB = "camli.cellular_rate_kb";
+    public static final String CELLULAR_DAILY_MB = "camli.cellular_daily_mb";
+    public static final String CELLULAR_MONTHLY_MB = "camli.cellular_monthly_mb";
+    public static final String ROAMING_RATE_KB = "camli.roaming_rate_kb";
+    public static final String ROAMING_DAILY_MB = "camli.roaming_daily_mb";
+    public static final String ROAMING_MONTHLY_MB = "camli.roaming_monthly_mb";
+    // What the budgets have used so far; see BandwidthLimiter.saveUsage().
+    public static final String BANDWIDTH_USAGE = "camli.bandwidth_usage";
+    // Whether blobs that compress well are sent compressed, to servers
+    // that take them so; on unless set false.
+    public static final String COMPRESS = "camli.compress";
+    // Blobref hash for new files, picked from what the server supports.
+    public static final String HASH = "camli.hash";
 }
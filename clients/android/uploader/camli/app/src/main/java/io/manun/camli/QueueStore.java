@@ -0,0 +1,178 @@
+package io.manun.camli;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Durable copy of the upload queue, so the backlog survives the process
+ * being killed.
+ *
+ * Adds and removes are buffered and committed together in one transaction
+ * on a background thread, either FLUSH_DELAY_MS after the first pending
+ * write or as soon as FLUSH_BATCH of them have piled up. A file that is
+ * added and removed within the same window never touches the disk; see
+ * PendingWrites. The price is that writes from the last FLUSH_DELAY_MS
+ * before a crash are lost; those files only need to be shared again.
+ */
+
+public class QueueStore extends SQLiteOpenHelper {
+    private static final String TAG = QueueStore.class.getName();
+
+    private static final String DB_NAME = "queue.db";
+    private static final int DB_VERSION = 1;
+
+    private static final String TABLE = "queue";
+    private static final String COL_ID = "_id";
+    private static final String COL_BLOBREF = "blobref";
+    private static final String COL_URI = "uri";
+
+    private static final long FLUSH_DELAY_MS = 500;
+    private static final int FLUSH_BATCH = 512;
+
+    private final ScheduledExecutorService mWriter =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Object mFlushLock = new Object();
+    private final Object mLock = new Object();
+
+    // Guarded by mLock.
+    private final PendingWrites<QueuedFile> mPending = new PendingWrites<>();
+    private boolean mFlushScheduled = false;
+    private boolean mClosed = false;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public QueueStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // The UNIQUE constraint doubles as the index removes look up by.
+        db.execSQL("CREATE TABLE " + TABLE + " (" +
+                COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COL_BLOBREF + " TEXT NOT NULL, " +
+                COL_URI + " TEXT NOT NULL, " +
+                "UNIQUE (" + COL_BLOBREF + ", " + COL_URI + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    // Returns the stored queue, oldest first.
+    public List<QueuedFile> load() {
+        List<QueuedFile> queue = new ArrayList<>();
+        Cursor c = getReadableDatabase().query(TABLE,
+                new String[]{COL_BLOBREF, COL_URI},
+                null, null, null, null, COL_ID);
+        try {
+            while (c.moveToNext()) {
+                String blobRef = c.getString(0);
+                Uri uri = Uri.parse(c.getString(1));
+                try {
+                    queue.add(QueuedFile.fromContentName(blobRef, uri));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "load: dropping bogus row " + blobRef + " " + uri, e);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log.d(TAG, "load: " + queue.size() + " queued files.");
+        return queue;
+    }
+
+    public void add(QueuedFile qf) {
+        enqueueWrite(qf, true);
+    }
+
+    public void remove(QueuedFile qf) {
+        enqueueWrite(qf, false);
+    }
+
+    private void enqueueWrite(QueuedFile qf, boolean add) {
+        synchronized (mLock) {
+            if (add) {
+                mPending.add(qf);
+            } else {
+                mPending.remove(qf);
+            }
+            if (mClosed) {
+                return; // close() does the final flush.
+            }
+            if (mPending.size() == FLUSH_BATCH) {
+                mWriter.execute(mFlush);
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mWriter.schedule(mFlush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void flush() {
+        synchronized (mFlushLock) {
+            Map<QueuedFile, Boolean> batch;
+            synchronized (mLock) {
+                batch = mPending.drain();
+                mFlushScheduled = false;
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE +
+                    " (" + COL_BLOBREF + ", " + COL_URI + ") VALUES (?, ?)");
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE +
+                    " WHERE " + COL_BLOBREF + " = ? AND " + COL_URI + " = ?");
+            db.beginTransaction();
+            try {
+                for (Map.Entry<QueuedFile, Boolean> e : batch.entrySet()) {
+                    QueuedFile qf = e.getKey();
+                    SQLiteStatement st = e.getValue() ? insert : delete;
+                    st.bindString(1, qf.getContentName());
+                    st.bindString(2, qf.getUri().toString());
+                    if (e.getValue()) {
+                        st.executeInsert();
+                    } else {
+                        st.executeUpdateDelete();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+                delete.close();
+            }
+            Log.d(TAG, "flush: committed " + batch.size() + " queue writes.");
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+        }
+        mWriter.shutdownNow();
+        flush();
+        super.close();
+    }
+}
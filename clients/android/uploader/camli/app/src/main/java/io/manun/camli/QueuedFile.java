@@ -2,31 +2,40 @@ package io.manun.camli;
 
 import android.net.Uri;
 
-import java.util.Objects;
-
 
 /*
- * Immutable tuple of content name sha1 & URI to upload.
+ * Immutable tuple of content blobref & URI to upload.
  */
 
 public class QueuedFile {
-    private final String mContentName;
+    private final BlobRef mBlobRef;
     private final Uri mUri;
 
 
-    public QueuedFile(String sha1, Uri uri) {
-        if (sha1 == null)
-            throw new NullPointerException("sha1 == null");
+    public QueuedFile(BlobRef blobRef, Uri uri) {
+        if (blobRef == null)
+            throw new NullPointerException("blobRef == null");
         if (uri == null)
             throw new NullPointerException("uri == null");
-        if (sha1.length() != 40)
-            throw new IllegalArgumentException("unexpected sha1 length");
-        mContentName = "sha1-" + sha1;
+        mBlobRef = blobRef;
         mUri = uri;
     }
 
+    // Inverse of getContentName(), for reloading a persisted queue.
+    static QueuedFile fromContentName(String contentName, Uri uri) {
+        BlobRef blobRef = BlobRef.parse(contentName);
+        if (blobRef == null)
+            throw new IllegalArgumentException("unexpected content name " + contentName);
+        return new QueuedFile(blobRef, uri);
+    }
+
+    public BlobRef getBlobRef() {
+        return mBlobRef;
+    }
+
+    // The blobref as a string, e.g. "sha256-...". Built on each call.
     public String getContentName() {
-        return mContentName;
+        return mBlobRef.toString();
     }
 
     public Uri getUri() {
@@ -38,19 +47,18 @@ public class QueuedFile {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         QueuedFile that = (QueuedFile) o;
-        return Objects.equals(mContentName, that.mContentName) &&
-                Objects.equals(mUri, that.mUri);
+        return mBlobRef.equals(that.mBlobRef) && mUri.equals(that.mUri);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(mContentName, mUri);
+        return 31 * mBlobRef.hashCode() + mUri.hashCode();
     }
 
     @Override
     public String toString() {
         return "QueuedFile{" +
-                "mContentName='" + mContentName + '\'' +
+                "mBlobRef=" + mBlobRef +
                 ", mUri=" + mUri +
                 '}';
     }
@@ -0,0 +1,114 @@
+package io.manun.camli;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Decides when failed uploads are tried again, and when to give up on one.
+ *
+ * Rounds that fail (the server is unreachable, say) back off exponentially
+ * with jitter, so workers on many devices don't come back in lockstep. Items
+ * that fail on their own are counted; after maxAttempts in a row they go to
+ * a dead-letter list instead of back into the queue, so a file the server
+ * keeps refusing can't hold up the ones behind it.
+ *
+ * Not thread-safe; UploadService guards it with its own lock.
+ */
+
+public class RetryScheduler<E> {
+
+    static final long DEFAULT_BASE_MILLIS = 2 * 1000;
+    static final long DEFAULT_MAX_MILLIS = 10 * 60 * 1000;
+    static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final int mMaxAttempts;
+    private final Random mRandom;
+
+    // Failures in a row, of items that haven't been dead-lettered.
+    private final HashMap<E, Integer> mFailures = new HashMap<>();
+    private final LinkedHashSet<E> mDeadLetters = new LinkedHashSet<>();
+    private int mRoundFailures = 0;
+
+    public RetryScheduler() {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS, DEFAULT_MAX_ATTEMPTS, new Random());
+    }
+
+    public RetryScheduler(long baseMillis, long maxMillis, int maxAttempts, Random random) {
+        if (baseMillis < 1 || maxMillis < baseMillis || maxAttempts < 1)
+            throw new IllegalArgumentException("need 1 <= baseMillis <= maxMillis and " +
+                    "maxAttempts >= 1");
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    // Records a failed round and returns how long to wait before the next.
+    public long onRoundFailed() {
+        mRoundFailures++;
+        return backoffMillis(mRoundFailures);
+    }
+
+    // Some round got something through: the next failure starts over.
+    public void onRoundDone() {
+        mRoundFailures = 0;
+    }
+
+    public int roundFailures() {
+        return mRoundFailures;
+    }
+
+    // Records that item failed. Returns true if that was its last attempt,
+    // in which case it's now a dead letter.
+    public boolean onItemFailed(E item) {
+        Integer failures = mFailures.get(item);
+        int n = failures == null ? 1 : failures + 1;
+        if (n < mMaxAttempts) {
+            mFailures.put(item, n);
+            return false;
+        }
+        mFailures.remove(item);
+        mDeadLetters.add(item);
+        return true;
+    }
+
+    // item got through, or was enqueued afresh: forgets its failures, and
+    // takes it off the dead-letter list.
+    public void onItemDone(E item) {
+        mFailures.remove(item);
+        mDeadLetters.remove(item);
+    }
+
+    // Failures in a row of item, if it's still being tried.
+    public int failures(E item) {
+        Integer failures = mFailures.get(item);
+        return failures == null ? 0 : failures;
+    }
+
+    public List<E> deadLetters() {
+        return new ArrayList<>(mDeadLetters);
+    }
+
+    // Empties the dead-letter list, returning what was on it, oldest first.
+    public List<E> takeDeadLetters() {
+        List<E> items = deadLetters();
+        mDeadLetters.clear();
+        return items;
+    }
+
+    // Wait after the n'th failure in a row (n >= 1): doubling from
+    // baseMillis up to maxMillis, less a random amount up to half of that.
+    long backoffMillis(int n) {
+        long cap = mMaxMillis;
+        if (n - 1 < 62 && mBaseMillis <= mMaxMillis >> (n - 1)) {
+            cap = mBaseMillis << (n - 1);
+        }
+        long half = cap / 2;
+        return cap - half + (long) (mRandom.nextDouble() * (half + 1));
+    }
+}
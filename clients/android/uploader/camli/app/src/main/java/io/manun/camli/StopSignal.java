@@ -0,0 +1,91 @@
+package io.manun.camli;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Asks an upload worker to stop, and makes it stop soon.
+ *
+ * A flag alone only takes effect the next time the worker looks at it,
+ * which can be a long while if it's blocked writing to a slow connection
+ * or waiting on the server. So requests are registered here while in
+ * flight, and stop() aborts them from the calling thread, which closes
+ * their connection and throws out of the blocked read or write. Loops
+ * over local data, like chunking a file, call throwIfStopped() as they
+ * go. The worker then unwinds through its usual finally blocks.
+ *
+ * Thread-safe.
+ */
+
+public class StopSignal {
+    private final AtomicBoolean mStopped = new AtomicBoolean(false);
+
+    // Guarded by 'this': requests to abort on stop().
+    private final LinkedHashSet<HttpUriRequest> mInFlight = new LinkedHashSet<>();
+
+    // Sets the flag and aborts everything in flight. Only the first call
+    // does anything.
+    public void stop() {
+        if (mStopped.getAndSet(true)) {
+            return;
+        }
+        List<HttpUriRequest> inFlight;
+        synchronized (this) {
+            inFlight = new ArrayList<>(mInFlight);
+            mInFlight.clear();
+        }
+        for (HttpUriRequest req : inFlight) {
+            req.abort();
+        }
+    }
+
+    public boolean isStopped() {
+        return mStopped.get();
+    }
+
+    // For loops over local data, which have no request to abort.
+    public void throwIfStopped() throws InterruptedIOException {
+        if (mStopped.get()) {
+            throw new InterruptedIOException("stopped");
+        }
+    }
+
+    // For loops like Util.transfer() that check a flag as they go.
+    AtomicBoolean flag() {
+        return mStopped;
+    }
+
+    // Aborts req on stop() until done(req) is called, or right away if
+    // already stopped, in which case UploadTransport.execute(req) throws
+    // InterruptedIOException without sending it.
+    public void abortOnStop(HttpUriRequest req) {
+        synchronized (this) {
+            // Checked under the lock: a stop() that's already taken its
+            // snapshot won't see req.
+            if (!mStopped.get()) {
+                mInFlight.add(req);
+                return;
+            }
+        }
+        req.abort();
+    }
+
+    // req is no longer in flight.
+    public void done(HttpUriRequest req) {
+        synchronized (this) {
+            mInFlight.remove(req);
+        }
+    }
+
+    // How many requests are registered; for tests.
+    int inFlightCount() {
+        synchronized (this) {
+            return mInFlight.size();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.manun.camli;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+/*
+ * Wakes UploadService when what its queued uploads wait for (a network, an
+ * unmetered one, a charger, the end of a coalescing delay) has come.
+ *
+ * JobScheduler rather than a timer and broadcast receivers: it runs the
+ * job in the same windows as other apps' work, doze maintenance windows
+ * included, so the radio comes up once for all of them. The job binds the
+ * service, which keeps it alive, asks it to run what it can, and finishes
+ * when its workers stop. There's only ever one job; scheduling another
+ * replaces it.
+ */
+
+public class UploadJobService extends JobService {
+    private static final String TAG = UploadJobService.class.getName();
+
+    private static final int JOB_ID = 1;
+
+    // Guarded by 'this':
+    private JobParameters mParams = null;
+    private Connection mConnection = null;
+
+    // Has the job run once plan's conditions hold.
+    static void schedule(Context context, UploadScheduler.Plan plan) {
+        JobInfo.Builder job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, UploadJobService.class))
+                .setRequiredNetworkType(plan.needUnmetered ? JobInfo.NETWORK_TYPE_UNMETERED :
+                        JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(plan.needCharging)
+                // The queue survives reboots, so the job has to as well.
+                .setPersisted(true);
+        if (plan.waitMillis > 0) {
+            job.setMinimumLatency(plan.waitMillis);
+        }
+        if (plan.deadlineMillis >= 0) {
+            job.setOverrideDeadline(Math.max(plan.waitMillis, plan.deadlineMillis));
+        }
+        scheduler(context).schedule(job.build());
+    }
+
+    static void cancel(Context context) {
+        scheduler(context).cancel(JOB_ID);
+    }
+
+    private static JobScheduler scheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Connection conn = new Connection();
+        synchronized (this) {
+            mParams = params;
+            mConnection = conn;
+        }
+        if (!bindService(new Intent(this, UploadService.class), conn, Context.BIND_AUTO_CREATE)) {
+            Log.w(TAG, "onStartJob: couldn't bind UploadService.");
+            finish(conn);
+            return false;
+        }
+        return true;
+    }
+
+    // The job was stopped before its workers were done: its conditions no
+    // longer hold, or the service replaced it. Asks for it to be run again,
+    // in case the service isn't around to schedule it.
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Connection conn;
+        synchronized (this) {
+            conn = mConnection;
+            mParams = null;
+            mConnection = null;
+        }
+        if (conn != null) {
+            conn.close();
+        }
+        return true;
+    }
+
+    // Ends the job conn was started for, unless it's already over.
+    private void finish(Connection conn) {
+        JobParameters params;
+        synchronized (this) {
+            if (mConnection != conn) {
+                return;
+            }
+            params = mParams;
+            mParams = null;
+            mConnection = null;
+        }
+        conn.close();
+        jobFinished(params, false);
+    }
+
+    private class Connection implements ServiceConnection {
+        // Guarded by 'this':
+        private IUploadService mService = null;
+        private boolean mBound = true;
+
+        private final IStatusCallback mCallback = new IStatusCallback.Stub() {
+            @Override
+            public void logToClient(String stuff) {
+            }
+
+            @Override
+            public void onUploadStatusChange(boolean uploading) {
+                if (!uploading) {
+                    finish(Connection.this);
+                }
+            }
+
+            @Override
+            public void onProgress(UploadProgress progress) {
+            }
+        };
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            IUploadService service = IUploadService.Stub.asInterface(binder);
+            synchronized (this) {
+                mService = service;
+            }
+            try {
+                service.registerCallback(mCallback);
+                // Checked after registering, so workers ending in between
+                // can't be missed.
+                if (service.runPending() && service.isUploading()) {
+                    return;
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "onServiceConnected: ", e);
+            }
+            finish(this);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            finish(this);
+        }
+
+        void close() {
+            IUploadService service;
+            synchronized (this) {
+                if (!mBound) {
+                    return;
+                }
+                mBound = false;
+                service = mService;
+            }
+            if (service != null) {
+                try {
+                    service.unregisterCallback(mCallback);
+                } catch (RemoteException e) {
+                    // Gone already.
+                }
+            }
+            unbindService(this);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package io.manun.camli;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters and histograms of what the upload pipeline does: how long
+ * hashing, preuploads and batches take, how big batches are, how fast
+ * they go, how often the server already had a file or a round had to
+ * be retried, and what compression saved.
+ *
+ * Recording is cheap enough for the upload path: bytes sent, counted on
+ * every write, are a lone atomic; everything else is per file or per
+ * request. progress() turns the counters into the snapshots sent to
+ * status callbacks, and dump() everything into JSON for offline analysis.
+ */
+
+public class UploadMetrics {
+
+    private final long mStartMillis;
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    // Guarded by 'this':
+    private long mFilesHashed = 0;
+    private long mHashBytes = 0;
+    private long mHashCacheHits = 0;
+    private long mPreUploads = 0;
+    private long mPreUploadFailures = 0;
+    private long mBatches = 0;
+    private long mBatchFailures = 0;
+    private long mFilesUploaded = 0;
+    private long mDedupHits = 0;
+    private long mDedupBytes = 0;
+    private long mCompressedBlobs = 0;
+    private long mCompressedRawBytes = 0;
+    private long mCompressedBytes = 0;
+    private long mRetries = 0;
+    private long mDeadLetters = 0;
+    // Bumped by every change above, so progress() can tell nothing did.
+    private long mVersion = 0;
+    // As of the last snapshot progress() returned.
+    private UploadProgress mLastProgress = null;
+    private long mLastVersion = -1;
+    private long mLastMillis = 0;
+
+    private final Histogram mHashMillis = new Histogram();
+    private final Histogram mPreUploadMillis = new Histogram();
+    private final Histogram mPreUploadBlobs = new Histogram();
+    private final Histogram mTransferMillis = new Histogram();
+    private final Histogram mAckMillis = new Histogram();
+    private final Histogram mBatchFiles = new Histogram();
+    private final Histogram mBatchBytes = new Histogram();
+    private final Histogram mThroughputKBps = new Histogram();
+
+    public UploadMetrics(long nowMillis) {
+        mStartMillis = nowMillis;
+        mLastMillis = nowMillis;
+    }
+
+    // A file of size bytes was hashed, in millis, or found in the hash cache.
+    public void onHashed(long size, long millis, boolean cached) {
+        synchronized (this) {
+            mFilesHashed++;
+            if (cached) {
+                mHashCacheHits++;
+            } else {
+                mHashBytes += size;
+                mHashMillis.record(millis);
+            }
+            mVersion++;
+        }
+    }
+
+    // A preupload asking about blobs blobrefs got its answer, or failed,
+    // after millis.
+    public void onPreUpload(int blobs, long millis, boolean ok) {
+        synchronized (this) {
+            mPreUploads++;
+            if (ok) {
+                mPreUploadMillis.record(millis);
+                mPreUploadBlobs.record(blobs);
+            } else {
+                mPreUploadFailures++;
+            }
+            mVersion++;
+        }
+    }
+
+    // An upload batch of files parts and bytes of file data was written in
+    // transferMillis, and the server answered ackMillis later (or failed).
+    public void onBatch(int files, long bytes, long transferMillis, long ackMillis,
+                        boolean ok) {
+        synchronized (this) {
+            mBatches++;
+            if (!ok) {
+                mBatchFailures++;
+                mVersion++;
+                return;
+            }
+            mBatchFiles.record(files);
+            mBatchBytes.record(bytes);
+            mTransferMillis.record(transferMillis);
+            mAckMillis.record(ackMillis);
+            if (transferMillis > 0) {
+                mThroughputKBps.record(bytes * 1000 / 1024 / transferMillis);
+            }
+            mVersion++;
+        }
+    }
+
+    // Called as upload request bodies are written to the connection.
+    public void onBytesSent(long bytes) {
+        mBytesSent.addAndGet(bytes);
+    }
+
+    public void onUploaded() {
+        synchronized (this) {
+            mFilesUploaded++;
+            mVersion++;
+        }
+    }
+
+    // The server already had a blob of size bytes, so it wasn't sent.
+    public void onDedupHit(long size) {
+        synchronized (this) {
+            mDedupHits++;
+            mDedupBytes += Math.max(0, size);
+            mVersion++;
+        }
+    }
+
+    // A blob of rawBytes went deflated, as compressedBytes.
+    public void onCompressed(long rawBytes, long compressedBytes) {
+        synchronized (this) {
+            mCompressedBlobs++;
+            mCompressedRawBytes += rawBytes;
+            mCompressedBytes += compressedBytes;
+            mVersion++;
+        }
+    }
+
+    // A round, or a file on its own, failed, and will be tried again.
+    public void onRetry() {
+        synchronized (this) {
+            mRetries++;
+            mVersion++;
+        }
+    }
+
+    // A file failed too often to be tried again.
+    public void onDeadLetter() {
+        synchronized (this) {
+            mDeadLetters++;
+            mVersion++;
+        }
+    }
+
+    public long bytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long dedupBytes() {
+        synchronized (this) {
+            return mDedupBytes;
+        }
+    }
+
+    // Snapshot for status callbacks, or null if nothing, queueSize and
+    // uploading included, changed since the last one. The rate is over the
+    // time since then.
+    public UploadProgress progress(long queueSize, boolean uploading, long nowMillis) {
+        long bytesSent = mBytesSent.get();
+        synchronized (this) {
+            UploadProgress last = mLastProgress;
+            if (last != null && mVersion == mLastVersion &&
+                    bytesSent == last.getBytesSent() && queueSize == last.getQueueSize() &&
+                    uploading == last.isUploading()) {
+                return null;
+            }
+            long elapsed = nowMillis - mLastMillis;
+            long lastBytes = last == null ? 0 : last.getBytesSent();
+            long rate = elapsed <= 0 ? 0 : (bytesSent - lastBytes) * 1000 / elapsed;
+            mLastProgress = new UploadProgress(queueSize, uploading, bytesSent, rate,
+                    mFilesUploaded, mDedupHits, mDedupBytes, mFilesHashed,
+                    mPreUploadFailures + mBatchFailures);
+            mLastVersion = mVersion;
+            mLastMillis = nowMillis;
+            return mLastProgress;
+        }
+    }
+
+    // Everything recorded so far, as JSON.
+    public String dump(long nowMillis) {
+        try {
+            synchronized (this) {
+                JSONObject counters = new JSONObject()
+                        .put("filesHashed", mFilesHashed)
+                        .put("hashBytes", mHashBytes)
+                        .put("hashCacheHits", mHashCacheHits)
+                        .put("preUploads", mPreUploads)
+                        .put("preUploadFailures", mPreUploadFailures)
+                        .put("batches", mBatches)
+                        .put("batchFailures", mBatchFailures)
+                        .put("filesUploaded", mFilesUploaded)
+                        .put("bytesSent", mBytesSent.get())
+                        .put("dedupHits", mDedupHits)
+                        .put("dedupBytes", mDedupBytes)
+                        .put("compressedBlobs", mCompressedBlobs)
+                        .put("compressedRawBytes", mCompressedRawBytes)
+                        .put("compressedBytes", mCompressedBytes)
+                        .put("retries", mRetries)
+                        .put("deadLetters", mDeadLetters);
+                JSONObject histograms = new JSONObject()
+                        .put("hashMillis", mHashMillis.toJSON())
+                        .put("preUploadMillis", mPreUploadMillis.toJSON())
+                        .put("preUploadBlobs", mPreUploadBlobs.toJSON())
+                        .put("transferMillis", mTransferMillis.toJSON())
+                        .put("ackMillis", mAckMillis.toJSON())
+                        .put("batchFiles", mBatchFiles.toJSON())
+                        .put("batchBytes", mBatchBytes.toJSON())
+                        .put("throughputKBps", mThroughputKBps.toJSON());
+                return new JSONObject()
+                        .put("uptimeMillis", nowMillis - mStartMillis)
+                        .put("counters", counters)
+                        .put("histograms", histograms)
+                        .toString();
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
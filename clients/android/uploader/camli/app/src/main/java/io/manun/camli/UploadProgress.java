@@ -0,0 +1,124 @@
+package io.manun.camli;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/*
+ * Snapshot of the service's upload progress, as sent to
+ * IStatusCallback.onProgress(). Counts are since the service started.
+ */
+
+public class UploadProgress implements Parcelable {
+
+    private final long mQueueSize;
+    private final boolean mUploading;
+    private final long mBytesSent;
+    private final long mBytesPerSecond;
+    private final long mFilesUploaded;
+    private final long mFilesSkipped;
+    private final long mBytesSkipped;
+    private final long mFilesHashed;
+    private final long mFailures;
+
+    public UploadProgress(long queueSize, boolean uploading, long bytesSent,
+                          long bytesPerSecond, long filesUploaded, long filesSkipped,
+                          long bytesSkipped, long filesHashed, long failures) {
+        mQueueSize = queueSize;
+        mUploading = uploading;
+        mBytesSent = bytesSent;
+        mBytesPerSecond = bytesPerSecond;
+        mFilesUploaded = filesUploaded;
+        mFilesSkipped = filesSkipped;
+        mBytesSkipped = bytesSkipped;
+        mFilesHashed = filesHashed;
+        mFailures = failures;
+    }
+
+    public long getQueueSize() {
+        return mQueueSize;
+    }
+
+    public boolean isUploading() {
+        return mUploading;
+    }
+
+    // Upload request body bytes sent, including batches that failed.
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    // Over the interval since the previous snapshot.
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public long getFilesUploaded() {
+        return mFilesUploaded;
+    }
+
+    // Files the server already had, and their bytes.
+    public long getFilesSkipped() {
+        return mFilesSkipped;
+    }
+
+    public long getBytesSkipped() {
+        return mBytesSkipped;
+    }
+
+    public long getFilesHashed() {
+        return mFilesHashed;
+    }
+
+    // Failed preuploads and upload batches.
+    public long getFailures() {
+        return mFailures;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mQueueSize);
+        dest.writeInt(mUploading ? 1 : 0);
+        dest.writeLong(mBytesSent);
+        dest.writeLong(mBytesPerSecond);
+        dest.writeLong(mFilesUploaded);
+        dest.writeLong(mFilesSkipped);
+        dest.writeLong(mBytesSkipped);
+        dest.writeLong(mFilesHashed);
+        dest.writeLong(mFailures);
+    }
+
+    public static final Creator<UploadProgress> CREATOR = new Creator<UploadProgress>() {
+        @Override
+        public UploadProgress createFromParcel(Parcel source) {
+            return new UploadProgress(source.readLong(), source.readInt() != 0,
+                    source.readLong(), source.readLong(), source.readLong(),
+                    source.readLong(), source.readLong(), source.readLong(),
+                    source.readLong());
+        }
+
+        @Override
+        public UploadProgress[] newArray(int size) {
+            return new UploadProgress[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "UploadProgress{" +
+                "mQueueSize=" + mQueueSize +
+                ", mUploading=" + mUploading +
+                ", mBytesSent=" + mBytesSent +
+                ", mBytesPerSecond=" + mBytesPerSecond +
+                ", mFilesUploaded=" + mFilesUploaded +
+                ", mFilesSkipped=" + mFilesSkipped +
+                ", mBytesSkipped=" + mBytesSkipped +
+                ", mFilesHashed=" + mFilesHashed +
+                ", mFailures=" + mFailures +
+                '}';
+    }
+}
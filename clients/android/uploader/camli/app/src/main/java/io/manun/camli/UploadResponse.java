@@ -0,0 +1,84 @@
+package io.manun.camli;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/*
+ * An upload response, streamed through a JsonReader like
+ * PreUploadResponse. All that's kept is the "received" list, the blobrefs
+ * the server stored, each going straight into a BlobRefSet.
+ */
+
+public class UploadResponse {
+
+    private UploadResponse() {
+    }
+
+    // Reads an upload response from in, which should be UTF-8 JSON, and
+    // returns the blobrefs it lists as received, or null if it has no
+    // received list. Throws MalformedJsonException if the body isn't an
+    // upload response at all (empty, say, or an error page), and
+    // IOException if reading it failed.
+    public static BlobRefSet readReceived(InputStream in, int expectedSize) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+        try {
+            return parse(reader, expectedSize);
+        } catch (IllegalStateException | NumberFormatException e) {
+            // A value of the wrong type where one was required.
+            throw new MalformedJsonException("malformed upload response: " + e.getMessage());
+        }
+    }
+
+    private static BlobRefSet parse(JsonReader reader, int expectedSize) throws IOException {
+        try {
+            reader.peek();
+        } catch (EOFException e) {
+            throw new MalformedJsonException("empty upload response");
+        }
+        BlobRefSet received = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("received") &&
+                    reader.peek() == JsonToken.BEGIN_ARRAY) {
+                received = new BlobRefSet(expectedSize);
+                readReceived(reader, received);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return received;
+    }
+
+    private static void readReceived(JsonReader reader, BlobRefSet received)
+            throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("blobRef") &&
+                        reader.peek() == JsonToken.STRING) {
+                    BlobRef blobRef = BlobRef.parse(reader.nextString());
+                    if (blobRef != null) {
+                        received.add(blobRef);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+}
@@ -0,0 +1,199 @@
+package io.manun.camli;
+
+/*
+ * Decides when queued uploads go out.
+ *
+ * Uploads come in two lanes. The fast lane, files shared with the app,
+ * goes as soon as there is any network at all: someone is waiting on it.
+ * The backlog (files enqueued in bulk, or left over from before a restart)
+ * waits for a network the bulk policy allows, and then goes in bursts: it
+ * piles up for a while, or until there's a lot of it, before workers
+ * start, and it rides along whenever something else has the radio up
+ * anyway. After every burst the radio stays in its high-power state for
+ * several seconds; a trickle of small uploads pays that tail over and
+ * over, a burst pays it once.
+ *
+ * Backlog that has waited MAX_DELAY_MILLIS goes over whatever network
+ * there is, so a policy nothing ever satisfies can't strand it; but never
+ * while roaming.
+ *
+ * Neither lane goes over a network whose BandwidthLimiter budget is
+ * spent: a metered one waits for Wi-Fi or the budget to renew, Wi-Fi for
+ * the budget to renew.
+ *
+ * Pure policy: callers pass in what the device is up to and the time (in
+ * SystemClock.elapsedRealtime(), which keeps counting in deep sleep), and
+ * UploadService turns the answer into workers or a JobScheduler job.
+ */
+
+public class UploadScheduler {
+
+    // Bulk policies, as stored under Preferences.BULK_POLICY.
+    public static final String POLICY_ANY = "any";
+    public static final String POLICY_UNMETERED = "unmetered";
+    public static final String POLICY_CHARGING = "charging";
+    public static final String DEFAULT_POLICY = POLICY_UNMETERED;
+
+    // Backlog this long goes without waiting out the coalescing delay.
+    static final int BURST_FILES = 64;
+    // How long backlog piles up before a burst on a metered network, where
+    // the radio's tail costs the most, and on an unmetered one. None while
+    // charging.
+    static final long COALESCE_METERED_MILLIS = 10 * 60 * 1000;
+    static final long COALESCE_UNMETERED_MILLIS = 30 * 1000;
+    static final long MAX_DELAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    // What the device is up to, as far as uploads care.
+    public static class Conditions {
+        final boolean connected;
+        final boolean unmetered;
+        final boolean roaming;
+        final boolean charging;
+        // -1 if the network's budget has room; else how long until it
+        // renews.
+        final long budgetRenewsMillis;
+
+        public Conditions(boolean connected, boolean unmetered, boolean roaming,
+                          boolean charging) {
+            this(connected, unmetered, roaming, charging, -1);
+        }
+
+        public Conditions(boolean connected, boolean unmetered, boolean roaming,
+                          boolean charging, long budgetRenewsMillis) {
+            this.connected = connected;
+            this.unmetered = connected && unmetered;
+            this.roaming = connected && roaming;
+            this.charging = charging;
+            this.budgetRenewsMillis = connected ? budgetRenewsMillis : -1;
+        }
+
+        @Override
+        public String toString() {
+            return "Conditions{" +
+                    "connected=" + connected +
+                    ", unmetered=" + unmetered +
+                    ", roaming=" + roaming +
+                    ", charging=" + charging +
+                    ", budgetRenewsMillis=" + budgetRenewsMillis +
+                    '}';
+        }
+    }
+
+    // Which lanes may run now, and, if anything is left waiting, what to
+    // wait for before asking again.
+    public static class Plan {
+        final boolean fastLane;
+        final boolean backlog;
+        // -1 if nothing is left waiting; else the least time to wait.
+        final long waitMillis;
+        final boolean needUnmetered;
+        final boolean needCharging;
+        // Ask again after this long whatever the conditions; -1 if never.
+        final long deadlineMillis;
+
+        Plan(boolean fastLane, boolean backlog, long waitMillis, boolean needUnmetered,
+             boolean needCharging, long deadlineMillis) {
+            this.fastLane = fastLane;
+            this.backlog = backlog;
+            this.waitMillis = waitMillis;
+            this.needUnmetered = needUnmetered;
+            this.needCharging = needCharging;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        boolean isWaiting() {
+            return waitMillis >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{" +
+                    "fastLane=" + fastLane +
+                    ", backlog=" + backlog +
+                    ", waitMillis=" + waitMillis +
+                    ", needUnmetered=" + needUnmetered +
+                    ", needCharging=" + needCharging +
+                    ", deadlineMillis=" + deadlineMillis +
+                    '}';
+        }
+    }
+
+    private final String mPolicy;
+
+    // Unknown policies get DEFAULT_POLICY.
+    public UploadScheduler(String policy) {
+        mPolicy = POLICY_ANY.equals(policy) || POLICY_UNMETERED.equals(policy) ||
+                POLICY_CHARGING.equals(policy) ? policy : DEFAULT_POLICY;
+    }
+
+    public String getPolicy() {
+        return mPolicy;
+    }
+
+    // fastLane and backlog are how many files each lane has queued;
+    // backlogSinceMillis is when the backlog last went from empty to not;
+    // uploading is whether workers are running already.
+    public Plan plan(Conditions c, int fastLane, int backlog, long backlogSinceMillis,
+                     boolean uploading, long nowMillis) {
+        if (c.budgetRenewsMillis >= 0 && (fastLane > 0 || backlog > 0)) {
+            // Some other network may have budget left, but only an
+            // unmetered one can be asked for.
+            return c.unmetered ? new Plan(false, false, c.budgetRenewsMillis, false, false, -1) :
+                    new Plan(false, false, 0, true, false, c.budgetRenewsMillis);
+        }
+        boolean runFast = fastLane > 0 && c.connected;
+        // Shares only need a network; waiting for more would keep the
+        // backlog from getting one.
+        boolean fastWaiting = fastLane > 0 && !c.connected;
+        if (backlog == 0) {
+            return fastWaiting ? waitForNetwork(false, false) : new Plan(runFast, false, -1,
+                    false, false, -1);
+        }
+
+        long age = Math.max(0, nowMillis - backlogSinceMillis);
+        boolean overdue = age >= MAX_DELAY_MILLIS;
+        boolean allowed = c.connected && !c.roaming && (overdue || allowedByPolicy(c));
+        if (allowed) {
+            long delay = c.charging ? 0 :
+                    c.unmetered ? COALESCE_UNMETERED_MILLIS : COALESCE_METERED_MILLIS;
+            // The radio's up already: no tail is saved by waiting.
+            if (runFast || uploading || backlog >= BURST_FILES || age >= delay) {
+                return new Plan(runFast, true, -1, false, false, -1);
+            }
+            return new Plan(runFast, false, delay - age, !overdue && needsUnmetered(),
+                    !overdue && needsCharging(), -1);
+        }
+        if (fastWaiting) {
+            return waitForNetwork(false, false);
+        }
+        // Waiting on a roaming network would only wake us to be turned
+        // down again; none is unmetered.
+        boolean needUnmetered = c.roaming || !overdue && needsUnmetered();
+        boolean needCharging = !overdue && needsCharging();
+        return new Plan(runFast, false, 0, needUnmetered, needCharging,
+                overdue ? -1 : MAX_DELAY_MILLIS - age);
+    }
+
+    private static Plan waitForNetwork(boolean unmetered, boolean charging) {
+        return new Plan(false, false, 0, unmetered, charging, -1);
+    }
+
+    private boolean allowedByPolicy(Conditions c) {
+        switch (mPolicy) {
+            case POLICY_ANY:
+                return true;
+            case POLICY_CHARGING:
+                return c.unmetered && c.charging;
+            default:
+                return c.unmetered;
+        }
+    }
+
+    private boolean needsUnmetered() {
+        return !POLICY_ANY.equals(mPolicy);
+    }
+
+    private boolean needsCharging() {
+        return POLICY_CHARGING.equals(mPolicy);
+    }
+}
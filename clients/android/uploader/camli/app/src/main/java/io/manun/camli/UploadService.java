@@ -1,37 +1,209 @@
 package io.manun.camli;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import org.apache.http.client.methods.HttpPost;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class UploadService extends Service {
 
     private static final String TAG = UploadService.class.getName();
 
+    private static final int DEFAULT_UPLOAD_WORKERS = 2;
+
+    // Progress goes to callbacks at most this often, however fast bytes go.
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    // Budget counts are saved at most this often while uploading, and when
+    // the last worker ends; a crash loses at most this long's.
+    private static final long USAGE_SAVE_INTERVAL_MS = 10 * 1000;
+
+    // The preferences loadSchedulingPreferences() reads.
+    private static final Set<String> SCHEDULING_PREFERENCES = new HashSet<>(Arrays.asList(
+            Preferences.BULK_POLICY,
+            Preferences.WIFI_RATE_KB, Preferences.WIFI_DAILY_MB, Preferences.WIFI_MONTHLY_MB,
+            Preferences.CELLULAR_RATE_KB, Preferences.CELLULAR_DAILY_MB,
+            Preferences.CELLULAR_MONTHLY_MB,
+            Preferences.ROAMING_RATE_KB, Preferences.ROAMING_DAILY_MB,
+            Preferences.ROAMING_MONTHLY_MB));
+
     // Guarded by 'this':
-    private boolean mUploading = false;
-    private UploadThread mUploadThread = null;
-    private final Set<QueuedFile> mQueueSet = new HashSet<>();
-    private final LinkedList<QueuedFile> mQueueList = new LinkedList<>();
+    private final List<UploadThread> mUploadThreads = new ArrayList<>();
+    // Shared by every worker and kept between bursts of uploads, so their
+    // connections stay warm; only replaced when the server or password
+    // changes.
+    private UploadTransport mTransport = null;
+    private String mTransportConfig = null;
+    // The last upload URL a preupload response gave; see updateUploadUrl().
+    private UploadUrl mUploadUrl = null;
+    // The fast lane: files shared with the app, sent as soon as there's a
+    // network. See UploadScheduler.
+    private final IndexedQueue<QueuedFile> mQueue = new IndexedQueue<>();
+    // Everything else, sent in bursts when the bulk policy allows.
+    private final IndexedQueue<QueuedFile> mBacklog = new IndexedQueue<>();
+    // When mBacklog last went from empty to not, in elapsedRealtime().
+    private long mBacklogSinceMillis = 0;
+    // As of the last replan(); leaseAhead() only hands out backlog if it
+    // says so.
+    private UploadScheduler.Plan mPlan = null;
+    // Set by pause(), so workers ending don't start others; cleared by
+    // resume() and enqueuing.
+    private boolean mPaused = false;
+    // Runs broadcastProgress() while any worker is; null when none is.
+    private ScheduledExecutorService mProgressTicker = null;
+    // Failed rounds and files; see onRoundFailed() and onUploadFailed().
+    private final RetryScheduler<QueuedFile> mRetries = new RetryScheduler<>();
+    // Restarts workers once a failed round's backoff is over; while it's
+    // pending, nothing else starts them except resume().
+    private ScheduledFuture<?> mRetryFuture = null;
+    // Loaded by hashName(), then set from what the server supports.
+    private String mHashName = null;
+    // Whether the server inflates deflate-encoded parts, from the last
+    // preupload response.
+    private boolean mServerInflates = false;
+    // The network and battery as of the last broadcast, with no budget;
+    // see refreshConditions(). Cached so replan(), under the lock, needn't
+    // ask the system.
+    private UploadScheduler.Conditions mConditions =
+            new UploadScheduler.Conditions(false, false, false, false);
+    // The class of network uploads count against, from mConditions.
+    private int mNetworkClass = BandwidthLimiter.NETWORK_WIFI;
+    // For the bulk policy preference; see loadSchedulingPreferences().
+    private UploadScheduler mScheduler = new UploadScheduler(UploadScheduler.DEFAULT_POLICY);
+    private long mUsageSavedMillis = 0;
+
+    private final BatchPolicy mBatchPolicy = new BatchPolicy();
+
+    // Every worker's bytes go through it; limits are set by
+    // loadSchedulingPreferences().
+    private final BandwidthLimiter mLimiter = new BandwidthLimiter();
+
+    // Hashes a file per core. Once it's full, enqueuing blocks, which
+    // pushes back on whoever is enqueuing so fast.
+    private final HashEngine mHashEngine = new HashEngine();
+
+    private final ScheduledExecutorService mRetryTimer =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final UploadMetrics mMetrics = new UploadMetrics(SystemClock.uptimeMillis());
+    private final RemoteCallbackList<IStatusCallback> mCallbacks = new RemoteCallbackList<>();
+    // Only touched by broadcastProgress(), on the ticker's one thread.
+    private boolean mLastUploading = false;
+
+    private HashCache mHashCache;
+    private QueueStore mQueueStore;
+
+    private final BroadcastReceiver mConditionsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean battery = Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction());
+            if (refreshConditions(battery ? intent : null)) {
+                schedule();
+            }
+        }
+    };
+
+    // Kept in a field: SharedPreferences only holds its listeners weakly.
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+                    if (SCHEDULING_PREFERENCES.contains(key)) {
+                        loadSchedulingPreferences(sp);
+                        schedule();
+                    }
+                }
+            };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHashCache = new HashCache(this);
+        mQueueStore = new QueueStore(this);
+        SharedPreferences sp = getSharedPreferences(Preferences.NAME, 0);
+        mLimiter.loadUsage(sp.getString(Preferences.BANDWIDTH_USAGE, ""),
+                System.currentTimeMillis());
+        loadSchedulingPreferences(sp);
+        sp.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        // The battery broadcast is sticky, so registering returns it.
+        refreshConditions(registerReceiver(mConditionsReceiver, filter));
+
+        // Pick up whatever was still queued when the process last died, as
+        // backlog: whoever shared it has likely stopped waiting.
+        List<QueuedFile> stored = mQueueStore.load();
+        synchronized (this) {
+            for (QueuedFile qf : stored) {
+                addBacklog(qf);
+            }
+            schedule();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mConditionsReceiver);
+        getSharedPreferences(Preferences.NAME, 0)
+                .unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+        mHashEngine.shutdown();
+        mRetryTimer.shutdownNow();
+        synchronized (this) {
+            if (mTransport != null) {
+                mTransport.shutdown();
+                mTransport = null;
+            }
+            if (mProgressTicker != null) {
+                mProgressTicker.shutdownNow();
+                mProgressTicker = null;
+            }
+        }
+        mCallbacks.kill();
+        saveUsage(true);
+        mHashCache.close();
+        mQueueStore.close();
+        super.onDestroy();
+    }
 
     @Nullable
     @Override
@@ -39,27 +211,327 @@ public class UploadService extends Service {
         return service;
     }
 
-    // Called by UploadThread to get stuff to do, Caller owns returned list.
-    LinkedList<QueuedFile> uploadQueue() {
+    // Called by UploadThread to get stuff to do: leases up to max queued
+    // files no other worker has leased, or this worker's fair share of them
+    // if that's fewer, so a short queue still spreads over every worker.
+    // Caller owns returned list and must hand it back with releaseLease()
+    // once it's done with the batch. An empty batch means the worker has
+    // been retired and must exit; retiring it under the same lock means a
+    // file enqueued meanwhile can't be left without a worker.
+    List<QueuedFile> leaseBatch(UploadThread worker, int max) {
+        synchronized (this) {
+            // Conditions may have changed since the last batch.
+            replan();
+            List<QueuedFile> batch = leaseAhead(max);
+            if (batch.isEmpty()) {
+                onUploadThreadEnding(worker);
+            }
+            return batch;
+        }
+    }
+
+    // Like leaseBatch(), but for a worker looking ahead while it still has a
+    // batch in hand: an empty batch doesn't retire it. Each lane is only
+    // leased from if the plan lets it go, the fast lane first.
+    List<QueuedFile> leaseAhead(int max) {
         synchronized (this) {
-            return new LinkedList<>(mQueueList);
+            boolean fastLane = mPlan != null && mPlan.fastLane;
+            boolean backlog = mPlan != null && mPlan.backlog;
+            int pending = (fastLane ? mQueue.pendingSize() : 0) +
+                    (backlog ? mBacklog.pendingSize() : 0);
+            int workers = Math.max(1, mUploadThreads.size());
+            int share = Math.min(max, (pending + workers - 1) / workers);
+            List<QueuedFile> batch = fastLane ? mQueue.lease(share) : new ArrayList<>();
+            if (backlog && batch.size() < share) {
+                batch.addAll(mBacklog.lease(share - batch.size()));
+            }
+            return batch;
         }
     }
 
-    void onUploadThreadEnding() {
+    // Returns the batch's files that weren't completed to the queue.
+    void releaseLease(List<QueuedFile> batch) {
         synchronized (this) {
-            mUploadThread = null;
-            mUploading = false;
+            mQueue.release(batch);
+            mBacklog.release(batch);
+        }
+    }
+
+    void onUploadThreadEnding(UploadThread worker) {
+        synchronized (this) {
+            if (!mUploadThreads.remove(worker)) {
+                return;
+            }
+            Log.d(TAG, "onUploadThreadEnding: " + mUploadThreads.size() + " workers left.");
+            if (mUploadThreads.isEmpty() && mProgressTicker != null) {
+                // One last event, so callbacks see the upload end.
+                mProgressTicker.execute(mBroadcastProgress);
+                mProgressTicker.shutdown();
+                mProgressTicker = null;
+            }
+            if (mUploadThreads.isEmpty() && mTransport != null) {
+                Log.d(TAG, "onUploadThreadEnding: reused connections for " +
+                        mTransport.reusedConnectionCount() + " of " +
+                        mTransport.requestCount() + " requests.");
+                // Idle connections may go stale long before the next burst;
+                // the server's keep-alive decides what's worth keeping.
+                mTransport.closeIdleConnections(PooledHttpTransport.DEFAULT_KEEP_ALIVE_MILLIS);
+            }
+            if (mUploadThreads.isEmpty()) {
+                saveUsage(true);
+                // Whatever's left waits for its conditions.
+                schedule();
+            }
         }
     }
 
     void onUploadComplete(QueuedFile qf) {
+        mMetrics.onUploaded();
+        dequeue(qf);
+    }
+
+    // Called by UploadThread when the server already has qf's blob, so none
+    // of its size bytes needed to be sent.
+    void onUploadSkipped(QueuedFile qf, long size) {
+        mMetrics.onDedupHit(size);
+        Log.d(TAG, "onUploadSkipped: server already has " + qf + "; bytesSkipped="
+                + mMetrics.dedupBytes());
+        dequeue(qf);
+    }
+
+    private void dequeue(QueuedFile qf) {
         synchronized (this) {
-            boolean removedSet = mQueueSet.remove(qf);
-            boolean removedList = mQueueList.remove(qf); //TODO: ghetto, linter
-            // scan
-            Log.d(TAG, "onUploadComplete: removing of" + qf + "; removedSet="
-                    + removedSet + "; removedList=" + removedList);
+            mRetries.onItemDone(qf);
+            // The server's taking uploads again.
+            mRetries.onRoundDone();
+            boolean removed = mQueue.remove(qf) || mBacklog.remove(qf);
+            mQueueStore.remove(qf);
+            Log.d(TAG, "dequeue: removing of" + qf + "; removed=" + removed);
+        }
+    }
+
+    // Called by UploadThread when qf couldn't be opened or read, or the
+    // server refused it on its own. It goes to the back of the queue, or,
+    // after too many failures in a row, to the dead letters: out of the
+    // queue until retryDeadLetters(), a restart, or being enqueued again.
+    void onUploadFailed(QueuedFile qf) {
+        synchronized (this) {
+            if (mRetries.onItemFailed(qf)) {
+                if (!mQueue.remove(qf)) {
+                    mBacklog.remove(qf);
+                }
+                mMetrics.onDeadLetter();
+                Log.w(TAG, "onUploadFailed: giving up on " + qf);
+            } else {
+                if (!mQueue.requeue(qf)) {
+                    mBacklog.requeue(qf);
+                }
+                mMetrics.onRetry();
+                Log.d(TAG, "onUploadFailed: " + qf + " failed " + mRetries.failures(qf) +
+                        " times.");
+            }
+        }
+    }
+
+    // Called by UploadThread before it ends on a failed round: workers are
+    // restarted after a backoff that grows with every round in a row that
+    // fails. A round cut short by a spent budget wasn't the server's fault;
+    // schedule() holds uploads until it renews.
+    void onRoundFailed() {
+        synchronized (this) {
+            if (mRetryFuture != null) {
+                return; // another worker's failure already scheduled it.
+            }
+            if (mLimiter.renewsInMillis(mNetworkClass, System.currentTimeMillis()) >= 0) {
+                Log.d(TAG, "onRoundFailed: " + BandwidthLimiter.name(mNetworkClass) +
+                        " budget spent.");
+                return;
+            }
+            mMetrics.onRetry();
+            long delay = mRetries.onRoundFailed();
+            Log.d(TAG, "onRoundFailed: " + mRetries.roundFailures() +
+                    " failed rounds in a row; retrying in " + delay + "ms.");
+            try {
+                mRetryFuture = mRetryTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (UploadService.this) {
+                            mRetryFuture = null;
+                            schedule();
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
+    }
+
+    BatchPolicy batchPolicy() {
+        return mBatchPolicy;
+    }
+
+    UploadMetrics metrics() {
+        return mMetrics;
+    }
+
+    BandwidthLimiter limiter() {
+        return mLimiter;
+    }
+
+    // The class of network a batch starting now counts against.
+    int networkClass() {
+        synchronized (this) {
+            return mNetworkClass;
+        }
+    }
+
+    // Persists the budget counts if they changed: now if force, else at
+    // most every USAGE_SAVE_INTERVAL_MS.
+    private void saveUsage(boolean force) {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (!force && now - mUsageSavedMillis < USAGE_SAVE_INTERVAL_MS) {
+                return;
+            }
+            mUsageSavedMillis = now;
+            String usage = mLimiter.saveUsage();
+            if (usage != null) {
+                getSharedPreferences(Preferences.NAME, 0).edit()
+                        .putString(Preferences.BANDWIDTH_USAGE, usage).apply();
+            }
+        }
+    }
+
+    // Records the upload URL from a preupload response, if it had one, and
+    // returns the latest one that hasn't expired, or null. Shared by all
+    // workers, so a response that leaves the URL out can still be used.
+    UploadUrl updateUploadUrl(UploadUrl latest) {
+        synchronized (this) {
+            if (latest != null) {
+                mUploadUrl = latest;
+            }
+            if (mUploadUrl != null && !mUploadUrl.isFresh(SystemClock.uptimeMillis())) {
+                mUploadUrl = null;
+            }
+            return mUploadUrl;
+        }
+    }
+
+    // The server said url has expired: forgets it, if it's still the one
+    // updateUploadUrl() hands out, so the next preupload's is used instead.
+    void onUploadUrlExpired(String url) {
+        synchronized (this) {
+            if (mUploadUrl != null && mUploadUrl.getUrl().equals(url)) {
+                mUploadUrl = null;
+            }
+        }
+    }
+
+    // The hash new files are hashed with.
+    String hashName() {
+        synchronized (this) {
+            if (mHashName == null) {
+                SharedPreferences sp = getSharedPreferences(Preferences.NAME, 0);
+                String hashName = sp.getString(Preferences.HASH, HashPicker.DEFAULT_HASH);
+                mHashName = BlobRef.isSupported(hashName) ? hashName : HashPicker.DEFAULT_HASH;
+            }
+            return mHashName;
+        }
+    }
+
+    // Called by UploadThread with the hashes a preupload response says the
+    // server supports (null if it didn't say): switches new files to the
+    // fastest of them on this device.
+    void onServerHashes(List<String> serverHashes) {
+        // Measures hash speeds the first time; not under the lock.
+        String picked = HashPicker.pick(serverHashes);
+        synchronized (this) {
+            if (picked.equals(hashName())) {
+                return;
+            }
+            Log.d(TAG, "onServerHashes: hashing new files with " + picked + ", was " +
+                    mHashName);
+            mHashName = picked;
+            getSharedPreferences(Preferences.NAME, 0).edit()
+                    .putString(Preferences.HASH, picked).apply();
+        }
+    }
+
+    // Called by UploadThread with the content codings a preupload response
+    // says the server takes parts in (null if it didn't say).
+    void onServerEncodings(List<String> serverEncodings) {
+        synchronized (this) {
+            mServerInflates = serverEncodings != null &&
+                    serverEncodings.contains(Compressor.DEFLATE);
+        }
+    }
+
+    // The content coding to send compressible blobs in, or null to send
+    // every blob as it is.
+    String contentEncoding() {
+        synchronized (this) {
+            if (!mServerInflates) {
+                return null;
+            }
+        }
+        SharedPreferences sp = getSharedPreferences(Preferences.NAME, 0);
+        return sp.getBoolean(Preferences.COMPRESS, true) ? Compressor.DEFLATE : null;
+    }
+
+    // Sends callbacks a progress snapshot, if anything changed since the
+    // last, and onUploadStatusChange() if uploading started or stopped.
+    // Always on the ticker thread, so callbacks see events in order.
+    private final Runnable mBroadcastProgress = new Runnable() {
+        @Override
+        public void run() {
+            saveUsage(false);
+            int queueSize;
+            boolean uploading;
+            synchronized (UploadService.this) {
+                queueSize = mQueue.size() + mBacklog.size();
+                uploading = !mUploadThreads.isEmpty();
+            }
+            UploadProgress progress = mMetrics.progress(queueSize, uploading,
+                    SystemClock.uptimeMillis());
+            boolean statusChanged = uploading != mLastUploading;
+            mLastUploading = uploading;
+            if (progress == null && !statusChanged) {
+                return;
+            }
+            int n = mCallbacks.beginBroadcast();
+            try {
+                for (int i = 0; i < n; i++) {
+                    IStatusCallback cb = mCallbacks.getBroadcastItem(i);
+                    try {
+                        if (statusChanged) {
+                            cb.onUploadStatusChange(uploading);
+                        }
+                        if (progress != null) {
+                            cb.onProgress(progress);
+                        }
+                    } catch (RemoteException e) {
+                        // Dead; RemoteCallbackList drops it by itself.
+                    }
+                }
+            } finally {
+                mCallbacks.finishBroadcast();
+            }
+        }
+    };
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mMetrics.dump(SystemClock.uptimeMillis()));
+        synchronized (this) {
+            writer.println("fast lane: " + mQueue.size() + " files; backlog: " +
+                    mBacklog.size() + " files, since " +
+                    (SystemClock.elapsedRealtime() - mBacklogSinceMillis) + "ms ago");
+            writer.println("plan: " + mPlan + (mPaused ? " (paused)" : ""));
+            writer.println(mLimiter.dump(System.currentTimeMillis()));
+            for (QueuedFile qf : mRetries.deadLetters()) {
+                writer.println("dead letter: " + qf);
+            }
         }
     }
 
@@ -71,84 +543,486 @@ public class UploadService extends Service {
 
             if (!hp.isValid()) return false;
 
-            ParcelFileDescriptor pfd = getFileDescriptor(uri);
-            if (pfd == null) {
+            try {
+                mHashEngine.submit(new HashEngine.Job<Void>() {
+                    @Override
+                    public Void run(byte[] buf) {
+                        QueuedFile qf = hash(uri, buf);
+                        if (qf != null) {
+                            enqueue(Collections.singletonList(qf), false);
+                        }
+                        return null;
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "enqueueUpload: service shutting down; dropping " + uri);
                 return false;
             }
+            return true;
+        }
+
+        @Override
+        public EnqueueResult enqueueUploads(List<Uri> uris) throws RemoteException {
+            SharedPreferences sp = getSharedPreferences(Preferences.NAME, 0);
+            HostPort hp = new HostPort(sp.getString(Preferences.HOST, ""));
 
-            String sha1 = Util.getSha1(pfd.getFileDescriptor());
-            Log.d(TAG, "sha1 of file is: " + sha1);
-            Log.d(TAG, "size of file is: " + pfd.getStatSize());
-            QueuedFile qf = new QueuedFile(sha1, uri);
+            if (!hp.isValid()) return null;
 
+            return hashAndEnqueue(uris, false);
+        }
+
+        @Override
+        public EnqueueResult enqueueBacklog(List<Uri> uris) throws RemoteException {
+            SharedPreferences sp = getSharedPreferences(Preferences.NAME, 0);
+            HostPort hp = new HostPort(sp.getString(Preferences.HOST, ""));
+
+            if (!hp.isValid()) return null;
+
+            return hashAndEnqueue(uris, true);
+        }
+
+        @Override
+        public boolean runPending() throws RemoteException {
             synchronized (UploadService.this) {
-                if (mQueueSet.contains(qf)) {
-                    return false;
-                }
-                mQueueSet.add(qf);
-                mQueueList.add(qf);
-                if (!mUploading) {
-                    resume();
-                }
+                schedule();
+                return !mUploadThreads.isEmpty();
             }
-            return true;
         }
 
         @Override
         public void registerCallback(IStatusCallback ob) throws RemoteException {
-
+            if (ob != null) {
+                mCallbacks.register(ob);
+            }
         }
 
         @Override
         public void unregisterCallback(IStatusCallback ob) throws RemoteException {
+            if (ob != null) {
+                mCallbacks.unregister(ob);
+            }
+        }
 
+        @Override
+        public List<Uri> getDeadLetters() throws RemoteException {
+            synchronized (UploadService.this) {
+                List<Uri> uris = new ArrayList<>();
+                for (QueuedFile qf : mRetries.deadLetters()) {
+                    uris.add(qf.getUri());
+                }
+                return uris;
+            }
+        }
+
+        @Override
+        public int retryDeadLetters() throws RemoteException {
+            List<QueuedFile> files;
+            synchronized (UploadService.this) {
+                files = mRetries.takeDeadLetters();
+            }
+            return enqueue(files, false);
+        }
+
+        @Override
+        public String dumpMetrics() throws RemoteException {
+            return mMetrics.dump(SystemClock.uptimeMillis());
         }
 
         @Override
         public int queueSize() throws RemoteException {
             synchronized (UploadService.this) {
-                return mQueueList.size();
+                return mQueue.size() + mBacklog.size();
             }
         }
 
         @Override
         public boolean isUploading() throws RemoteException {
             synchronized (UploadService.this) {
-                return mUploading;
+                return !mUploadThreads.isEmpty();
             }
         }
 
         @Override
         public boolean pause() throws RemoteException {
             synchronized (UploadService.this) {
-                if (mUploadThread != null) {
-                    mUploadThread.stopPlease();
-                    return true;
+                mPaused = true;
+                // Nor should a failed round's retry restart them.
+                if (mRetryFuture != null) {
+                    mRetryFuture.cancel(false);
+                    mRetryFuture = null;
                 }
-                return false;
+                for (UploadThread worker : mUploadThreads) {
+                    worker.stopPlease();
+                }
+                return !mUploadThreads.isEmpty();
             }
         }
 
         @Override
         public boolean resume() throws RemoteException {
             synchronized (UploadService.this) {
-                if (mUploadThread != null) {
-                    return false;
-                }
-                mUploading = true;
-                SharedPreferences sp = getSharedPreferences(Preferences.NAME, 0);
-                HostPort hp = new HostPort(sp.getString(Preferences.HOST, ""));
-                if (!hp.isValid()) {
-                    return false;
+                // Asked for: no waiting out a backoff.
+                if (mRetryFuture != null) {
+                    mRetryFuture.cancel(false);
+                    mRetryFuture = null;
                 }
-                String password = sp.getString(Preferences.PASSWORD, "");
-                mUploadThread = new UploadThread(UploadService.this, hp, password);
-                mUploadThread.start();
-                return true;
+                mPaused = false;
+                boolean idle = mUploadThreads.isEmpty();
+                schedule();
+                return idle && !mUploadThreads.isEmpty();
             }
         }
     };
 
+    // Hashes uris on mHashEngine, then adds them to the queue all at once:
+    // to the backlog, or else the fast lane.
+    private EnqueueResult hashAndEnqueue(List<Uri> uris, boolean backlog) {
+        Set<Uri> distinct = new LinkedHashSet<>(uris);
+        int duplicate = uris.size() - distinct.size();
+        int failed = 0;
+        boolean interrupted = false;
+        List<Future<QueuedFile>> hashing = new ArrayList<>(distinct.size());
+        for (final Uri uri : distinct) {
+            if (interrupted) {
+                failed++;
+                continue;
+            }
+            try {
+                hashing.add(mHashEngine.submit(new HashEngine.Job<QueuedFile>() {
+                    @Override
+                    public QueuedFile run(byte[] buf) {
+                        return hash(uri, buf);
+                    }
+                }));
+            } catch (InterruptedException e) {
+                // Stop submitting, but collect what was.
+                interrupted = true;
+                failed++;
+            } catch (RejectedExecutionException e) {
+                failed++;
+            }
+        }
+        List<QueuedFile> files = new ArrayList<>(hashing.size());
+        for (Future<QueuedFile> f : hashing) {
+            QueuedFile qf = null;
+            while (true) {
+                try {
+                    qf = f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Keep waiting: the files are being hashed either way.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "hashAndEnqueue: hashing failed", e.getCause());
+                    break;
+                }
+            }
+            if (qf == null) {
+                failed++;
+            } else {
+                files.add(qf);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        int accepted = enqueue(files, backlog);
+        duplicate += files.size() - accepted;
+        Log.d(TAG, "hashAndEnqueue: " + accepted + " accepted, " + duplicate +
+                " duplicate, " + failed + " failed.");
+        return new EnqueueResult(accepted, duplicate, failed);
+    }
+
+    // Runs on mHashEngine: hashes uri through buf, unless the hash cache
+    // already knows it. Returns null if uri can't be read.
+    private QueuedFile hash(Uri uri, byte[] buf) {
+        ParcelFileDescriptor pfd = getFileDescriptor(uri);
+        if (pfd == null) {
+            return null;
+        }
+        long size = pfd.getStatSize();
+        long mtime = getLastModified(uri);
+        String hashName = hashName();
+        BlobRef blobRef = mHashCache.lookup(uri, size, mtime, hashName);
+        try {
+            if (blobRef == null) {
+                long timeStarted = SystemClock.uptimeMillis();
+                blobRef = HashEngine.hash(hashName, pfd.getFileDescriptor(), buf);
+                mMetrics.onHashed(size, SystemClock.uptimeMillis() - timeStarted, false);
+                mHashCache.put(uri, size, mtime, blobRef);
+                Log.d(TAG, "blobref of file is: " + blobRef);
+            } else {
+                mMetrics.onHashed(size, 0, true);
+                Log.d(TAG, "blobref of file (cached) is: " + blobRef);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "hash: error reading " + uri, e);
+            return null;
+        } finally {
+            try {
+                pfd.close();
+            } catch (IOException e) {
+                Log.w(TAG, "hash: error closing " + uri, e);
+            }
+        }
+        Log.d(TAG, "size of file is: " + size);
+        return new QueuedFile(blobRef, uri);
+    }
+
+    // Adds files to the backlog or the fast lane under one lock, then
+    // schedules them. Files that failed before start over; backlog files
+    // shared again move to the fast lane, unless they're being uploaded
+    // already. Returns how many were new.
+    private int enqueue(List<QueuedFile> files, boolean backlog) {
+        synchronized (this) {
+            int added = 0;
+            for (QueuedFile qf : files) {
+                mRetries.onItemDone(qf);
+                if (backlog) {
+                    if (!mQueue.contains(qf) && addBacklog(qf)) {
+                        mQueueStore.add(qf);
+                        added++;
+                    }
+                } else if (mBacklog.contains(qf)) {
+                    if (!mBacklog.isLeased(qf)) {
+                        mBacklog.remove(qf);
+                        mQueue.add(qf);
+                    }
+                } else if (mQueue.add(qf)) {
+                    mQueueStore.add(qf);
+                    added++;
+                }
+            }
+            mPaused = false;
+            schedule();
+            return added;
+        }
+    }
+
+    private boolean addBacklog(QueuedFile qf) {
+        if (mBacklog.isEmpty()) {
+            mBacklogSinceMillis = SystemClock.elapsedRealtime();
+        }
+        return mBacklog.add(qf);
+    }
+
+    // Asks UploadScheduler what may go now, given the device's conditions
+    // and what's left of the bandwidth budgets. Only reads what's cached:
+    // it runs under the lock, on every lease.
+    private UploadScheduler.Plan replan() {
+        synchronized (this) {
+            UploadScheduler.Conditions conditions = new UploadScheduler.Conditions(
+                    mConditions.connected, mConditions.unmetered, mConditions.roaming,
+                    mConditions.charging,
+                    mLimiter.renewsInMillis(mNetworkClass, System.currentTimeMillis()));
+            mPlan = mScheduler.plan(conditions, mQueue.pendingSize(), mBacklog.pendingSize(),
+                    mBacklogSinceMillis, !mUploadThreads.isEmpty(), SystemClock.elapsedRealtime());
+            return mPlan;
+        }
+    }
+
+    // Starts workers if the plan lets anything go now. With none running,
+    // whatever's left waiting gets a job to wake the service when its
+    // conditions come; the job isn't touched while workers run, so a
+    // burst the job started isn't stopped by rescheduling it. Does nothing
+    // while paused, or while a failed round's backoff is pending: its
+    // timer calls back here.
+    private void schedule() {
+        synchronized (this) {
+            if (mPaused || mRetryFuture != null) {
+                return;
+            }
+            UploadScheduler.Plan plan = replan();
+            if ((plan.fastLane && mQueue.pendingSize() > 0) ||
+                    (plan.backlog && mBacklog.pendingSize() > 0)) {
+                startUploadWorkers();
+            }
+            if (!mUploadThreads.isEmpty()) {
+                return;
+            }
+            Log.d(TAG, "schedule: " + plan);
+            if (plan.isWaiting()) {
+                UploadJobService.schedule(this, plan);
+            } else {
+                UploadJobService.cancel(this);
+            }
+        }
+    }
+
+    // Updates mConditions from the active network and, if given, a battery
+    // broadcast; without one, charging stays as the last one said. Asks
+    // the system outside the lock. Returns true if anything changed.
+    private boolean refreshConditions(@Nullable Intent battery) {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm == null ? null : cm.getActiveNetworkInfo();
+        boolean connected = network != null && network.isConnected();
+        boolean unmetered = connected && !cm.isActiveNetworkMetered();
+        boolean roaming = connected && network.isRoaming();
+        synchronized (this) {
+            boolean charging = battery == null ? mConditions.charging :
+                    battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            UploadScheduler.Conditions old = mConditions;
+            if (connected == old.connected && unmetered == old.unmetered &&
+                    roaming == old.roaming && charging == old.charging) {
+                return false;
+            }
+            mConditions = new UploadScheduler.Conditions(connected, unmetered, roaming,
+                    charging);
+            mNetworkClass = BandwidthLimiter.networkClass(unmetered, roaming);
+            Log.d(TAG, "refreshConditions: " + mConditions);
+            return true;
+        }
+    }
+
+    // Reads the bulk policy and the bandwidth limits; called when the
+    // service starts and whenever one of them changes.
+    private void loadSchedulingPreferences(SharedPreferences sp) {
+        UploadScheduler scheduler = new UploadScheduler(sp.getString(Preferences.BULK_POLICY,
+                UploadScheduler.DEFAULT_POLICY));
+        BandwidthLimiter.Limits wifi = getLimits(sp, Preferences.WIFI_RATE_KB,
+                Preferences.WIFI_DAILY_MB, Preferences.WIFI_MONTHLY_MB);
+        BandwidthLimiter.Limits cellular = getLimits(sp, Preferences.CELLULAR_RATE_KB,
+                Preferences.CELLULAR_DAILY_MB, Preferences.CELLULAR_MONTHLY_MB);
+        BandwidthLimiter.Limits roaming = getLimits(sp, Preferences.ROAMING_RATE_KB,
+                Preferences.ROAMING_DAILY_MB, Preferences.ROAMING_MONTHLY_MB);
+        synchronized (this) {
+            mScheduler = scheduler;
+            mLimiter.setLimits(BandwidthLimiter.NETWORK_WIFI, wifi);
+            mLimiter.setLimits(BandwidthLimiter.NETWORK_CELLULAR, cellular);
+            mLimiter.setLimits(BandwidthLimiter.NETWORK_ROAMING, roaming);
+        }
+    }
+
+    // Starts upload workers until the configured number are running, all
+    // sharing one transport. Returns true if any were started.
+    private boolean startUploadWorkers() {
+        synchronized (this) {
+            SharedPreferences sp = getSharedPreferences(Preferences.NAME, 0);
+            HostPort hp = new HostPort(sp.getString(Preferences.HOST, ""));
+            if (!hp.isValid()) {
+                return false;
+            }
+            String password = sp.getString(Preferences.PASSWORD, "");
+            int workers = getUploadWorkers(sp);
+            if (mUploadThreads.size() >= workers) {
+                return false;
+            }
+            // Each worker can have a preupload in flight alongside an upload.
+            int maxConnections = 2 * workers;
+            int expectContinueMillis = getExpectContinueMillis(sp);
+            String config = hp + "\n" + password + "\n" + expectContinueMillis;
+            if (mTransport == null ||
+                    (mUploadThreads.isEmpty() && !config.equals(mTransportConfig))) {
+                if (mTransport != null) {
+                    mTransport.shutdown();
+                }
+                mTransport = new PooledHttpTransport(password, maxConnections,
+                        expectContinueMillis);
+                mTransportConfig = config;
+                mUploadUrl = null;
+            } else {
+                mTransport.setMaxConnections(maxConnections);
+            }
+            if (mProgressTicker == null) {
+                mProgressTicker = Executors.newSingleThreadScheduledExecutor();
+                mProgressTicker.scheduleAtFixedRate(mBroadcastProgress, 0,
+                        PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            while (mUploadThreads.size() < workers) {
+                UploadThread worker = new UploadThread(this, hp, mTransport);
+                mUploadThreads.add(worker);
+                worker.start();
+            }
+            Log.d(TAG, "startUploadWorkers: " + workers + " workers running.");
+            return true;
+        }
+    }
+
+    private static int getUploadWorkers(SharedPreferences sp) {
+        String value = sp.getString(Preferences.UPLOAD_WORKERS, "");
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return DEFAULT_UPLOAD_WORKERS;
+        }
+    }
+
+    private static int getExpectContinueMillis(SharedPreferences sp) {
+        String value = sp.getString(Preferences.EXPECT_CONTINUE_MILLIS, "");
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return PooledHttpTransport.DEFAULT_EXPECT_CONTINUE_MILLIS;
+        }
+    }
+
+    private static BandwidthLimiter.Limits getLimits(SharedPreferences sp, String rateKey,
+                                                     String dailyKey, String monthlyKey) {
+        return new BandwidthLimiter.Limits(getLong(sp, rateKey) * 1024,
+                getLong(sp, dailyKey) * 1024 * 1024, getLong(sp, monthlyKey) * 1024 * 1024);
+    }
+
+    // A number stored as a string, as EditTextPreference does; 0 if unset
+    // or not a number.
+    private static long getLong(SharedPreferences sp, String key) {
+        String value = sp.getString(key, "").trim();
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Returns uri's last modification time in milliseconds, or 0 if the
+    // provider doesn't say.
+    private long getLastModified(Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            return new File(uri.getPath()).lastModified();
+        }
+        Cursor c;
+        try {
+            c = getContentResolver().query(uri, null, null, null, null);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "getLastModified: query failed for " + uri, e);
+            return 0;
+        }
+        if (c == null) {
+            return 0;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return 0;
+            }
+            int col = c.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (col >= 0 && !c.isNull(col)) {
+                return c.getLong(col);
+            }
+            col = c.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+            if (col >= 0 && !c.isNull(col)) {
+                return c.getLong(col) * 1000; // seconds
+            }
+            return 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    // Returns uri's MIME type, or null if the provider doesn't say.
+    public String getType(Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            return URLConnection.guessContentTypeFromName(uri.getPath());
+        }
+        try {
+            return getContentResolver().getType(uri);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "getType: failed for " + uri, e);
+            return null;
+        }
+    }
+
     public ParcelFileDescriptor getFileDescriptor(Uri uri) {
         ContentResolver cr = getContentResolver();
         try {
@@ -3,134 +3,788 @@ package io.manun.camli;
 import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequestFactory;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.DefaultHttpRequestFactory;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
 
 public class UploadThread extends Thread {
     private static final String TAG = UploadThread.class.getName();
 
+    // How many queued files to claim per preupload/upload round.
+    private static final int LEASE_SIZE = 256;
+
+    // Files over LARGE_FILE_BYTES (or the server's maxUploadSize) are sent
+    // as content-defined chunks plus a manifest, so a dropped connection
+    // only costs the chunks in flight and an edit only the chunks it touched.
+    private static final long LARGE_FILE_BYTES = 16 * 1024 * 1024;
+
+    // File data goes from the descriptor to the connection in reads and
+    // writes of this size, which is also PooledHttpTransport's socket
+    // buffer size; writes this large skip HttpClient's session buffer and
+    // go straight to the socket.
+    private static final int TRANSFER_BUFFER_BYTES = 64 * 1024;
+
+    // Each request gets a fresh multipart boundary of this many characters
+    // from BOUNDARY_CHARS: part bodies, deflated ones especially, can hold
+    // any bytes, so a fixed boundary could turn up inside one.
+    private static final int BOUNDARY_LENGTH = 40;
+    private static final String BOUNDARY_CHARS =
+            "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final UploadService mService;
     private final HostPort mHostPort;
+    // Files leased for the current round that haven't been sent yet.
     private LinkedList<QueuedFile> mQueue;
+    // Batches leased from the service and not yet handed back; whatever is
+    // left here when run() ends, however it ends, goes back to the queue.
+    private final List<List<QueuedFile>> mLeases = new ArrayList<>();
 
-    private final AtomicBoolean mStopRequested = new AtomicBoolean(false);
+    private final StopSignal mStop = new StopSignal();
 
-    private final DefaultHttpClient mUA = new DefaultHttpClient();
+    private final UploadTransport mTransport;
+    private final byte[] mTransferBuf = new byte[TRANSFER_BUFFER_BYTES];
+    // Deflates compressible blobs; sampling them reads their heads into
+    // mTransferBuf and their middles into mSampleBuf.
+    private final Compressor mCompressor = new Compressor();
+    private final byte[] mSampleBuf = new byte[Compressor.SAMPLE_BYTES];
 
-    public UploadThread(UploadService mService, HostPort mHostPort, String mPassword) {
+    public UploadThread(UploadService mService, HostPort mHostPort, UploadTransport transport) {
         this.mService = mService;
         this.mHostPort = mHostPort;
-        this.mQueue = mService.uploadQueue();
-
-        CredentialsProvider creds = new BasicCredentialsProvider();
-        creds.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials("TOD-DUMMY-USER",
-                mPassword));
-        mUA.setCredentialsProvider(creds);
+        this.mTransport = transport;
     }
 
+    // Stops the worker soon: requests in flight are aborted from this
+    // thread, and the worker hands its leases back and ends as it unwinds.
     public void stopPlease() {
-        mStopRequested.set(false);
+        mStop.stop();
     }
 
     @Override
     public void run() {
-        if (!mHostPort.isValid())
+        if (!mHostPort.isValid()) {
+            mService.onUploadThreadEnding(this);
             return;
+        }
         Log.d(TAG, "Running UploadThread for " + mHostPort);
 
-        while (!(mQueue = mService.uploadQueue()).isEmpty()) {
-            Log.d(TAG, "run: Starting pre-upload of" + mQueue.size() + "files.");
-            JSONObject preUpload = doPreUpload();
-            if (preUpload == null) {
-                Log.w(TAG, "run: Preupload failed. ending UploadThread.");
-                mService.onUploadThreadEnding();
+        ExecutorService preUploader = Executors.newSingleThreadExecutor();
+        try {
+            pipeline(preUploader);
+        } finally {
+            preUploader.shutdownNow();
+            mCompressor.release();
+            // Even if pipeline() threw: the service mustn't count a worker
+            // that's gone, or leave its files leased to it.
+            for (List<QueuedFile> batch : new ArrayList<>(mLeases)) {
+                release(batch);
+            }
+            mService.onUploadThreadEnding(this);
+        }
+    }
+
+    // Notes batch as this worker's until release(batch).
+    private List<QueuedFile> leased(List<QueuedFile> batch) {
+        mLeases.add(batch);
+        return batch;
+    }
+
+    // Hands batch's files that weren't completed back to the queue.
+    private void release(List<QueuedFile> batch) {
+        for (int i = 0; i < mLeases.size(); i++) {
+            if (mLeases.get(i) == batch) {
+                mLeases.remove(i);
+                mService.releaseLease(batch);
                 return;
             }
+        }
+    }
 
-            Log.d(TAG, "run: Starting upload of" + mQueue.size() + "files.");
-            if (!doUpload(preUpload)) {
-                Log.w(TAG, "run: Upload failed, ending UploadThread.");
-                mService.onUploadThreadEnding();
+    // Uploads leased batches until the queue runs dry or a round fails.
+    // While one batch streams, the next is already leased and its preupload
+    // is in flight on preUploader, so a round only waits for a preupload
+    // round trip when the previous upload was quicker than it.
+    private void pipeline(ExecutorService preUploader) {
+        List<QueuedFile> batch = leased(mService.leaseBatch(this, LEASE_SIZE));
+        if (batch.isEmpty()) {
+            Log.d(TAG, "run: Queue empty; done.");
+            return;
+        }
+        Future<PreUploadResponse> preUpload = preUploadAsync(preUploader, batch);
+        while (true) {
+            if (mStop.isStopped()) {
+                stopped(preUpload, batch);
+                return;
+            }
+            List<QueuedFile> next = leased(mService.leaseAhead(LEASE_SIZE));
+            Future<PreUploadResponse> nextPreUpload = null;
+            if (!next.isEmpty()) {
+                nextPreUpload = preUploadAsync(preUploader, next);
+            }
+
+            mQueue = new LinkedList<>(batch);
+            boolean ok;
+            try {
+                ok = doRound(await(preUpload));
+            } finally {
+                // Whatever wasn't completed goes back for a later round.
+                release(batch);
+            }
+            if (mStop.isStopped()) {
+                stopped(nextPreUpload, next);
+                return;
+            }
+            if (!ok) {
+                mService.onRoundFailed();
+                if (nextPreUpload != null) {
+                    nextPreUpload.cancel(true);
+                }
+                release(next);
                 return;
             }
-            Log.d(TAG, "run: Did upload. Queue size is now " + mQueue.size() + "files.");
+
+            if (next.isEmpty()) {
+                // Picks up what this round handed back, or what was enqueued
+                // meanwhile; leaseBatch() retires this worker if there's none.
+                next = leased(mService.leaseBatch(this, LEASE_SIZE));
+                if (next.isEmpty()) {
+                    Log.d(TAG, "run: Queue empty; done.");
+                    return;
+                }
+                nextPreUpload = preUploadAsync(preUploader, next);
+            }
+            batch = next;
+            preUpload = nextPreUpload;
+        }
+    }
+
+    // Ends the worker after stopPlease(), handing back the batch leased
+    // ahead and dropping its preupload.
+    private void stopped(Future<PreUploadResponse> preUpload, List<QueuedFile> batch) {
+        Log.d(TAG, "stopped: handing back " + batch.size() + " files.");
+        if (preUpload != null) {
+            preUpload.cancel(true);
+        }
+        release(batch);
+    }
+
+    private Future<PreUploadResponse> preUploadAsync(ExecutorService preUploader,
+                                              List<QueuedFile> batch) {
+        final List<BlobRef> blobRefs = new ArrayList<>();
+        for (QueuedFile qf : batch) {
+            blobRefs.add(qf.getBlobRef());
+        }
+        Log.d(TAG, "preUploadAsync: starting pre-upload of " + blobRefs.size() + " files.");
+        return preUploader.submit(new Callable<PreUploadResponse>() {
+            @Override
+            public PreUploadResponse call() {
+                return doPreUpload(blobRefs);
+            }
+        });
+    }
+
+    // Returns the preupload's result, or null if it failed.
+    private static PreUploadResponse await(Future<PreUploadResponse> preUpload) {
+        try {
+            return preUpload.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "await: preupload error", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Uploads the files in mQueue given their preupload response, returning
+    // false on error.
+    private boolean doRound(PreUploadResponse preUpload) {
+        if (preUpload == null) {
+            Log.w(TAG, "run: Preupload failed. ending UploadThread.");
+            return false;
+        }
+
+        skipAlreadyHave(preUpload);
+        if (mQueue.isEmpty()) {
+            Log.d(TAG, "run: Server already had every queued file.");
+            return true;
+        }
+
+        Log.d(TAG, "run: Starting upload of" + mQueue.size() + "files.");
+        if (!doUpload(preUpload)) {
+            Log.w(TAG, "run: Upload failed, ending UploadThread.");
+            return false;
+        }
+        Log.d(TAG, "run: Did upload. " + mQueue.size() + " files left in this round.");
+        return true;
+    }
+
+    // Drops every queued file whose blobref the server listed in the
+    // preupload's "alreadyHave" array, marking it complete without sending
+    // any of its bytes.
+    private void skipAlreadyHave(PreUploadResponse preUpload) {
+        if (preUpload.alreadyHaveCount() == 0) {
+            return;
+        }
+
+        Iterator<QueuedFile> it = mQueue.iterator();
+        while (it.hasNext()) {
+            QueuedFile qf = it.next();
+            if (!preUpload.alreadyHas(qf.getBlobRef())) {
+                continue;
+            }
+            it.remove();
+            mService.onUploadSkipped(qf, preUpload.alreadyHaveSize(qf.getBlobRef()));
+        }
+    }
+
+    private boolean doUpload(PreUploadResponse preUpload) {
+        Log.d(TAG, "doUpload: " + preUpload);
+        UploadUrl url = uploadUrl(preUpload);
+        Log.d(TAG, "uploadURL is: " + url);
+        String uploadUrl = url.getUrl();
+        // The limit of the server that handed out the URL.
+        long serverMaxBytes = url.getMaxUploadSize();
+        BatchPolicy policy = mService.batchPolicy();
+        // The whole lease goes out under this one preupload, a batch at a
+        // time, rather than handing what the first batch can't hold back
+        // to be preuploaded and stat'ed all over again next round.
+        while (!mQueue.isEmpty() && !mStop.isStopped()) {
+            // Each batch sized to what the policy's learned from the last.
+            long byteLimit = policy.byteLimit(serverMaxBytes);
+            List<QueuedFile> largeFiles = new ArrayList<>();
+            List<Part> parts = planBatch(serverMaxBytes, byteLimit, largeFiles);
+            if (!parts.isEmpty()) {
+                BlobRefSet acked = new BlobRefSet(parts.size());
+                List<Part> rejected = new ArrayList<>();
+                boolean ok;
+                try {
+                    ok = sendSplitting(uploadUrl, parts, byteLimit, acked, rejected);
+                } finally {
+                    for (Part part : parts) {
+                        closeQuietly(part.pfd);
+                    }
+                }
+                for (Part part : parts) {
+                    if (acked.contains(part.blobRef)) {
+                        Log.d(TAG, "doUpload: upload complete for: " + part.qf);
+                        mService.onUploadComplete(part.qf);
+                    }
+                }
+                for (Part part : rejected) {
+                    mService.onUploadFailed(part.qf);
+                }
+                // Nothing got through: back off, rather than try the next
+                // batch.
+                if (!ok || rejected.size() == parts.size()) {
+                    return false;
+                }
+            }
+            for (QueuedFile qf : largeFiles) {
+                if (!uploadChunked(qf, uploadUrl, serverMaxBytes)) {
+                    return false;
+                }
+            }
+        }
+        Log.d(TAG, "doUpload: returning true.");
+        return true;
+    }
+
+    // Takes files off the head of mQueue, opening each, until the batch
+    // policy says the batch is full. Sizes are fixed here so the request's
+    // Content-Length is known before any byte is sent, unless a file is
+    // worth compressing. Files too large to send whole are moved to
+    // largeFiles instead, to be sent in chunks.
+    private List<Part> planBatch(long serverMaxBytes, long byteLimit,
+                                 List<QueuedFile> largeFiles) {
+        BatchPolicy policy = mService.batchPolicy();
+        String encoding = mService.contentEncoding();
+        List<Part> parts = new ArrayList<>();
+        long plannedBytes = 0;
+        while (!mQueue.isEmpty()) {
+            QueuedFile qf = mQueue.getFirst();
+            ParcelFileDescriptor pfd = mService.getFileDescriptor(qf.getUri());
+            if (pfd == null) {
+                // TODO: report some errors up to user?
+                mQueue.removeFirst();
+                mService.onUploadFailed(qf);
+                continue;
+            }
+            long size = pfd.getStatSize();
+            if (size > LARGE_FILE_BYTES || (serverMaxBytes > 0 && size > serverMaxBytes)) {
+                Log.d(TAG, "planBatch: " + qf + " is " + size + " bytes; sending in chunks.");
+                closeQuietly(pfd);
+                mQueue.removeFirst();
+                largeFiles.add(qf);
+                continue;
+            }
+            if (policy.isFull(byteLimit, plannedBytes, parts.size(), 0, size)) {
+                closeQuietly(pfd);
+                break;
+            }
+            mQueue.removeFirst();
+            parts.add(Part.forFile(qf, pfd, size, encodingFor(qf, pfd, size, encoding)));
+            plannedBytes += Math.max(0, size);
+        }
+        Log.d(TAG, "planBatch: " + parts.size() + " files, " + plannedBytes + " bytes.");
+        return parts;
+    }
+
+    // Uploads a file too large for one request as content-defined chunk
+    // blobs, then a manifest blob listing them. Chunks the server already has, from an
+    // interrupted earlier attempt or from another file, aren't sent again,
+    // so a retry resumes after the last acknowledged chunk. The manifest
+    // goes last, so once the server has it, it has the whole file. Returns
+    // false if the connection failed; if only this file did, it's reported
+    // to the service and the round goes on.
+    private boolean uploadChunked(QueuedFile qf, String uploadUrl, long serverMaxBytes) {
+        if (serverMaxBytes > 0 && serverMaxBytes < Chunker.MIN_MAX_BYTES) {
+            // Every chunk would be answered with 413.
+            Log.e(TAG, "uploadChunked: maxUploadSize " + serverMaxBytes +
+                    " is too small to chunk " + qf);
+            mService.onUploadFailed(qf);
+            return true;
+        }
+        ParcelFileDescriptor pfd = mService.getFileDescriptor(qf.getUri());
+        if (pfd == null) {
+            // TODO: report some errors up to user?
+            mService.onUploadFailed(qf);
+            return true;
+        }
+        try {
+            List<Chunk> chunks = Chunker.forMaxSize(serverMaxBytes)
+                    .split(pfd.getFileDescriptor(), qf.getBlobRef().getHashName(), mStop);
+            byte[] manifest = buildManifest(qf, chunks);
+            BlobRef manifestRef = BlobRef.hashOf(qf.getBlobRef().getHashName(), manifest);
+            // Chunks go in whatever coding the file as a whole is worth.
+            String encoding = mService.contentEncoding();
+            String chunkEncoding = encodingFor(qf, pfd, pfd.getStatSize(), encoding);
+
+            // Distinct chunks still to send, by blobref.
+            Map<BlobRef, Chunk> missing = new LinkedHashMap<>();
+            for (Chunk chunk : chunks) {
+                missing.put(chunk.getBlobRef(), chunk);
+            }
+            List<BlobRef> blobRefs = new ArrayList<>(missing.keySet());
+            blobRefs.add(manifestRef);
+            PreUploadResponse preUpload = doPreUpload(blobRefs);
+            if (preUpload == null) {
+                return false;
+            }
+            if (preUpload.alreadyHas(manifestRef)) {
+                Log.d(TAG, "uploadChunked: server already has all of " + qf);
+                long size = 0;
+                for (Chunk chunk : chunks) {
+                    size += chunk.getSize();
+                }
+                mService.onUploadSkipped(qf, size);
+                return true;
+            }
+            Iterator<Chunk> it = missing.values().iterator();
+            while (it.hasNext()) {
+                Chunk chunk = it.next();
+                if (preUpload.alreadyHas(chunk.getBlobRef())) {
+                    mService.metrics().onDedupHit(chunk.getSize());
+                    it.remove();
+                }
+            }
+            Log.d(TAG, "uploadChunked: " + qf + ": sending " + missing.size() + " of " +
+                    chunks.size() + " chunks.");
+
+            BatchPolicy policy = mService.batchPolicy();
+            while (!missing.isEmpty()) {
+                long byteLimit = policy.byteLimit(serverMaxBytes);
+                List<Part> parts = new ArrayList<>();
+                long plannedBytes = 0;
+                for (Chunk chunk : missing.values()) {
+                    if (policy.isFull(byteLimit, plannedBytes, parts.size(), 0, chunk.getSize())) {
+                        break;
+                    }
+                    parts.add(Part.forChunk(chunk, pfd, chunkEncoding));
+                    plannedBytes += chunk.getSize();
+                }
+                BatchResult result = sendBatch(uploadUrl, parts, byteLimit);
+                if (result.acked == null) {
+                    return failChunked(qf, result);
+                }
+                BlobRefSet acked = result.acked;
+                int before = missing.size();
+                Iterator<BlobRef> sent = missing.keySet().iterator();
+                while (sent.hasNext()) {
+                    if (acked.contains(sent.next())) {
+                        sent.remove();
+                    }
+                }
+                if (missing.size() == before) {
+                    Log.w(TAG, "uploadChunked: server acknowledged none of the chunks sent.");
+                    return false;
+                }
+            }
+
+            // Manifests are JSON, which deflates well once it's big enough.
+            String manifestEncoding = encoding != null && mCompressor.shouldCompress(
+                    "application/json", manifest.length, manifest,
+                    Math.min(manifest.length, Compressor.SAMPLE_BYTES), null, 0) ? encoding : null;
+            BatchResult result = sendBatch(uploadUrl, Collections.singletonList(
+                    Part.forBytes(manifestRef, manifest, manifestEncoding)), 0);
+            if (result.acked == null) {
+                return failChunked(qf, result);
+            }
+            if (!result.acked.contains(manifestRef)) {
+                return false;
+            }
+            Log.d(TAG, "uploadChunked: upload complete for: " + qf + "; manifest " + manifestRef);
+            mService.onUploadComplete(qf);
+            return true;
+        } catch (IOException e) {
+            if (mStop.isStopped()) {
+                Log.d(TAG, "uploadChunked: stopped by stopPlease().");
+                return false;
+            }
+            Log.e(TAG, "uploadChunked: error reading " + qf, e);
+            mService.onUploadFailed(qf);
+            return true;
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    // The coding to send qf, open as pfd and size bytes long, in: encoding,
+    // if it's worth compressing, or else null. Decides by qf's MIME type,
+    // then samples of its head and middle; pfd's position is left alone.
+    private String encodingFor(QueuedFile qf, ParcelFileDescriptor pfd, long size,
+                               String encoding) {
+        // Pipes (size -1) can't be sampled without losing what's read.
+        if (encoding == null || size < Compressor.MIN_BYTES) {
+            return null;
+        }
+        String mimeType = mService.getType(qf.getUri());
+        if (Compressor.isCompressedType(mimeType)) {
+            return null;
+        }
+        FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+        try {
+            int headLen = readSample(channel, 0, mTransferBuf);
+            int middleLen = 0;
+            if (size > 2 * Compressor.SAMPLE_BYTES) {
+                middleLen = readSample(channel, size / 2, mSampleBuf);
+            }
+            return mCompressor.shouldCompress(mimeType, size, mTransferBuf, headLen,
+                    middleLen > 0 ? mSampleBuf : null, middleLen) ? encoding : null;
+        } catch (IOException e) {
+            // Sending it will find out what's wrong.
+            return null;
+        }
+    }
+
+    // Reads up to a sample's worth of channel at position into buf,
+    // returning how much it read.
+    private static int readSample(FileChannel channel, long position, byte[] buf)
+            throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, Compressor.SAMPLE_BYTES);
+        while (bb.hasRemaining()) {
+            int n = channel.read(bb, position + bb.position());
+            if (n == -1) {
+                break;
+            }
         }
-        Log.d(TAG, "run: Queue empty; done.");
-        mService.onUploadThreadEnding();
+        return bb.position();
     }
 
-    private boolean doUpload(JSONObject preUpload) {
-        Log.d(TAG, "JSON: " + preUpload);
-        String uploadUrl = preUpload
-                .optString("uploadUrl", "http://" + mHostPort + "/camli/upload");
-        Log.d(TAG, "uploadURL is: " + uploadUrl);
+    // For a chunked upload's failed batch: a rejection fails just qf.
+    private boolean failChunked(QueuedFile qf, BatchResult result) {
+        if (!result.rejected) {
+            return false;
+        }
+        mService.onUploadFailed(qf);
+        return true;
+    }
+
+    // The manifest blob of a chunked upload. It only depends on the file's
+    // contents, so a resumed upload arrives at the same blobref.
+    private static byte[] buildManifest(QueuedFile qf, List<Chunk> chunks) {
+        try {
+            JSONArray parts = new JSONArray();
+            long size = 0;
+            for (Chunk chunk : chunks) {
+                parts.put(new JSONObject()
+                        .put("blobRef", chunk.getContentName())
+                        .put("size", chunk.getSize()));
+                size += chunk.getSize();
+            }
+            JSONObject manifest = new JSONObject()
+                    .put("camliVersion", "1")
+                    .put("camliType", "chunks")
+                    .put("contents", qf.getContentName())
+                    .put("size", size)
+                    .put("parts", parts);
+            return manifest.toString().getBytes("UTF-8");
+        } catch (JSONException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Sends parts, and if the batch is rejected, each half of it on its own,
+    // down to single parts, so a file the server won't take (or that can't
+    // be read) only fails itself instead of everything batched with it.
+    // Blobrefs of parts that got through are added to acked, and whole-file
+    // parts that failed on their own to rejected. Returns false if the
+    // connection failed.
+    private boolean sendSplitting(String uploadUrl, List<Part> parts, long byteLimit,
+                                  BlobRefSet acked, List<Part> rejected) {
+        BatchResult result = sendBatch(uploadUrl, parts, byteLimit);
+        if (result.acked != null) {
+            for (Part part : parts) {
+                if (result.acked.contains(part.blobRef)) {
+                    acked.add(part.blobRef);
+                }
+            }
+            return true;
+        }
+        if (!result.rejected) {
+            return false;
+        }
+        if (result.unreadable != null) {
+            rejected.add(result.unreadable);
+            List<Part> rest = new ArrayList<>(parts);
+            rest.remove(result.unreadable);
+            if (rest.isEmpty()) {
+                return true;
+            }
+            // The failed attempt may have consumed some of the rest; those
+            // go back to the queue rather than out truncated.
+            return isReplayable(rest) &&
+                    sendSplitting(uploadUrl, rest, byteLimit, acked, rejected);
+        }
+        if (parts.size() == 1) {
+            rejected.add(parts.get(0));
+            return true;
+        }
+        if (!isReplayable(parts)) {
+            return false;
+        }
+        int half = parts.size() / 2;
+        Log.d(TAG, "sendSplitting: batch of " + parts.size() + " rejected; splitting.");
+        return sendSplitting(uploadUrl, parts.subList(0, half), byteLimit, acked, rejected) &&
+                sendSplitting(uploadUrl, parts.subList(half, parts.size()), byteLimit, acked,
+                        rejected);
+    }
+
+    private static String newBoundary() {
+        char[] c = new char[BOUNDARY_LENGTH];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = BOUNDARY_CHARS.charAt(RANDOM.nextInt(BOUNDARY_CHARS.length()));
+        }
+        return new String(c);
+    }
+
+    // Whether parts can all be sent again: not if any was read as it came.
+    private static boolean isReplayable(List<Part> parts) {
+        for (Part part : parts) {
+            if (part.size < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sends parts in one multipart POST.
+    private BatchResult sendBatch(String uploadUrl, List<Part> parts, long byteLimit) {
         HttpPost uploadReq = new HttpPost(uploadUrl);
-        MultipartEntity entity = new MultipartEntity();
+        MultipartEntity entity = new MultipartEntity(parts, newBoundary(), byteLimit);
         uploadReq.setEntity(entity);
-        HttpResponse uploadRes = null;
+        Log.d(TAG, "sendBatch: Content-Length is " + entity.getContentLength());
+        long timeStarted = SystemClock.uptimeMillis();
+        mStop.abortOnStop(uploadReq);
         try {
-            uploadRes = mUA.execute(uploadReq);
+            return sendBatch(uploadReq, entity, timeStarted);
+        } finally {
+            mStop.done(uploadReq);
+        }
+    }
+
+    private BatchResult sendBatch(HttpPost uploadReq, MultipartEntity entity,
+                                  long timeStarted) {
+        BatchPolicy policy = mService.batchPolicy();
+        HttpResponse uploadRes;
+        try {
+            uploadRes = mTransport.execute(uploadReq);
         } catch (IOException e) {
+            if (mStop.isStopped()) {
+                Log.d(TAG, "sendBatch: aborted by stopPlease().");
+                return new BatchResult(null, false, null);
+            }
+            if (e instanceof BandwidthLimiter.BudgetExceededException) {
+                // Nothing the batch size has to answer for.
+                Log.d(TAG, "sendBatch: " + e.getMessage());
+                return new BatchResult(null, false, null);
+            }
             Log.e(TAG, "run: upload error", e);
-            return false;
+            policy.onBatchDone(entity.getBytesWritten(),
+                    SystemClock.uptimeMillis() - timeStarted, false);
+            mService.metrics().onBatch(0, 0, 0, 0, false);
+            Part unreadable = entity.getUnreadablePart();
+            return new BatchResult(null, unreadable != null, unreadable);
         }
+        long timeDone = SystemClock.uptimeMillis();
+        // Until the body was written, then waiting on the server.
+        long timeWritten = entity.getTimeWritten() > 0 ? entity.getTimeWritten() : timeDone;
         Log.d(TAG, "doUpload: response: " + uploadRes);
         StatusLine statusLine = uploadRes.getStatusLine();
         Log.d(TAG, "doUpload: response code: " + statusLine);
         // TODO: check response body, once response body is defined?
-        if (statusLine == null || statusLine.getStatusCode() < 200 ||
-                statusLine.getStatusCode() > 299) {
+        boolean success = statusLine != null && statusLine.getStatusCode() >= 200 &&
+                statusLine.getStatusCode() <= 299;
+        policy.onBatchDone(entity.getBytesWritten(), timeDone - timeStarted, success);
+        mService.metrics().onBatch(entity.getPartsWritten().size(), entity.getBytesWritten(),
+                timeWritten - timeStarted, timeDone - timeWritten, success);
+        Log.d(TAG, "doUpload: next batch target is " + policy.targetBytes() + " bytes.");
+        if (!success) {
             Log.d(TAG, "doUpload: upload error.");
-            // TODO: back-off? or probably in the service layer.
-            return false;
+            EntityUtils.consumeQuietly(uploadRes.getEntity());
+            if (statusLine != null && statusLine.getStatusCode() == HttpStatus.SC_GONE) {
+                mService.onUploadUrlExpired(uploadReq.getURI().toString());
+            }
+            return new BatchResult(null,
+                    statusLine != null && isRejection(statusLine.getStatusCode()), null);
         }
-        for (QueuedFile qf : entity.getFilesWritten()) {
-            // TODO: only do this if acknowledge in JSON response?
-            Log.d(TAG, "doUpload: upload complete for: " + qf);
-            mService.onUploadComplete(qf);
+        return new BatchResult(ackedBlobRefs(uploadRes, entity.getPartsWritten()), false, null);
+    }
+
+    // Whether an upload's status says the server didn't like something in
+    // the batch, rather than the request itself (auth, say) or the server
+    // being unwell, which no other batch would fare better with.
+    private static boolean isRejection(int statusCode) {
+        switch (statusCode) {
+            case 401: // Unauthorized
+            case 403: // Forbidden
+            case 407: // Proxy Authentication Required
+            case 408: // Request Timeout
+            case 410: // Gone: the upload URL expired; the next preupload has another.
+            case 417: // Expectation Failed: tried again without Expect.
+            case 429: // Too Many Requests
+                return false;
+            default:
+                return statusCode >= 400 && statusCode <= 499;
         }
-        Log.d(TAG, "doUpload: returning true.");
-        return true;
     }
 
-    private JSONObject doPreUpload() {
-        // Do the pre-upload
+    // What became of a batch: the blobrefs the server acknowledged, or why
+    // there are none.
+    private static class BatchResult {
+        final BlobRefSet acked; // null if the batch failed.
+        // The connection's fine, but something in the batch isn't: the
+        // server rejected it, or a part couldn't be read.
+        final boolean rejected;
+        final Part unreadable; // the part that couldn't be read, or null.
+
+        BatchResult(BlobRefSet acked, boolean rejected, Part unreadable) {
+            this.acked = acked;
+            this.rejected = rejected;
+            this.unreadable = unreadable;
+        }
+    }
+
+    // Returns the blobrefs listed in the upload response's "received" array.
+    // Servers that don't send one get credit for every part written.
+    private static BlobRefSet ackedBlobRefs(HttpResponse res, List<Part> written) {
+        try {
+            HttpEntity resEntity = res.getEntity();
+            if (resEntity != null) {
+                BlobRefSet acked = UploadResponse.readReceived(resEntity.getContent(),
+                        written.size());
+                if (acked != null) {
+                    return acked;
+                }
+            }
+        } catch (MalformedJsonException e) {
+            Log.d(TAG, "ackedBlobRefs: no JSON in upload response: " + e.getMessage());
+        } catch (IOException e) {
+            Log.e(TAG, "ackedBlobRefs: error reading upload response", e);
+            return null;
+        } finally {
+            // Hands the connection back, or closes it if reading failed.
+            EntityUtils.consumeQuietly(res.getEntity());
+        }
+        BlobRefSet acked = new BlobRefSet(written.size());
+        for (Part part : written) {
+            acked.add(part.blobRef);
+        }
+        return acked;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        if (pfd == null) {
+            return;
+        }
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeQuietly: ", e);
+        }
+    }
+
+    // The freshest upload URL any worker's preupload got, or else the
+    // default, with the maxUploadSize preUpload gave.
+    private UploadUrl uploadUrl(PreUploadResponse preUpload) {
+        UploadUrl url = mService.updateUploadUrl(null);
+        if (url != null) {
+            return url;
+        }
+        return new UploadUrl("http://" + mHostPort + "/camli/upload",
+                preUpload.getMaxUploadSize(), 0);
+    }
+
+    // Asks the server which of blobRefs it already has, recording the
+    // upload URL it hands out. Returns null on failure.
+    private PreUploadResponse doPreUpload(List<BlobRef> blobRefs) {
         HttpPost preReq = new HttpPost("http://" + mHostPort +
                 "/camli/preupload");
 
@@ -138,8 +792,8 @@ public class UploadThread extends Thread {
         uploadKeys.add(new BasicNameValuePair("camliversion", "1"));
 
         int n = 0;
-        for (QueuedFile qf : mQueue) {
-            uploadKeys.add(new BasicNameValuePair("blob" + (++n), qf.getContentName()));
+        for (BlobRef blobRef : blobRefs) {
+            uploadKeys.add(new BasicNameValuePair("blob" + (++n), blobRef.toString()));
         }
 
         try {
@@ -148,53 +802,152 @@ public class UploadThread extends Thread {
             Log.e(TAG, "error", e);
             return null;
         }
-        JSONObject preUpload = null;
-        String jsonSlurp = null;
+        PreUploadResponse preUpload = null;
+        long timeStarted = SystemClock.uptimeMillis();
+        mStop.abortOnStop(preReq);
         try {
-            HttpResponse res = mUA.execute(preReq);
+            HttpResponse res = mTransport.execute(preReq);
             Log.d(TAG, "response: " + res);
-            Log.d(TAG, "response code: " + res.getStatusLine());
-            // TODO: check response code
-            jsonSlurp = Util.slurp(res.getEntity().getContent());
-            preUpload = new JSONObject(jsonSlurp);
+            StatusLine statusLine = res.getStatusLine();
+            Log.d(TAG, "response code: " + statusLine);
+            if (statusLine != null && statusLine.getStatusCode() >= 200 &&
+                    statusLine.getStatusCode() <= 299 && res.getEntity() != null) {
+                InputStream in = res.getEntity().getContent();
+                try {
+                    preUpload = PreUploadResponse.read(in);
+                } finally {
+                    // Drains anything after the JSON so the connection can be reused.
+                    EntityUtils.consumeQuietly(res.getEntity());
+                }
+            } else {
+                EntityUtils.consumeQuietly(res.getEntity());
+            }
         } catch (IOException e) {
-            Log.e(TAG, "preupload error", e);
+            if (!mStop.isStopped()) {
+                Log.e(TAG, "preupload error", e);
+            }
+        } finally {
+            mStop.done(preReq);
+        }
+        if (mStop.isStopped()) {
             return null;
-        } catch (JSONException e) {
-            Log.e(TAG, "preupload JSON parse error from: " + jsonSlurp, e);
+        }
+        mService.metrics().onPreUpload(blobRefs.size(), SystemClock.uptimeMillis() - timeStarted,
+                preUpload != null);
+        if (preUpload == null) {
             return null;
         }
+        mService.updateUploadUrl(UploadUrl.fromPreUpload(preUpload, "http://" + mHostPort,
+                SystemClock.uptimeMillis()));
+        mService.onServerHashes(preUpload.getSupportedHashes());
+        mService.onServerEncodings(preUpload.getSupportedEncodings());
+        if (preUpload.getAuthToken() != null) {
+            mTransport.setAuthToken(preUpload.getAuthToken(), SystemClock.uptimeMillis() +
+                    preUpload.getAuthTokenExpirationSeconds() * 1000);
+        }
         return preUpload;
     }
 
+    // One planned multipart part: a whole queued file, a chunk of one, or a
+    // blob held in memory, with the size it had when the batch was planned
+    // (-1 if unknown), and the content coding it's sent in (null if none).
+    private static class Part {
+        final BlobRef blobRef;
+        final QueuedFile qf; // null unless this part is a whole queued file.
+        final ParcelFileDescriptor pfd; // null for in-memory parts.
+        final boolean ranged; // read from offset rather than the current position.
+        final long offset;
+        final long size;
+        final byte[] data;
+        final String encoding;
+        final byte[] header;
+
+        private Part(BlobRef blobRef, QueuedFile qf, ParcelFileDescriptor pfd, boolean ranged,
+                     long offset, long size, byte[] data, String encoding) {
+            this.blobRef = blobRef;
+            this.qf = qf;
+            this.pfd = pfd;
+            this.ranged = ranged;
+            this.offset = offset;
+            this.size = size;
+            this.data = data;
+            this.encoding = encoding;
+            // Follows the boundary line, which each request has its own.
+            this.header = ascii("Content-Disposition: form-data; name=" + blobRef + "\r\n" +
+                    (encoding == null ? "" : "Content-Encoding: " + encoding + "\r\n") +
+                    "\r\n");
+        }
+
+        static Part forFile(QueuedFile qf, ParcelFileDescriptor pfd, long size,
+                            String encoding) {
+            return new Part(qf.getBlobRef(), qf, pfd, false, 0, size, null, encoding);
+        }
+
+        static Part forChunk(Chunk chunk, ParcelFileDescriptor pfd, String encoding) {
+            return new Part(chunk.getBlobRef(), null, pfd, true, chunk.getOffset(),
+                    chunk.getSize(), null, encoding);
+        }
+
+        static Part forBytes(BlobRef blobRef, byte[] data, String encoding) {
+            return new Part(blobRef, null, null, false, 0, data.length, data, encoding);
+        }
+    }
+
     private class MultipartEntity implements HttpEntity {
 
-        private final List<QueuedFile> mFilesWritten = new ArrayList<>();
+        private final List<Part> mParts;
+        private final List<Part> mPartsWritten = new ArrayList<>();
 
         private boolean mDone = false;
         private final String mBoundary;
+        // Opens each part; a part's own header follows.
+        private final byte[] mDelimiter;
+        private final byte[] mTrailer;
+        private final long mByteLimit;
+        // -1 if any part's size is unknown, or it's compressed, in which
+        // case the body is sent chunked.
+        private final long mContentLength;
+        private long mBytesWritten = 0;
+        // When writeTo() finished, or 0.
+        private long mTimeWritten = 0;
+        // Whole-file part whose file couldn't be read, or null.
+        private Part mUnreadable = null;
 
-        public MultipartEntity() {
-            // TODO: proper boundary
-            mBoundary = "TODOLKSDJFLKSDJFLdslkjfjf23ojf0j30dm32LFDSJFLKSDJF";
+        public MultipartEntity(List<Part> parts, String boundary, long byteLimit) {
+            mParts = parts;
+            mBoundary = boundary;
+            mDelimiter = ascii("\r\n--" + mBoundary + "\r\n");
+            mTrailer = ascii("\r\n--" + mBoundary + "--\r\n");
+            mByteLimit = byteLimit;
+
+            long length = mTrailer.length;
+            for (Part part : parts) {
+                if (part.size < 0 || part.encoding != null) {
+                    length = -1;
+                    break;
+                }
+                length += mDelimiter.length + part.header.length + part.size;
+            }
+            mContentLength = length;
         }
 
         @Override
         public boolean isRepeatable() {
-            Log.d(TAG, "isRepeatable: ");
-            // Well, not really, but needs to be for DefaultRequestDirector
-            return true;
+            // Parts of unknown size are read as they come, and the time
+            // budget can cut a body short. Nothing needs a replay anyway:
+            // the transport authenticates preemptively, so there's no 401
+            // challenge to answer.
+            return false;
         }
 
         @Override
         public boolean isChunked() {
-            Log.d(TAG, "isChunked: ");
-            return false;
+            return mContentLength < 0;
         }
 
         @Override
         public long getContentLength() {
-            return -1; //unknown
+            return mContentLength;
         }
 
         @Override
@@ -221,6 +974,7 @@ public class UploadThread extends Thread {
         }
 
         @Override
+        @Deprecated
         public void consumeContent() throws IOException {
             // From the docs: "The name of this method is misnomer ...
             // This method is called to indicate that the content of this entity
@@ -233,70 +987,154 @@ public class UploadThread extends Thread {
 
         @Override
         public void writeTo(OutputStream out) throws IOException {
-            BufferedOutputStream bos = new BufferedOutputStream(out);
-            PrintWriter pw = new PrintWriter(bos);
-            byte[] buf = new byte[1024];
-
-            int bytesWritten = 0;
+            MeteredOutputStream metered = new MeteredOutputStream(out, mService.metrics());
+            // Bytes are charged to the network's budget before they go.
+            out = mService.limiter().wrap(metered, mService.networkClass(), mStop.flag());
+            BatchPolicy policy = mService.batchPolicy();
             long timeStarted = SystemClock.uptimeMillis();
 
-            for (QueuedFile qf : mQueue) {
-                ParcelFileDescriptor pfd = mService.getFileDescriptor(qf.getUri());
-                if (pfd == null) {
-                    // TODO: report some errors up to user?
-                    mQueue.removeFirst();
+            for (Part part : mParts) {
+                // With a fixed Content-Length every planned part has to go
+                // out; a chunked body can still stop at the time budget.
+                if (isChunked() && policy.isFull(mByteLimit, mBytesWritten,
+                        mPartsWritten.size(), SystemClock.uptimeMillis() - timeStarted,
+                        part.size)) {
+                    Log.d(TAG, "writeTo: batch full after " + mPartsWritten.size() +
+                            " files, " + mBytesWritten + " bytes.");
+                    break;
+                }
+                out.write(mDelimiter);
+                out.write(part.header);
+                // Compressed parts go through a deflating stage of their own.
+                DeflaterOutputStream deflating = part.encoding == null ? null :
+                        mCompressor.stage(out);
+                OutputStream dst = deflating == null ? out : deflating;
+                if (part.data != null) {
+                    dst.write(part.data);
+                    mBytesWritten += part.data.length;
+                    finishPart(part, deflating, part.data.length);
                     continue;
                 }
-                startNewBoundary(pw);
-                pw.flush();
-                pw.print("Content-Disposition: form-data; name=");
-                pw.print(qf.getContentName());
-                pw.print("\r\n\r\n");
-                pw.flush();
-
-                FileInputStream fis = new FileInputStream(pfd.getFileDescriptor());
-                int n;
-                while ((n = fis.read(buf)) != -1) {
-                    bos.write(buf, 0, n);
-                    if (mStopRequested.get()) {
-                        Log.d(TAG, "writeTo: Stopping upload pre-maturely");
-                        pfd.close();
-                        return;
+
+                FileChannel channel =
+                        new FileInputStream(part.pfd.getFileDescriptor()).getChannel();
+                // A known size means a regular file, which can be read
+                // positionally; anything else (a pipe, say) is read as it comes.
+                long position = part.size < 0 ? -1 : part.ranged ? part.offset : 0;
+                long copied;
+                try {
+                    copied = Util.transfer(channel, position, part.size, dst, mTransferBuf,
+                            mStop.flag());
+                } catch (InterruptedIOException e) {
+                    // Stopped, or out of budget.
+                    Log.d(TAG, "writeTo: Stopping upload pre-maturely: " + e.getMessage());
+                    throw e;
+                } catch (IOException e) {
+                    if (!metered.hasFailed() && part.qf != null) {
+                        mUnreadable = part; // a read failed, not the connection.
                     }
+                    throw e;
                 }
-                bos.flush();
-                pfd.close();
-                mQueue.removeFirst();
-                // TODO: notification of update
-                Log.d(TAG, "writeTo: write of " + qf.getContentName() + " complete.");
-                mFilesWritten.add(qf);
-
-                if (bytesWritten > 1024 * 1024) {
-                    Log.d(TAG, "writeTo: enough bytes written, stopping writing after " + bytesWritten);
-                    // stop after 1MB to get response.
-                    // TODO: make this smarter, configurable, time-based.
-                    break;
+                mBytesWritten += copied;
+                if (part.size >= 0 && copied < part.size) {
+                    if (part.qf != null) {
+                        mUnreadable = part;
+                    }
+                    // Can't honor the Content-Length we promised.
+                    throw new IOException(part.blobRef + " shrank by " + (part.size - copied) +
+                            " bytes during upload");
                 }
+                finishPart(part, deflating, copied);
+                // TODO: notification of update
+                Log.d(TAG, "writeTo: write of " + part.blobRef + " complete; " +
+                        progress());
             }
-            endBoundary(pw);
-            pw.flush();
+            out.write(mTrailer);
+            out.flush();
+            mTimeWritten = SystemClock.uptimeMillis();
             Log.d(TAG, "writeTo: finished writing upload MIME body.");
         }
 
-        private void startNewBoundary(PrintWriter pw) {
-            pw.print("\r\n--");
-            pw.print(mBoundary);
-            pw.print("\r\n");
+        // Ends a part of rawBytes whose bytes are all written, flushing its
+        // deflating stage if it has one.
+        private void finishPart(Part part, DeflaterOutputStream deflating, long rawBytes)
+                throws IOException {
+            if (deflating != null) {
+                long compressed = mCompressor.finish(deflating);
+                mService.metrics().onCompressed(rawBytes, compressed);
+            }
+            mPartsWritten.add(part);
+        }
+
+        private String progress() {
+            if (mContentLength <= 0) {
+                return mBytesWritten + " bytes sent";
+            }
+            return (100 * mBytesWritten / mContentLength) + "% of batch sent";
+        }
+
+        public List<Part> getPartsWritten() {
+            return mPartsWritten;
+        }
+
+        // File bytes written so far, not counting MIME framing.
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        public long getTimeWritten() {
+            return mTimeWritten;
+        }
+
+        public Part getUnreadablePart() {
+            return mUnreadable;
+        }
+    }
+
+    // Counts bytes into metrics as they're written, and remembers whether a
+    // write failed.
+    private static class MeteredOutputStream extends FilterOutputStream {
+        private final UploadMetrics mMetrics;
+        private boolean mFailed = false;
+
+        MeteredOutputStream(OutputStream out, UploadMetrics metrics) {
+            super(out);
+            mMetrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                mFailed = true;
+                throw e;
+            }
+            mMetrics.onBytesSent(1);
+        }
+
+        // FilterOutputStream's own writes a byte at a time.
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                mFailed = true;
+                throw e;
+            }
+            mMetrics.onBytesSent(len);
         }
 
-        private void endBoundary(PrintWriter pw) {
-            pw.print("\r\n--");
-            pw.print(mBoundary);
-            pw.print("--\r\n");
+        boolean hasFailed() {
+            return mFailed;
         }
+    }
 
-        public List<QueuedFile> getFilesWritten() {
-            return mFilesWritten;
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -0,0 +1,48 @@
+package io.manun.camli;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+
+/*
+ * How upload workers talk to the blobserver. One transport is shared by
+ * every worker and outlives them, so the preupload and upload requests of
+ * all batches reuse the same kept-alive connections instead of paying a
+ * TCP (and TLS) handshake each.
+ *
+ * Implementations must be thread-safe.
+ */
+
+public interface UploadTransport {
+
+    // Sends req and returns the response. The caller must consume the
+    // response entity, which hands the connection back for reuse. Throws
+    // InterruptedIOException, without sending it, if req was aborted.
+    HttpResponse execute(HttpUriRequest req) throws IOException;
+
+    // Sends token (a session token from a preupload response) instead of
+    // the password until expiresAtMillis, in SystemClock.uptimeMillis(), or
+    // the server refuses it. A null token goes back to the password.
+    void setAuthToken(String token, long expiresAtMillis);
+
+    // How many connections (so concurrent requests) the transport may use.
+    void setMaxConnections(int max);
+
+    // Closes pooled connections that have been idle for idleMillis or more.
+    void closeIdleConnections(long idleMillis);
+
+    // Requests sent so far.
+    long requestCount();
+
+    // How many of those went over a connection that had already carried a
+    // request, rather than a freshly opened one.
+    long reusedConnectionCount();
+
+    // Connections carrying a request right now; anything left once every
+    // request has finished or been aborted is a leak.
+    int leasedConnectionCount();
+
+    // Closes every connection. The transport can't be used afterwards.
+    void shutdown();
+}
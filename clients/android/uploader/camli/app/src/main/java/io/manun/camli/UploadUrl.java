@@ -0,0 +1,58 @@
+package io.manun.camli;
+
+/*
+ * Where to POST uploads, as a preupload response gave it, along with the
+ * server's maxUploadSize and how long the server said the URL stays good
+ * for (uploadUrlExpirationSeconds). Times are SystemClock.uptimeMillis().
+ */
+
+public class UploadUrl {
+    private final String mUrl;
+    private final long mMaxUploadSize;
+    private final long mExpiresAtMillis;
+
+    public UploadUrl(String url, long maxUploadSize, long expiresAtMillis) {
+        if (url == null)
+            throw new NullPointerException("url == null");
+        mUrl = url;
+        mMaxUploadSize = maxUploadSize;
+        mExpiresAtMillis = expiresAtMillis;
+    }
+
+    // Returns the upload URL in preUpload, resolved against base
+    // ("http://host:port") if it's relative, or null if there isn't one.
+    public static UploadUrl fromPreUpload(PreUploadResponse preUpload, String base,
+                                          long nowMillis) {
+        String url = preUpload.getUploadUrl();
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        if (url.startsWith("/")) {
+            url = base + url;
+        }
+        long ttlSeconds = Math.max(0, preUpload.getUploadUrlExpirationSeconds());
+        return new UploadUrl(url, preUpload.getMaxUploadSize(), nowMillis + ttlSeconds * 1000);
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    // 0 if the server didn't say.
+    public long getMaxUploadSize() {
+        return mMaxUploadSize;
+    }
+
+    public boolean isFresh(long nowMillis) {
+        return nowMillis < mExpiresAtMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadUrl{" +
+                "mUrl='" + mUrl + '\'' +
+                ", mMaxUploadSize=" + mMaxUploadSize +
+                ", mExpiresAtMillis=" + mExpiresAtMillis +
+                '}';
+    }
+}
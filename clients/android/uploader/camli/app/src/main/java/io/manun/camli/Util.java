@@ -1,58 +1,92 @@
 package io.manun.camli;
 
-import java.io.BufferedInputStream;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Util {
 
-    private static final String HEX = "0123456789abcdef";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
+    // Reads in to EOF as UTF-8. Decoding through one Reader means a
+    // character split across reads still comes out whole.
     public static String slurp(InputStream in) throws IOException {
         StringBuilder sb = new StringBuilder();
-        byte[] b = new byte[4096];
-        for (int n; (n = in.read(b)) != -1; ) {
-            sb.append(new String(b, 0, n));
+        Reader reader = new InputStreamReader(in, Charset.forName("UTF-8"));
+        char[] c = new char[4096];
+        for (int n; (n = reader.read(c)) != -1; ) {
+            sb.append(c, 0, n);
         }
         return sb.toString();
     }
 
+    // For one-off hashes; HashEngine hashes many files at once.
     public static String getSha1(FileDescriptor fd) {
+        try {
+            return getHex(HashEngine.hash("sha1", fd, new byte[64 * 1024]).getDigest());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String getSha1(byte[] data) {
         MessageDigest md;
         try {
             md = MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-        byte[] b = new byte[4096];
-        FileInputStream fis = new FileInputStream(fd);
-        InputStream is = new BufferedInputStream(fis, 4096);
-        try {
-            for (int n; (n = is.read(b)) != -1; ) {
-                md.update(b, 0, n);
+        return getHex(md.digest(data));
+    }
+
+    // Copies count bytes (or up to EOF if count < 0) from src to out through
+    // buf, one read and one write per buffer. With position >= 0 the reads
+    // are positional and leave src's own position alone, so parts of one
+    // file can share a descriptor; otherwise they start at src's position.
+    // Throws InterruptedIOException once stop is set. Returns the bytes
+    // copied, which is less than count only at EOF.
+    static long transfer(FileChannel src, long position, long count, OutputStream out,
+                         byte[] buf, AtomicBoolean stop) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        long copied = 0;
+        while (count < 0 || copied < count) {
+            bb.clear();
+            if (count >= 0) {
+                bb.limit((int) Math.min(buf.length, count - copied));
+            }
+            int n = position < 0 ? src.read(bb) : src.read(bb, position + copied);
+            if (n == -1) {
+                break;
+            }
+            out.write(buf, 0, n);
+            copied += n;
+            if (stop != null && stop.get()) {
+                throw new InterruptedIOException("transfer stopped");
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
-        byte[] sha1hash = new byte[4096];
-        sha1hash = md.digest();
-        return getHex(sha1hash);
+        return copied;
     }
 
-    private static String getHex(byte[] raw) {
+    static String getHex(byte[] raw) {
         if (raw == null) {
             return null;
         }
-        final StringBuilder hex = new StringBuilder(2 * raw.length);
-        for (byte b : raw) {
-            hex.append(HEX.charAt((b & 0XF0) >> 4))
-                    .append(HEX.charAt((b & 0X0F)));
+        char[] hex = new char[2 * raw.length];
+        for (int i = 0; i < raw.length; i++) {
+            hex[2 * i] = HEX[(raw[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[raw[i] & 0xf];
         }
-        return hex.toString();
+        return new String(hex);
     }
 
     private static String convertToHex(byte[] data) {
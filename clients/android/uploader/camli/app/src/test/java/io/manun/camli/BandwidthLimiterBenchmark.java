@@ -0,0 +1,228 @@
+package io.manun.camli;
+
+import io.manun.camli.BandwidthLimiter.Limits;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What BandwidthLimiter's stage costs the upload write path when it isn't
+ * holding anything back: once with no limits at all, and once with
+ * budgets and a speed cap too large to ever bite, which takes the bucket
+ * and budget checks on every write.
+ *
+ * Line rate is 64 KB writes over a loopback socket to a sink that drains
+ * them, as MultipartEntity writes; loopback is far faster than any network
+ * a phone uploads over, so it's the hardest rate to keep up with. That's
+ * sent with and without the stage, but a difference of well under 1% is
+ * lost in loopback's own noise, so the stage is also timed on its own,
+ * writing to a stream that discards everything, from one thread and from
+ * two contending for the lock as two workers would. Its CPU time per
+ * write is reported against the time a write takes at line rate; the
+ * target is well under 1%.
+ *
+ * 1 GB goes over loopback by default; set -Dcamli.bench.limiterMB to
+ * change it.
+ */
+public class BandwidthLimiterBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    private static final int WRITE_BYTES = 64 * 1024;
+    private static final int WRITES = 2000000;
+
+    // Accepts connections on loopback and drains them.
+    private static class Sink implements Runnable {
+        final ServerSocket mServer;
+        final AtomicLong mReceived = new AtomicLong();
+
+        Sink() throws IOException {
+            mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        }
+
+        @Override
+        public void run() {
+            byte[] b = new byte[256 * 1024];
+            try {
+                while (true) {
+                    try (Socket s = mServer.accept()) {
+                        InputStream in = s.getInputStream();
+                        for (int n; (n = in.read(b)) != -1; ) {
+                            mReceived.addAndGet(n);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+    }
+
+    // Discards everything, so only the stage in front of it is timed.
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private interface Stage {
+        OutputStream wrap(OutputStream out);
+    }
+
+    private static final Stage NONE = new Stage() {
+        @Override
+        public OutputStream wrap(OutputStream out) {
+            return out;
+        }
+    };
+
+    private static Stage limited(final BandwidthLimiter limiter) {
+        return new Stage() {
+            @Override
+            public OutputStream wrap(OutputStream out) {
+                return limiter.wrap(out, BandwidthLimiter.NETWORK_CELLULAR, null);
+            }
+        };
+    }
+
+    // Returns the best of a few runs sending size bytes, in MB/s.
+    private static double lineRate(Sink sink, long size, Stage stage) throws IOException {
+        byte[] buf = new byte[WRITE_BYTES];
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long before = sink.mReceived.get();
+            long start = System.nanoTime();
+            try (Socket s = new Socket(sink.mServer.getInetAddress(),
+                    sink.mServer.getLocalPort())) {
+                OutputStream out = stage.wrap(s.getOutputStream());
+                for (long sent = 0; sent < size; sent += buf.length) {
+                    out.write(buf);
+                }
+                out.flush();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            // Let the sink catch up before the next run.
+            while (sink.mReceived.get() - before < size) {
+                Thread.yield();
+            }
+        }
+        return (double) size / MB / (best / 1e9);
+    }
+
+    // Returns the best of a few runs' CPU nanoseconds per write through the
+    // stage, for the busiest of threads writing at once. CPU time rather
+    // than elapsed, so threads sharing a core don't count each other's.
+    private static double nanosPerWrite(final Stage stage, int threads) throws Exception {
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            Thread[] writers = new Thread[threads];
+            final long[] cpuNanos = new long[threads];
+            final IOException[] failed = new IOException[1];
+            for (int t = 0; t < threads; t++) {
+                final int index = t;
+                writers[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        byte[] buf = new byte[WRITE_BYTES];
+                        OutputStream out = stage.wrap(new NullOutputStream());
+                        long start = mx.getCurrentThreadCpuTime();
+                        try {
+                            for (int i = 0; i < WRITES; i++) {
+                                out.write(buf);
+                            }
+                        } catch (IOException e) {
+                            failed[0] = e;
+                        }
+                        cpuNanos[index] = mx.getCurrentThreadCpuTime() - start;
+                    }
+                };
+            }
+            for (Thread w : writers) {
+                w.start();
+            }
+            for (Thread w : writers) {
+                w.join();
+            }
+            if (failed[0] != null) {
+                throw failed[0];
+            }
+            long busiest = 0;
+            for (long cpu : cpuNanos) {
+                busiest = Math.max(busiest, cpu);
+            }
+            best = Math.min(best, (double) busiest / WRITES);
+        }
+        return best;
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_Unconstrained_StageCost() throws Exception {
+        long size = Long.getLong("camli.bench.limiterMB", 1024) * MB;
+        BandwidthLimiter unlimited = new BandwidthLimiter();
+        BandwidthLimiter generous = new BandwidthLimiter();
+        // Nothing a benchmark can reach.
+        generous.setLimits(BandwidthLimiter.NETWORK_CELLULAR,
+                new Limits(Long.MAX_VALUE / 4, Long.MAX_VALUE / 4, Long.MAX_VALUE / 4));
+
+        Sink sink = new Sink();
+        Thread sinkThread = new Thread(sink);
+        sinkThread.setDaemon(true);
+        sinkThread.start();
+        double rawRate;
+        double limitedRate;
+        try {
+            // Warm up the JIT.
+            lineRate(sink, size / 4, NONE);
+            lineRate(sink, size / 4, limited(unlimited));
+            rawRate = lineRate(sink, size, NONE);
+            limitedRate = lineRate(sink, size, limited(unlimited));
+        } finally {
+            sink.mServer.close();
+        }
+        nanosPerWrite(limited(unlimited), 1);
+        nanosPerWrite(limited(generous), 1);
+        double[] stageNanos = {
+                nanosPerWrite(limited(unlimited), 1),
+                nanosPerWrite(limited(unlimited), 2),
+                nanosPerWrite(limited(generous), 1),
+                nanosPerWrite(limited(generous), 2),
+        };
+        String[] names = {
+                "no limits, 1 writer:       ",
+                "no limits, 2 writers:      ",
+                "generous limits, 1 writer: ",
+                "generous limits, 2 writers:",
+        };
+        // How long one write takes at line rate.
+        double lineNanos = WRITE_BYTES / (rawRate * MB) * 1e9;
+
+        System.out.println(String.format("%d MB over loopback in %d KB writes", size / MB,
+                WRITE_BYTES / 1024));
+        System.out.println(String.format("without limiter: %8.1f MB/s (%.0f ns/write)",
+                rawRate, lineNanos));
+        System.out.println(String.format("with limiter:    %8.1f MB/s", limitedRate));
+        for (int i = 0; i < stageNanos.length; i++) {
+            System.out.println(String.format("stage alone, %s %6.1f ns/write, %.3f%% of line rate",
+                    names[i], stageNanos[i], 100 * stageNanos[i] / lineNanos));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package io.manun.camli;
+
+import io.manun.camli.BandwidthLimiter.Limits;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BandwidthLimiterTest {
+
+    private static final long KB = 1024;
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int WIFI = BandwidthLimiter.NETWORK_WIFI;
+    private static final int CELLULAR = BandwidthLimiter.NETWORK_CELLULAR;
+
+    private BandwidthLimiter mLimiter;
+    // Fake clocks: elapsed nanos for the buckets, and noon on 15 March
+    // 2021, local time, for the budgets.
+    private long mNanos = SECOND_NANOS;
+    private long mMillis;
+
+    @Before
+    public void setUp() {
+        mLimiter = new BandwidthLimiter();
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(2021, Calendar.MARCH, 15, 12, 0, 0);
+        mMillis = cal.getTimeInMillis();
+    }
+
+    private long charge(int networkClass, long n) throws IOException {
+        return mLimiter.charge(networkClass, n, mNanos, mMillis);
+    }
+
+    private static long startOf(long millis, int field, int amount) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(millis);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        if (field == Calendar.MONTH) {
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        cal.add(field, amount);
+        return cal.getTimeInMillis();
+    }
+
+    @Test
+    public void charge_Unlimited_NeverWaitsButCounts() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(0, charge(CELLULAR, 64 * KB));
+        }
+        Assert.assertEquals(64000 * KB, mLimiter.usedBytes(CELLULAR, false, mMillis));
+        Assert.assertEquals(64000 * KB, mLimiter.usedBytes(CELLULAR, true, mMillis));
+        Assert.assertEquals(0, mLimiter.usedBytes(WIFI, false, mMillis));
+        Assert.assertEquals(-1, mLimiter.renewsInMillis(CELLULAR, mMillis));
+    }
+
+    @Test
+    public void charge_Rate_BurstThenPaced() throws IOException {
+        mLimiter.setLimits(CELLULAR, new Limits(128 * KB, 0, 0));
+        // A second's worth goes at once.
+        Assert.assertEquals(0, charge(CELLULAR, 64 * KB));
+        Assert.assertEquals(0, charge(CELLULAR, 64 * KB));
+        // Then each write waits for its own bytes.
+        Assert.assertEquals(SECOND_NANOS / 2, charge(CELLULAR, 64 * KB));
+        Assert.assertEquals(SECOND_NANOS, charge(CELLULAR, 64 * KB));
+        // Other classes aren't held up.
+        Assert.assertEquals(0, charge(WIFI, 64 * KB));
+    }
+
+    @Test
+    public void charge_Idle_RefillsNoMoreThanBurst() throws IOException {
+        mLimiter.setLimits(CELLULAR, new Limits(128 * KB, 0, 0));
+        charge(CELLULAR, 128 * KB);
+        mNanos += 60 * SECOND_NANOS;
+        Assert.assertEquals(0, charge(CELLULAR, 128 * KB));
+        Assert.assertEquals(SECOND_NANOS / 4, charge(CELLULAR, 32 * KB));
+    }
+
+    @Test
+    public void charge_SlowRate_BurstIsAtLeastOneWrite() throws IOException {
+        mLimiter.setLimits(CELLULAR, new Limits(KB, 0, 0));
+        Assert.assertEquals(0, charge(CELLULAR, BandwidthLimiter.BURST_MIN_BYTES));
+        Assert.assertEquals(SECOND_NANOS, charge(CELLULAR, KB));
+    }
+
+    @Test
+    public void charge_DailyBudget_RefusedUntilTomorrow() throws IOException {
+        mLimiter.setLimits(CELLULAR, new Limits(0, 100 * KB, 0));
+        charge(CELLULAR, 64 * KB);
+        try {
+            charge(CELLULAR, 64 * KB);
+            Assert.fail("budget overrun");
+        } catch (BandwidthLimiter.BudgetExceededException e) {
+            // Expected.
+        }
+        Assert.assertEquals(64 * KB, mLimiter.usedBytes(CELLULAR, false, mMillis));
+        long tomorrow = startOf(mMillis, Calendar.DAY_OF_MONTH, 1);
+        // Some room is left, but not enough for what was refused.
+        Assert.assertEquals(tomorrow - mMillis, mLimiter.renewsInMillis(CELLULAR, mMillis));
+        Assert.assertEquals(-1, mLimiter.renewsInMillis(WIFI, mMillis));
+
+        mMillis = tomorrow;
+        Assert.assertEquals(-1, mLimiter.renewsInMillis(CELLULAR, mMillis));
+        Assert.assertEquals(0, charge(CELLULAR, 64 * KB));
+        Assert.assertEquals(128 * KB, mLimiter.usedBytes(CELLULAR, true, mMillis));
+    }
+
+    @Test
+    public void renewsInMillis_MonthlyBudgetSpent_NextMonth() throws IOException {
+        mLimiter.setLimits(CELLULAR, new Limits(0, 100 * KB, 128 * KB));
+        charge(CELLULAR, 64 * KB);
+        mMillis = startOf(mMillis, Calendar.DAY_OF_MONTH, 1);
+        charge(CELLULAR, 64 * KB);
+        long nextMonth = startOf(mMillis, Calendar.MONTH, 1);
+        Assert.assertEquals(nextMonth - mMillis, mLimiter.renewsInMillis(CELLULAR, mMillis));
+    }
+
+    @Test
+    public void setLimits_BudgetRaised_RoomAgain() throws IOException {
+        mLimiter.setLimits(CELLULAR, new Limits(0, 100 * KB, 0));
+        charge(CELLULAR, 64 * KB);
+        try {
+            charge(CELLULAR, 64 * KB);
+            Assert.fail("budget overrun");
+        } catch (BandwidthLimiter.BudgetExceededException e) {
+            // Expected.
+        }
+        mLimiter.setLimits(CELLULAR, new Limits(0, 200 * KB, 0));
+        Assert.assertEquals(-1, mLimiter.renewsInMillis(CELLULAR, mMillis));
+        Assert.assertEquals(0, charge(CELLULAR, 64 * KB));
+    }
+
+    @Test
+    public void loadUsage_SameDay_CountsRestored() throws IOException {
+        charge(CELLULAR, 10 * KB);
+        charge(WIFI, 20 * KB);
+        String saved = mLimiter.saveUsage();
+        Assert.assertNull(mLimiter.saveUsage());
+
+        BandwidthLimiter restored = new BandwidthLimiter();
+        restored.loadUsage(saved, mMillis + 1000);
+        Assert.assertEquals(10 * KB, restored.usedBytes(CELLULAR, false, mMillis));
+        Assert.assertEquals(20 * KB, restored.usedBytes(WIFI, true, mMillis));
+        Assert.assertNull(restored.saveUsage());
+    }
+
+    @Test
+    public void loadUsage_LaterDay_OnlyMonthRestored() throws IOException {
+        charge(CELLULAR, 10 * KB);
+        String saved = mLimiter.saveUsage();
+
+        BandwidthLimiter restored = new BandwidthLimiter();
+        long tomorrow = startOf(mMillis, Calendar.DAY_OF_MONTH, 1);
+        restored.loadUsage(saved, tomorrow);
+        Assert.assertEquals(0, restored.usedBytes(CELLULAR, false, tomorrow));
+        Assert.assertEquals(10 * KB, restored.usedBytes(CELLULAR, true, tomorrow));
+
+        long nextMonth = startOf(mMillis, Calendar.MONTH, 1);
+        restored = new BandwidthLimiter();
+        restored.loadUsage(saved, nextMonth);
+        Assert.assertEquals(0, restored.usedBytes(CELLULAR, true, nextMonth));
+    }
+
+    @Test
+    public void loadUsage_Malformed_Ignored() {
+        mLimiter.loadUsage("1,2,three", mMillis);
+        mLimiter.loadUsage("", mMillis);
+        mLimiter.loadUsage(null, mMillis);
+        Assert.assertEquals(0, mLimiter.usedBytes(CELLULAR, true, mMillis));
+    }
+
+    @Test
+    public void wrap_Unlimited_PassesBytesThrough() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = mLimiter.wrap(sink, WIFI, null);
+        out.write(new byte[100], 10, 50);
+        out.write(1);
+        Assert.assertEquals(51, sink.size());
+        Assert.assertEquals(51, mLimiter.usedBytes(WIFI, false, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void wrap_StoppedWhileWaiting_ThrowsQuickly() throws Exception {
+        mLimiter.setLimits(CELLULAR, new Limits(KB, 0, 0));
+        final AtomicBoolean stop = new AtomicBoolean();
+        final OutputStream out = mLimiter.wrap(new ByteArrayOutputStream(), CELLULAR, stop);
+        final AtomicLong threwAt = new AtomicLong();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[(int) BandwidthLimiter.BURST_MIN_BYTES];
+                try {
+                    // The second write waits a minute for its tokens.
+                    out.write(buf);
+                    out.write(buf);
+                } catch (InterruptedIOException e) {
+                    threwAt.set(System.nanoTime());
+                } catch (IOException e) {
+                    // Not expected; threwAt stays 0.
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(200);
+        Assert.assertTrue(t.isAlive());
+        long stoppedAt = System.nanoTime();
+        stop.set(true);
+        t.join(5000);
+        Assert.assertFalse(t.isAlive());
+        Assert.assertTrue(threwAt.get() != 0);
+        long millis = TimeUnit.NANOSECONDS.toMillis(threwAt.get() - stoppedAt);
+        Assert.assertTrue("stopped after " + millis + "ms",
+                millis <= 2 * BandwidthLimiter.WAIT_SLICE_MILLIS);
+    }
+}
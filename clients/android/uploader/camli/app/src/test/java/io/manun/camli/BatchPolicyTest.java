@@ -0,0 +1,74 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchPolicyTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void byteLimit_ServerMaxSmaller_ReturnsServerMax() {
+        BatchPolicy policy = new BatchPolicy();
+        Assert.assertEquals(1000, policy.byteLimit(1000));
+    }
+
+    @Test
+    public void byteLimit_NoServerMax_ReturnsTarget() {
+        BatchPolicy policy = new BatchPolicy();
+        Assert.assertEquals(BatchPolicy.INITIAL_TARGET_BYTES, policy.byteLimit(0));
+    }
+
+    @Test
+    public void isFull_FirstFile_NeverFull() {
+        BatchPolicy policy = new BatchPolicy();
+        Assert.assertFalse(policy.isFull(MB, 0, 0, BatchPolicy.MAX_BATCH_MILLIS, 100 * MB));
+    }
+
+    @Test
+    public void isFull_NextFileOverBudget_ReturnsTrue() {
+        BatchPolicy policy = new BatchPolicy();
+        Assert.assertTrue(policy.isFull(MB, MB / 2, 1, 0, MB));
+        Assert.assertFalse(policy.isFull(MB, MB / 2, 1, 0, MB / 4));
+    }
+
+    @Test
+    public void isFull_TooManyFiles_ReturnsTrue() {
+        BatchPolicy policy = new BatchPolicy();
+        Assert.assertTrue(policy.isFull(MB, 0, BatchPolicy.MAX_FILES, 0, 1));
+    }
+
+    @Test
+    public void isFull_OutOfTime_ReturnsTrue() {
+        BatchPolicy policy = new BatchPolicy();
+        Assert.assertTrue(policy.isFull(MB, 0, 1, BatchPolicy.MAX_BATCH_MILLIS, 1));
+    }
+
+    @Test
+    public void onBatchDone_FastLink_GrowsAtMostDouble() {
+        BatchPolicy policy = new BatchPolicy();
+        // 1MB in 10ms: the ideal batch is far beyond 2x.
+        policy.onBatchDone(MB, 10, true);
+        Assert.assertEquals(2 * BatchPolicy.INITIAL_TARGET_BYTES, policy.targetBytes());
+        for (int i = 0; i < 20; i++) {
+            policy.onBatchDone(policy.targetBytes(), 10, true);
+        }
+        Assert.assertEquals(BatchPolicy.MAX_TARGET_BYTES, policy.targetBytes());
+    }
+
+    @Test
+    public void onBatchDone_SlowLink_ShrinksToThroughput() {
+        BatchPolicy policy = new BatchPolicy();
+        // 10KB/s: a 10s batch is ~100KB, below the floor.
+        policy.onBatchDone(100 * 1024, 10 * 1000, true);
+        Assert.assertEquals(BatchPolicy.MIN_TARGET_BYTES, policy.targetBytes());
+    }
+
+    @Test
+    public void onBatchDone_Failure_HalvesTarget() {
+        BatchPolicy policy = new BatchPolicy();
+        policy.onBatchDone(0, 0, false);
+        Assert.assertEquals(BatchPolicy.INITIAL_TARGET_BYTES / 2, policy.targetBytes());
+        Assert.assertTrue(policy.errorRate() > 0);
+    }
+}
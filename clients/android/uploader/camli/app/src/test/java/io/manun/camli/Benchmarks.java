@@ -0,0 +1,24 @@
+package io.manun.camli;
+
+import org.junit.Assume;
+
+/**
+ * Benchmarks push hundreds of MB, some GBs, through the code they measure,
+ * and take minutes, so they're skipped unless asked for:
+ *
+ *   ./gradlew testDebugUnitTest --tests '*Benchmark' -Dcamli.bench=true
+ *
+ * They print what they measure, and only assert on what doesn't depend on
+ * how fast the machine is or how busy it is with other things.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    // Skips the calling benchmark unless -Dcamli.bench=true.
+    static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks only run with -Dcamli.bench=true",
+                Boolean.getBoolean("camli.bench"));
+    }
+}
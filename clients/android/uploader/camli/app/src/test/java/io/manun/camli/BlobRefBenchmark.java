@@ -0,0 +1,93 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares a have-set of String blobrefs, as the uploader used to keep,
+ * with BlobRefSet: retained heap for N entries, and contains() time for a
+ * mix of hits and misses. Set N with -Dcamli.bench.blobRefs (default
+ * 100000).
+ */
+public class BlobRefBenchmark {
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static String[] names(int n) throws Exception {
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = BlobRef.sha1Of(Integer.toString(i).getBytes("UTF-8")).toString();
+        }
+        return names;
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_HaveSet_SmallerAndFaster() throws Exception {
+        int n = Integer.getInteger("camli.bench.blobRefs", 100000);
+        String[] have = names(2 * n);
+        // Odd entries are never added, so lookups are half misses.
+        BlobRef[] refs = new BlobRef[have.length];
+        for (int i = 0; i < have.length; i++) {
+            refs[i] = BlobRef.parse(have[i]);
+        }
+
+        // Each set is built from the wire form, as a preupload response
+        // would be, so the String set owns its Strings.
+        long before = usedMemory();
+        Set<String> strings = new HashSet<>();
+        for (int i = 0; i < have.length; i += 2) {
+            strings.add(new String(have[i].toCharArray()));
+        }
+        long stringBytes = usedMemory() - before;
+
+        before = usedMemory();
+        BlobRefSet set = new BlobRefSet();
+        for (int i = 0; i < have.length; i += 2) {
+            set.add(BlobRef.parse(have[i]));
+        }
+        long setBytes = usedMemory() - before;
+
+        int rounds = 20;
+        int hits = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String s : have) {
+                if (strings.contains(s)) hits++;
+            }
+        }
+        long stringNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (BlobRef ref : refs) {
+                if (set.contains(ref)) hits--;
+            }
+        }
+        long setNanos = System.nanoTime() - start;
+        Assert.assertEquals(0, hits);
+        Assert.assertEquals(strings.size(), set.size());
+
+        long lookups = (long) rounds * have.length;
+        System.out.println(String.format("n=%d HashSet<String>: %6.1f bytes/entry %5.1f ns/lookup",
+                n, (double) stringBytes / n, (double) stringNanos / lookups));
+        System.out.println(String.format("n=%d BlobRefSet:      %6.1f bytes/entry %5.1f ns/lookup",
+                n, (double) setBytes / n, (double) setNanos / lookups));
+        // Measured with gc() between, so allow some slack.
+        Assert.assertTrue("BlobRefSet used " + setBytes + " bytes, HashSet " + stringBytes,
+                setBytes < stringBytes * 2 / 3);
+    }
+}
@@ -0,0 +1,75 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class BlobRefMapTest {
+
+    // Blobrefs that all hash to the same first slot, to exercise probing.
+    private static BlobRef colliding(int i) {
+        return new BlobRef(0, 0x1234567800000000L | i, i, i, null);
+    }
+
+    @Test
+    public void put_NewAndExisting_ReportsWhetherNew() {
+        BlobRefMap map = new BlobRefMap();
+        BlobRef a = BlobRef.sha1Of(new byte[]{1});
+        Assert.assertTrue(map.put(a, 1));
+        Assert.assertFalse(map.put(a, 2));
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals(2, map.get(a, -1));
+        Assert.assertEquals(-1, map.get(BlobRef.sha1Of(new byte[]{2}), -1));
+    }
+
+    @Test
+    public void get_ZeroThenNonZeroValues_BothKept() {
+        BlobRefMap map = new BlobRefMap();
+        map.put(colliding(1), 0);
+        Assert.assertEquals(0, map.get(colliding(1), -1));
+        map.put(colliding(2), 7);
+        Assert.assertEquals(0, map.get(colliding(1), -1));
+        Assert.assertEquals(7, map.get(colliding(2), -1));
+    }
+
+    @Test
+    public void remove_CollidingKeys_OthersStillFound() {
+        BlobRefMap map = new BlobRefMap();
+        for (int i = 0; i < 6; i++) {
+            map.put(colliding(i), i);
+        }
+        Assert.assertTrue(map.remove(colliding(0)));
+        Assert.assertTrue(map.remove(colliding(3)));
+        Assert.assertFalse(map.remove(colliding(3)));
+        Assert.assertEquals(4, map.size());
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals(i != 0 && i != 3, map.containsKey(colliding(i)));
+        }
+        Assert.assertEquals(5, map.get(colliding(5), -1));
+    }
+
+    @Test
+    public void putAndRemove_Random_MatchesHashMap() {
+        Random rand = new Random(42);
+        BlobRefMap map = new BlobRefMap();
+        Map<BlobRef, Long> want = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // A small key space, so puts, overwrites and removes all happen.
+            BlobRef key = BlobRef.sha1Of(new byte[]{(byte) rand.nextInt(64),
+                    (byte) rand.nextInt(64)});
+            if (rand.nextInt(3) == 0) {
+                Assert.assertEquals(want.remove(key) != null, map.remove(key));
+            } else {
+                long value = rand.nextLong();
+                Assert.assertEquals(want.put(key, value) == null, map.put(key, value));
+            }
+            Assert.assertEquals(want.size(), map.size());
+        }
+        for (Map.Entry<BlobRef, Long> e : want.entrySet()) {
+            Assert.assertEquals((long) e.getValue(), map.get(e.getKey(), 0));
+        }
+    }
+}
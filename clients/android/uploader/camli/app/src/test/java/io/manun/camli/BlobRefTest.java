@@ -0,0 +1,100 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlobRefTest {
+
+    private static final String A = "sha1-a94a8fe5ccb19ba61c4c0873d391e987982fbbd3";
+
+    @Test
+    public void parse_WellFormed_RoundTrips() {
+        BlobRef ref = BlobRef.parse(A);
+        Assert.assertNotNull(ref);
+        Assert.assertEquals(A, ref.toString());
+        Assert.assertEquals("sha1", ref.getHashName());
+    }
+
+    @Test
+    public void parse_UpperCaseHex_PrintsLowerCase() {
+        Assert.assertEquals(A, BlobRef.parse(A.toUpperCase().replace("SHA1", "sha1")).toString());
+    }
+
+    @Test
+    public void parse_Malformed_ReturnsNull() {
+        Assert.assertNull(BlobRef.parse(null));
+        Assert.assertNull(BlobRef.parse(""));
+        Assert.assertNull(BlobRef.parse("sha1"));
+        Assert.assertNull(BlobRef.parse(A.substring(1)));
+        Assert.assertNull(BlobRef.parse(A + "0"));
+        Assert.assertNull(BlobRef.parse("md5-" + A.substring(5)));
+        Assert.assertNull(BlobRef.parse(A.replace('a', 'g')));
+        // Character.digit would take these; a blobref is ASCII only.
+        Assert.assertNull(BlobRef.parse(A.substring(0, 44) + "\uff10"));
+    }
+
+    @Test
+    public void sha1Of_Data_MatchesUtilGetSha1() throws Exception {
+        byte[] data = "test data".getBytes("UTF-8");
+        Assert.assertEquals("sha1-" + Util.getSha1(data), BlobRef.sha1Of(data).toString());
+    }
+
+    @Test
+    public void getDigest_RoundTripsThroughOf() {
+        byte[] digest = new byte[20];
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = (byte) (0xf0 + i);
+        }
+        BlobRef ref = BlobRef.of("sha1", digest);
+        Assert.assertArrayEquals(digest, ref.getDigest());
+        Assert.assertEquals("sha1-" + Util.getHex(digest), ref.toString());
+    }
+
+    @Test
+    public void hashOf_Sha256_RoundTripsThroughParse() throws Exception {
+        BlobRef ref = BlobRef.hashOf("sha256", "abc".getBytes("UTF-8"));
+        String s = "sha256-ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+        Assert.assertEquals(s, ref.toString());
+        Assert.assertEquals(ref, BlobRef.parse(s));
+        Assert.assertEquals(32, ref.getDigest().length);
+        Assert.assertArrayEquals(ref.getDigest(), BlobRef.parse(s).getDigest());
+    }
+
+    @Test
+    public void equals_SameDigestBytesDifferentHash_NotEqual() {
+        byte[] digest = new byte[32];
+        BlobRef sha256 = BlobRef.of("sha256", digest);
+        BlobRef sha1 = BlobRef.of("sha1", new byte[20]);
+        Assert.assertNotEquals(sha1, sha256);
+        Assert.assertNotEquals(sha256, BlobRef.of("sha256", new byte[]{
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}));
+    }
+
+    @Test
+    public void isSupported_KnownAndUnknown() {
+        Assert.assertTrue(BlobRef.isSupported("sha1"));
+        Assert.assertTrue(BlobRef.isSupported("sha256"));
+        Assert.assertFalse(BlobRef.isSupported("md5"));
+        Assert.assertFalse(BlobRef.isSupported(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void of_WrongDigestLength_Throws() {
+        BlobRef.of("sha1", new byte[16]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void of_UnknownHash_Throws() {
+        BlobRef.of("md5", new byte[16]);
+    }
+
+    @Test
+    public void equals_SameDigest_EqualWithSameHash() {
+        BlobRef a = BlobRef.parse(A);
+        BlobRef b = BlobRef.parse(A.toUpperCase().replace("SHA1", "sha1"));
+        Assert.assertEquals(a, b);
+        Assert.assertEquals(a.hashCode(), b.hashCode());
+        Assert.assertNotEquals(a, BlobRef.sha1Of(new byte[0]));
+    }
+}
@@ -0,0 +1,133 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Measures Chunker throughput over a synthetic stream, both the boundary
+ * scan alone and the full split (scan plus SHA-1 of each chunk), against
+ * a plain SHA-1 of the same bytes for reference. The stream is 2 GB by
+ * default; set -Dcamli.bench.chunkerMB to change it.
+ */
+public class ChunkerBenchmark {
+
+    private static final long MB = 1024 * 1024;
+
+    // Pseudo-random bytes generated on the fly, so multi-GB runs don't
+    // need the memory or the disk.
+    private static class SyntheticStream extends InputStream {
+        private long mRemaining;
+        private long mState = 0x2545F4914F6CDD1DL;
+
+        SyntheticStream(long size) {
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, mRemaining) & ~7;
+            if (n == 0) {
+                n = (int) Math.min(len, mRemaining);
+            }
+            long x = mState;
+            for (int i = 0; i < n; i += 8) {
+                // xorshift64
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+                for (int j = 0; j < 8 && i + j < n; j++) {
+                    b[off + i + j] = (byte) (x >>> (j * 8));
+                }
+            }
+            mState = x;
+            mRemaining -= n;
+            return n;
+        }
+    }
+
+    private static double mbPerSec(long bytes, long nanos) {
+        return (double) bytes / MB / (nanos / 1e9);
+    }
+
+    private static long scanOnly(long size) throws IOException {
+        Chunker chunker = new Chunker();
+        InputStream in = new SyntheticStream(size);
+        byte[] b = new byte[256 * 1024];
+        long cuts = 0;
+        for (int n; (n = in.read(b)) != -1; ) {
+            int pos = 0;
+            int cut;
+            while (pos < n && (cut = chunker.scan(b, pos, n - pos)) >= 0) {
+                pos += cut;
+                cuts++;
+            }
+        }
+        return cuts;
+    }
+
+    private static long generateOnly(long size) throws IOException {
+        InputStream in = new SyntheticStream(size);
+        byte[] b = new byte[256 * 1024];
+        long total = 0;
+        for (int n; (n = in.read(b)) != -1; ) {
+            total += n;
+        }
+        return total;
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_SyntheticStream_Throughput() throws IOException {
+        long size = Long.getLong("camli.bench.chunkerMB", 2048) * MB;
+
+        // Warm up the JIT.
+        scanOnly(64 * MB);
+        new Chunker().split(new SyntheticStream(64 * MB));
+
+        long start = System.nanoTime();
+        generateOnly(size);
+        long generate = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long cuts = scanOnly(size);
+        long scan = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<Chunk> chunks = new Chunker().split(new SyntheticStream(size));
+        long split = System.nanoTime() - start;
+
+        System.out.println(String.format("%d MB, %d chunks (avg %d KB)",
+                size / MB, chunks.size(), size / chunks.size() / 1024));
+        System.out.println(String.format("generate:   %8.1f MB/s", mbPerSec(size, generate)));
+        System.out.println(String.format("scan:       %8.1f MB/s (%8.1f excluding generation)",
+                mbPerSec(size, scan), mbPerSec(size, Math.max(1, scan - generate))));
+        System.out.println(String.format("scan+sha1:  %8.1f MB/s (%8.1f excluding generation)",
+                mbPerSec(size, split), mbPerSec(size, Math.max(1, split - generate))));
+
+        // split also counts the trailing partial chunk, if any.
+        Assert.assertTrue(chunks.size() == cuts || chunks.size() == cuts + 1);
+        long total = 0;
+        for (Chunk chunk : chunks) {
+            total += chunk.getSize();
+        }
+        Assert.assertEquals(size, total);
+    }
+}
@@ -0,0 +1,186 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class ChunkerTest {
+
+    private static final int MIN = 4 * 1024;
+    private static final int AVG = 16 * 1024;
+    private static final int MAX = 64 * 1024;
+
+    private static byte[] testData(int n) {
+        byte[] data = new byte[n];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static List<Chunk> split(byte[] data) throws IOException {
+        return new Chunker(MIN, AVG, MAX).split(new ByteArrayInputStream(data));
+    }
+
+    private static Set<String> blobRefs(List<Chunk> chunks) {
+        Set<String> refs = new HashSet<>();
+        for (Chunk chunk : chunks) {
+            refs.add(chunk.getContentName());
+        }
+        return refs;
+    }
+
+    @Test
+    public void split_RandomData_ChunksTileInput() throws IOException {
+        byte[] data = testData(1024 * 1024 + 123);
+        long offset = 0;
+        for (Chunk chunk : split(data)) {
+            Assert.assertEquals(offset, chunk.getOffset());
+            offset += chunk.getSize();
+        }
+        Assert.assertEquals(data.length, offset);
+    }
+
+    @Test
+    public void split_RandomData_SizesWithinBounds() throws IOException {
+        List<Chunk> chunks = split(testData(2 * 1024 * 1024));
+        for (int i = 0; i < chunks.size(); i++) {
+            long size = chunks.get(i).getSize();
+            Assert.assertTrue("chunk " + i + " is " + size, size <= MAX);
+            if (i < chunks.size() - 1) {
+                Assert.assertTrue("chunk " + i + " is " + size, size >= MIN);
+            }
+        }
+        // Roughly AVG on average; the minimum shifts it up a little.
+        double avg = 2.0 * 1024 * 1024 / chunks.size();
+        Assert.assertTrue("average chunk is " + avg, avg > AVG / 2 && avg < AVG * 3);
+    }
+
+    @Test
+    public void split_ZeroData_CutsAtMax() throws IOException {
+        List<Chunk> chunks = split(new byte[3 * MAX + 10]);
+        Assert.assertEquals(4, chunks.size());
+        Assert.assertEquals(MAX, chunks.get(0).getSize());
+        Assert.assertEquals(10, chunks.get(3).getSize());
+    }
+
+    @Test
+    public void split_ChunkBlobRefs_MatchSha1OfRange() throws IOException {
+        byte[] data = testData(300 * 1024);
+        for (Chunk chunk : split(data)) {
+            byte[] range = Arrays.copyOfRange(data, (int) chunk.getOffset(),
+                    (int) (chunk.getOffset() + chunk.getSize()));
+            Assert.assertEquals("sha1-" + Util.getSha1(range), chunk.getContentName());
+        }
+    }
+
+    @Test
+    public void split_Sha256_SameCutsHashedWithSha256() throws IOException {
+        byte[] data = testData(300 * 1024);
+        List<Chunk> sha1 = split(data);
+        List<Chunk> sha256 = new Chunker(MIN, AVG, MAX).split(new ByteArrayInputStream(data),
+                "sha256");
+        Assert.assertEquals(sha1.size(), sha256.size());
+        for (int i = 0; i < sha256.size(); i++) {
+            Chunk chunk = sha256.get(i);
+            Assert.assertEquals(sha1.get(i).getOffset(), chunk.getOffset());
+            byte[] range = Arrays.copyOfRange(data, (int) chunk.getOffset(),
+                    (int) (chunk.getOffset() + chunk.getSize()));
+            Assert.assertEquals(BlobRef.hashOf("sha256", range), chunk.getBlobRef());
+        }
+    }
+
+    @Test
+    public void split_InsertNearStart_KeepsLaterChunks() throws IOException {
+        byte[] data = testData(2 * 1024 * 1024);
+        byte[] edited = new byte[data.length + 100];
+        int at = 100 * 1024;
+        System.arraycopy(data, 0, edited, 0, at);
+        System.arraycopy(data, at, edited, at + 100, data.length - at);
+
+        List<Chunk> before = split(data);
+        Set<String> after = blobRefs(split(edited));
+        int changed = 0;
+        for (Chunk chunk : before) {
+            if (!after.contains(chunk.getContentName())) {
+                changed++;
+            }
+        }
+        // Only the chunk holding the edit, and perhaps its neighbour,
+        // should change; fixed-size chunks would all have.
+        Assert.assertTrue(changed + " of " + before.size() + " chunks changed", changed <= 2);
+    }
+
+    @Test
+    public void split_SmallReads_SameChunksAsOneRead() throws IOException {
+        final byte[] data = testData(500 * 1024);
+        ByteArrayInputStream trickle = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+        List<Chunk> chunks = new Chunker(MIN, AVG, MAX).split(trickle);
+        Assert.assertEquals(blobRefs(split(data)), blobRefs(chunks));
+    }
+
+    @Test
+    public void split_StoppedMidway_ThrowsWithoutReadingRest() throws IOException {
+        final StopSignal stop = new StopSignal();
+        final byte[] data = testData(4 * 1024 * 1024);
+        ByteArrayInputStream in = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos >= data.length / 4) {
+                    stop.stop();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        try {
+            new Chunker(MIN, AVG, MAX).split(in, "sha1", stop);
+            Assert.fail("split finished after stop()");
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+        Assert.assertTrue(in.available() > data.length / 2);
+    }
+
+    @Test
+    public void split_Empty_ReturnsOneEmptyChunk() throws IOException {
+        List<Chunk> chunks = split(new byte[0]);
+        Assert.assertEquals(1, chunks.size());
+        Assert.assertEquals(0, chunks.get(0).getSize());
+        Assert.assertEquals("sha1-da39a3ee5e6b4b0d3255bfef95601890afd80709",
+                chunks.get(0).getContentName());
+    }
+
+    @Test
+    public void forMaxSize_TinyServerMax_ChunksFit() throws IOException {
+        List<Chunk> chunks = Chunker.forMaxSize(100).split(
+                new ByteArrayInputStream(testData(20 * 1024)));
+        for (Chunk chunk : chunks) {
+            Assert.assertTrue(chunk.getSize() <= 100);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void forMaxSize_UnderMinMax_Throws() {
+        Chunker.forMaxSize(Chunker.MIN_MAX_BYTES - 1);
+    }
+
+    @Test
+    public void forMaxSize_SmallServerMax_ChunksFit() throws IOException {
+        List<Chunk> chunks = Chunker.forMaxSize(10000).split(
+                new ByteArrayInputStream(testData(200 * 1024)));
+        for (Chunk chunk : chunks) {
+            Assert.assertTrue(chunk.getSize() <= 10000);
+        }
+    }
+}
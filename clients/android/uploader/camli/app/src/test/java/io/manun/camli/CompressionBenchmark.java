@@ -0,0 +1,314 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Weighs what compression costs in CPU against the bytes it keeps off
+ * the network, over a generated corpus of what a phone uploads: mostly
+ * JPEGs and videos, already compressed, with some logs, JSON schema
+ * blobs, XMP sidecars, CSV exports, RAW sensor data, and encrypted
+ * backups nothing can shrink.
+ *
+ * Three policies: never compress, always compress, and Compressor's,
+ * which skips blobs by type, magic, or a deflated sample. For each it
+ * prints the CPU time spent sniffing and deflating, the bytes saved, and
+ * the link speed below which that trade pays: the bytes saved would take
+ * longer to send than the CPU took to save them. The default level is
+ * shown too, against the BEST_SPEED Compressor uses.
+ *
+ * The corpus is 64 MB by default; set -Dcamli.bench.corpusMB to change it.
+ */
+public class CompressionBenchmark {
+
+    private static final double MB = 1024 * 1024;
+
+    private static class Blob {
+        final String kind;
+        final String mimeType;
+        final byte[] data;
+
+        Blob(String kind, String mimeType, byte[] data) {
+            this.kind = kind;
+            this.mimeType = mimeType;
+            this.data = data;
+        }
+    }
+
+    // Counts what's written to it.
+    private static class CountingOutputStream extends OutputStream {
+        long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    private static byte[] text(Random rnd, int size, String[] words, String sep) {
+        StringBuilder sb = new StringBuilder(size + 100);
+        while (sb.length() < size) {
+            sb.append(words[rnd.nextInt(words.length)]).append(sep);
+            if (rnd.nextInt(8) == 0) {
+                sb.append(rnd.nextInt(100000)).append('\n');
+            }
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] log(Random rnd, int size) {
+        StringBuilder sb = new StringBuilder(size + 200);
+        String[] levels = {"DEBUG", "INFO", "INFO", "WARN"};
+        String[] messages = {"upload: sent blob", "preupload: server has", "hash: cached",
+                "scheduler: waiting for unmetered network", "transport: reused connection"};
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append(String.format("2021-03-15 %02d:%02d:%02d.%03d %s %s sha1-%040x\n",
+                    i / 3600 % 24, i / 60 % 60, i % 60, rnd.nextInt(1000),
+                    levels[rnd.nextInt(levels.length)], messages[rnd.nextInt(messages.length)],
+                    rnd.nextLong()));
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] manifest(Random rnd, int size) {
+        StringBuilder sb = new StringBuilder(size + 200);
+        sb.append("{\"camliVersion\": 1,\n \"camliType\": \"file\",\n \"parts\": [\n");
+        while (sb.length() < size) {
+            sb.append(String.format("  {\"blobRef\": \"sha1-%016x%016x%08x\", \"size\": %d},\n",
+                    rnd.nextLong(), rnd.nextLong(), rnd.nextInt(), 65536 + rnd.nextInt(1 << 20)));
+        }
+        sb.setLength(size);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A smooth gradient with sensor noise, 12 bits in 16-bit samples.
+    private static byte[] raw(Random rnd, int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i + 1 < size; i += 2) {
+            int v = (i / 2 % 4000) + (int) (rnd.nextGaussian() * 12);
+            v = Math.max(0, Math.min(4095, v));
+            b[i] = (byte) v;
+            b[i + 1] = (byte) (v >> 8);
+        }
+        return b;
+    }
+
+    private static byte[] random(Random rnd, int size, byte[] magic) {
+        byte[] b = new byte[size];
+        rnd.nextBytes(b);
+        System.arraycopy(magic, 0, b, 0, magic.length);
+        return b;
+    }
+
+    private static List<Blob> corpus(long totalBytes) {
+        Random rnd = new Random(1);
+        List<Blob> corpus = new ArrayList<>();
+        // Fractions of the corpus, and typical blob sizes.
+        add(corpus, totalBytes * 40 / 100, 3 << 20, "jpeg", "image/jpeg", rnd);
+        add(corpus, totalBytes * 30 / 100, 12 << 20, "mp4", "video/mp4", rnd);
+        add(corpus, totalBytes * 8 / 100, 2 << 20, "raw", "image/x-adobe-dng", rnd);
+        add(corpus, totalBytes * 6 / 100, 1 << 20, "backup", "application/octet-stream", rnd);
+        add(corpus, totalBytes * 6 / 100, 512 << 10, "log", "text/plain", rnd);
+        add(corpus, totalBytes * 4 / 100, 64 << 10, "json", null, rnd);
+        add(corpus, totalBytes * 3 / 100, 256 << 10, "csv", "text/csv", rnd);
+        add(corpus, totalBytes * 3 / 100, 8 << 10, "xmp", "application/rdf+xml", rnd);
+        return corpus;
+    }
+
+    private static void add(List<Blob> corpus, long bytes, int blobSize, String kind,
+                            String mimeType, Random rnd) {
+        String[] words = {"the", "upload", "queue", "camera", "photo", "2021", "IMG_", "<rdf:li>",
+                "</rdf:li>", "xmp:Rating=\"3\"", "crs:Exposure2012=\"+0.35\""};
+        for (long added = 0; added < bytes; added += blobSize) {
+            int size = (int) Math.min(blobSize, Math.max(1024, bytes - added));
+            byte[] data;
+            switch (kind) {
+                case "jpeg":
+                    data = random(rnd, size, new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff});
+                    break;
+                case "mp4":
+                    data = random(rnd, size, "\0\0\0\u0018ftypmp42"
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    break;
+                case "raw":
+                    data = raw(rnd, size);
+                    break;
+                case "backup":
+                    data = random(rnd, size, new byte[0]);
+                    break;
+                case "log":
+                    data = log(rnd, size);
+                    break;
+                case "json":
+                    data = manifest(rnd, size);
+                    break;
+                case "csv":
+                    data = text(rnd, size, new String[]{"12.5", "0.031", "1024", "-7"}, ",");
+                    break;
+                default:
+                    data = text(rnd, size, words, " ");
+                    break;
+            }
+            corpus.add(new Blob(kind, mimeType, data));
+        }
+    }
+
+    // What a policy did to the corpus.
+    private static class Result {
+        long cpuNanos = 0;
+        long rawBytes = 0;
+        long sentBytes = 0;
+        long compressedBlobs = 0;
+        final List<String> compressedKinds = new ArrayList<>();
+
+        double breakEvenMBps() {
+            long saved = rawBytes - sentBytes;
+            return cpuNanos == 0 ? 0 : saved / MB / (cpuNanos / 1e9);
+        }
+    }
+
+    private static final int NEVER = 0;
+    private static final int ALWAYS = 1;
+    private static final int SNIFFED = 2;
+
+    private static Result run(List<Blob> corpus, int policy, Compressor compressor)
+            throws IOException {
+        Result r = new Result();
+        for (Blob blob : corpus) {
+            byte[] d = blob.data;
+            r.rawBytes += d.length;
+            long start = System.nanoTime();
+            boolean compress = policy == ALWAYS;
+            if (policy == SNIFFED) {
+                int headLen = Math.min(d.length, Compressor.SAMPLE_BYTES);
+                byte[] middle = null;
+                int middleLen = 0;
+                if (d.length > 2 * Compressor.SAMPLE_BYTES) {
+                    middle = new byte[Compressor.SAMPLE_BYTES];
+                    System.arraycopy(d, d.length / 2, middle, 0, middle.length);
+                    middleLen = middle.length;
+                }
+                compress = compressor.shouldCompress(blob.mimeType, d.length, d, headLen,
+                        middle, middleLen);
+            }
+            if (compress) {
+                CountingOutputStream out = new CountingOutputStream();
+                DeflaterOutputStream stage = compressor.stage(out);
+                for (int off = 0; off < d.length; off += 64 * 1024) {
+                    stage.write(d, off, Math.min(64 * 1024, d.length - off));
+                }
+                r.sentBytes += compressor.finish(stage);
+                r.compressedBlobs++;
+                if (!r.compressedKinds.contains(blob.kind)) {
+                    r.compressedKinds.add(blob.kind);
+                }
+            } else {
+                r.sentBytes += d.length;
+            }
+            r.cpuNanos += System.nanoTime() - start;
+        }
+        return r;
+    }
+
+    // Deflated size of data at level.
+    private static long deflated(byte[] data, int level) {
+        Deflater d = new Deflater(level);
+        byte[] out = new byte[64 * 1024];
+        d.setInput(data);
+        d.finish();
+        while (!d.finished()) {
+            d.deflate(out);
+        }
+        long n = d.getBytesWritten();
+        d.end();
+        return n;
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_MixedCorpus_SniffedSavesNearlyAll() throws IOException {
+        long total = (long) (Long.getLong("camli.bench.corpusMB", 64) * MB);
+        List<Blob> corpus = corpus(total);
+        Compressor compressor = new Compressor();
+        try {
+            // Warm up the JIT.
+            run(corpus, ALWAYS, compressor);
+            run(corpus, SNIFFED, compressor);
+
+            System.out.println(String.format("%d blobs, %.1f MB", corpus.size(), total / MB));
+            System.out.println("kind      MB   BEST_SPEED ratio  MB/s   default ratio  MB/s");
+            String[] kinds = {"jpeg", "mp4", "raw", "backup", "log", "json", "csv", "xmp"};
+            for (String kind : kinds) {
+                long raw = 0;
+                long fast = 0;
+                long best = 0;
+                long fastNanos = 0;
+                long bestNanos = 0;
+                for (Blob blob : corpus) {
+                    if (!blob.kind.equals(kind)) {
+                        continue;
+                    }
+                    raw += blob.data.length;
+                    long start = System.nanoTime();
+                    fast += deflated(blob.data, Deflater.BEST_SPEED);
+                    long mid = System.nanoTime();
+                    best += deflated(blob.data, Deflater.DEFAULT_COMPRESSION);
+                    fastNanos += mid - start;
+                    bestNanos += System.nanoTime() - mid;
+                }
+                System.out.println(String.format("%-7s %5.1f   %9.2fx %7.1f   %9.2fx %7.1f",
+                        kind, raw / MB, (double) raw / fast, raw / MB / (fastNanos / 1e9),
+                        (double) raw / best, raw / MB / (bestNanos / 1e9)));
+            }
+
+            Result never = run(corpus, NEVER, compressor);
+            Result always = run(corpus, ALWAYS, compressor);
+            Result sniffed = run(corpus, SNIFFED, compressor);
+            String[] names = {"never  ", "always ", "sniffed"};
+            Result[] results = {never, always, sniffed};
+            for (int i = 0; i < results.length; i++) {
+                Result r = results[i];
+                System.out.println(String.format(
+                        "%s: %7.1f ms CPU, %6.1f MB sent, %6.1f MB saved, " +
+                                "pays below %7.1f MB/s; compressed %s",
+                        names[i], r.cpuNanos / 1e6, r.sentBytes / MB,
+                        (r.rawBytes - r.sentBytes) / MB, r.breakEvenMBps(), r.compressedKinds));
+            }
+
+            Assert.assertEquals(total, never.rawBytes, total / 10);
+            for (String kind : new String[]{"jpeg", "mp4", "backup"}) {
+                Assert.assertFalse(kind + " compressed", sniffed.compressedKinds.contains(kind));
+            }
+            for (String kind : new String[]{"log", "json", "csv", "xmp"}) {
+                Assert.assertTrue(kind + " not compressed", sniffed.compressedKinds.contains(kind));
+            }
+            long alwaysSaved = always.rawBytes - always.sentBytes;
+            long sniffedSaved = sniffed.rawBytes - sniffed.sentBytes;
+            Assert.assertTrue("sniffed saved " + sniffedSaved + " of " + alwaysSaved,
+                    sniffedSaved >= alwaysSaved * 9 / 10);
+        } finally {
+            compressor.release();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.manun.camli;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public class CompressorTest {
+
+    private final Compressor mCompressor = new Compressor();
+
+    @After
+    public void tearDown() {
+        mCompressor.release();
+    }
+
+    private static byte[] logLines(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("2021-03-15 12:00:").append(i % 60).append(" INFO upload: sent blob ")
+                    .append(i).append(" of ").append(n).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random(int n) {
+        byte[] b = new byte[n];
+        new Random(1).nextBytes(b);
+        return b;
+    }
+
+    private boolean shouldCompress(String mimeType, byte[] blob) {
+        return mCompressor.shouldCompress(mimeType, blob.length, blob,
+                Math.min(blob.length, Compressor.SAMPLE_BYTES), null, 0);
+    }
+
+    @Test
+    public void isCompressedType_KnownFormats() {
+        Assert.assertTrue(Compressor.isCompressedType("image/jpeg"));
+        Assert.assertTrue(Compressor.isCompressedType("VIDEO/mp4"));
+        Assert.assertTrue(Compressor.isCompressedType(
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document"));
+        Assert.assertFalse(Compressor.isCompressedType("text/plain"));
+        Assert.assertFalse(Compressor.isCompressedType("image/x-adobe-dng"));
+        Assert.assertFalse(Compressor.isCompressedType(null));
+    }
+
+    @Test
+    public void hasCompressedMagic_KnownFormats() {
+        byte[] jpeg = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe1, 0, 0};
+        Assert.assertTrue(Compressor.hasCompressedMagic(jpeg, jpeg.length));
+        byte[] mp4 = "\0\0\0\u0018ftypmp42".getBytes(StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(Compressor.hasCompressedMagic(mp4, mp4.length));
+        // Too short to tell.
+        Assert.assertFalse(Compressor.hasCompressedMagic(jpeg, 2));
+        byte[] text = logLines(1);
+        Assert.assertFalse(Compressor.hasCompressedMagic(text, text.length));
+    }
+
+    @Test
+    public void shouldCompress_Text_True() {
+        Assert.assertTrue(shouldCompress("text/plain", logLines(1000)));
+        // Types are only trusted to say no.
+        Assert.assertTrue(shouldCompress(null, logLines(1000)));
+    }
+
+    @Test
+    public void shouldCompress_Incompressible_False() {
+        Assert.assertFalse(shouldCompress("application/octet-stream", random(100000)));
+        // Whatever its content, the type says it's compressed already.
+        Assert.assertFalse(shouldCompress("image/jpeg", logLines(1000)));
+        // Too small to bother.
+        Assert.assertFalse(shouldCompress("text/plain",
+                Arrays.copyOf(logLines(100), (int) Compressor.MIN_BYTES - 1)));
+    }
+
+    @Test
+    public void shouldCompress_IncompressibleMiddle_OutweighsHead() {
+        // A text header on a blob that's mostly random.
+        byte[] head = logLines(2000);
+        byte[] middle = random(Compressor.SAMPLE_BYTES);
+        Assert.assertTrue(mCompressor.shouldCompress(null, 10000000, head, 2000, null, 0));
+        Assert.assertFalse(mCompressor.shouldCompress(null, 10000000, head, 2000, middle,
+                middle.length));
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) != -1; ) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void stage_TwoBlobs_EachInflatesBack() throws IOException {
+        for (byte[] blob : new byte[][]{logLines(1000), logLines(10)}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write('x');
+            DeflaterOutputStream stage = mCompressor.stage(out);
+            stage.write(blob, 0, 100);
+            stage.write(blob, 100, blob.length - 100);
+            long compressed = mCompressor.finish(stage);
+            // Nothing before the stage was touched, and it didn't close out.
+            out.write('y');
+            byte[] written = out.toByteArray();
+            Assert.assertEquals(compressed + 2, written.length);
+            Assert.assertEquals('x', written[0]);
+            Assert.assertEquals('y', written[written.length - 1]);
+            Assert.assertArrayEquals(blob,
+                    inflate(Arrays.copyOfRange(written, 1, written.length - 1)));
+        }
+    }
+}
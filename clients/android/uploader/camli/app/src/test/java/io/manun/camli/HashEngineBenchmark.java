@@ -0,0 +1,137 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * Hashing throughput for a bulk import: the old one-file-at-a-time hash
+ * through a 4 KB BufferedInputStream, then HashEngine with 1, 2, 4, ...
+ * threads up to the core count. Set the total size with
+ * -Dcamli.bench.hashMB (default 256), spread over 32 files.
+ */
+public class HashEngineBenchmark {
+
+    private static final int FILES = 32;
+    private static final int ROUNDS = 3;
+
+    // Util.getSha1(FileDescriptor) as it was.
+    private static String oldSha1(FileDescriptor fd) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] b = new byte[4096];
+        InputStream is = new BufferedInputStream(new FileInputStream(fd), 4096);
+        for (int n; (n = is.read(b)) != -1; ) {
+            md.update(b, 0, n);
+        }
+        return Util.getHex(md.digest());
+    }
+
+    private static List<File> makeFiles(long totalBytes) throws IOException {
+        Random rand = new Random(1);
+        byte[] data = new byte[(int) (totalBytes / FILES)];
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            rand.nextBytes(data);
+            File file = File.createTempFile("hashbench", ".bin");
+            file.deleteOnExit();
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(data);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static List<String> hashOld(List<File> files) throws Exception {
+        List<String> hashes = new ArrayList<>();
+        for (File file : files) {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                hashes.add(oldSha1(fis.getFD()));
+            }
+        }
+        return hashes;
+    }
+
+    private static List<String> hashEngine(HashEngine engine, List<File> files)
+            throws Exception {
+        List<Future<String>> futures = new ArrayList<>();
+        for (final File file : files) {
+            futures.add(engine.submit(new HashEngine.Job<String>() {
+                @Override
+                public String run(byte[] buf) throws IOException {
+                    try (FileInputStream fis = new FileInputStream(file)) {
+                        return Util.getHex(HashEngine.hash("sha1", fis.getFD(), buf).getDigest());
+                    }
+                }
+            }));
+        }
+        List<String> hashes = new ArrayList<>();
+        for (Future<String> f : futures) {
+            hashes.add(f.get());
+        }
+        return hashes;
+    }
+
+    private static double mbPerSec(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_HashFiles_ScalesWithCores() throws Exception {
+        long totalBytes = Long.getLong("camli.bench.hashMB", 256) * 1024 * 1024;
+        List<File> files = makeFiles(totalBytes);
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Warm up, and the answer every run must match.
+        List<String> want = hashOld(files);
+
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            hashOld(files);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("cores=%d old single-thread: %7.1f MB/s",
+                cores, mbPerSec(bytes, best)));
+
+        for (int threads = 1; ; threads = Math.min(2 * threads, cores)) {
+            HashEngine engine = new HashEngine(threads, HashEngine.DEFAULT_BUFFER_BYTES,
+                    (long) threads * HashEngine.DEFAULT_BUFFER_BYTES);
+            Assert.assertEquals(want, hashEngine(engine, files));
+            best = Long.MAX_VALUE;
+            for (int r = 0; r < ROUNDS; r++) {
+                long start = System.nanoTime();
+                hashEngine(engine, files);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            engine.shutdown();
+            System.out.println(String.format("cores=%d HashEngine threads=%2d: %7.1f MB/s",
+                    cores, threads, mbPerSec(bytes, best)));
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class HashEngineTest {
+
+    private static File tempFile(int n, int seed) throws IOException {
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        File file = File.createTempFile("hash", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(data);
+        }
+        return file;
+    }
+
+    private static HashEngine.Job<String> sha1Job(final File file) {
+        return new HashEngine.Job<String>() {
+            @Override
+            public String run(byte[] buf) throws IOException {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    return Util.getHex(HashEngine.hash("sha1", fis.getFD(), buf).getDigest());
+                }
+            }
+        };
+    }
+
+    @Test
+    public void submit_ManyFiles_MatchesUtilGetSha1() throws Exception {
+        HashEngine engine = new HashEngine(3, 1000, 3000);
+        List<File> files = new ArrayList<>();
+        List<Future<String>> hashes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            File file = tempFile(i * 997, i);
+            files.add(file);
+            hashes.add(engine.submit(sha1Job(file)));
+        }
+        for (int i = 0; i < files.size(); i++) {
+            try (FileInputStream fis = new FileInputStream(files.get(i))) {
+                Assert.assertEquals(Util.getSha1(fis.getFD()), hashes.get(i).get());
+            }
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    public void constructor_BufferBudget_CapsThreads() {
+        Assert.assertEquals(2, new HashEngine(8, 1024, 2048).getThreads());
+        Assert.assertEquals(1, new HashEngine(1, 1024, 1 << 20).getThreads());
+    }
+
+    @Test
+    public void submit_SameThread_ReusesBuffer() throws Exception {
+        HashEngine engine = new HashEngine(1, 64, 64);
+        HashEngine.Job<byte[]> job = new HashEngine.Job<byte[]>() {
+            @Override
+            public byte[] run(byte[] buf) {
+                return buf;
+            }
+        };
+        Assert.assertSame(engine.submit(job).get(), engine.submit(job).get());
+        engine.shutdown();
+    }
+
+    @Test
+    public void submit_EngineFull_BlocksUntilJobFinishes() throws Exception {
+        final HashEngine engine = new HashEngine(1, 64, 64);
+        final CountDownLatch release = new CountDownLatch(1);
+        HashEngine.Job<Void> blocked = new HashEngine.Job<Void>() {
+            @Override
+            public Void run(byte[] buf) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        };
+        // One running and two queued fill a one-thread engine.
+        for (int i = 0; i < 3; i++) {
+            engine.submit(blocked);
+        }
+        final AtomicBoolean submitted = new AtomicBoolean();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    engine.submit(blocked);
+                    submitted.set(true);
+                } catch (InterruptedException e) {
+                    // Test fails below.
+                }
+            }
+        };
+        t.start();
+        t.join(200);
+        Assert.assertFalse(submitted.get());
+        release.countDown();
+        t.join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertTrue(submitted.get());
+        engine.shutdown();
+    }
+
+    @Test
+    public void submit_QueuedJobCancelled_FreesSlot() throws Exception {
+        HashEngine engine = new HashEngine(1, 64, 64);
+        final CountDownLatch release = new CountDownLatch(1);
+        HashEngine.Job<Void> blocked = new HashEngine.Job<Void>() {
+            @Override
+            public Void run(byte[] buf) throws InterruptedException {
+                release.await();
+                return null;
+            }
+        };
+        engine.submit(blocked);
+        engine.submit(blocked).cancel(false);
+        engine.submit(blocked).cancel(false);
+        // Would block forever if the cancelled jobs kept their slots.
+        Future<Void> last = engine.submit(blocked);
+        release.countDown();
+        last.get(5, TimeUnit.SECONDS);
+        engine.shutdown();
+    }
+
+    @Test
+    public void submit_JobThrows_FailsFuture() throws Exception {
+        HashEngine engine = new HashEngine(1, 64, 64);
+        Future<String> f = engine.submit(sha1Job(new File("/nonexistent/file")));
+        try {
+            f.get();
+            Assert.fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        engine.shutdown();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void submit_AfterShutdown_Throws() throws Exception {
+        HashEngine engine = new HashEngine(1, 64, 64);
+        engine.shutdown();
+        engine.submit(sha1Job(new File("/nonexistent/file")));
+    }
+}
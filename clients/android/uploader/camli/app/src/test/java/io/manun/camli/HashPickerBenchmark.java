@@ -0,0 +1,49 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Throughput of each supported blobref hash on this machine, at a
+ * chunk-sized and a small-file-sized buffer, and which one HashPicker
+ * would choose against a server that supports them all. Run it on a
+ * device (as an instrumented test) to see that device's answer.
+ */
+public class HashPickerBenchmark {
+
+    private static final long NANOS = 500L * 1000 * 1000;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_Hashes_ReportsMbPerSecond() {
+        Random rand = new Random(1);
+        int[] sizes = {16 * 1024, 1024 * 1024};
+        String fastest = null;
+        double fastestSpeed = 0;
+        for (String hashName : BlobRef.hashNames()) {
+            StringBuilder line = new StringBuilder(String.format("%-7s", hashName));
+            for (int size : sizes) {
+                byte[] buf = new byte[size];
+                rand.nextBytes(buf);
+                double speed = HashPicker.measure(hashName, buf, NANOS);
+                line.append(String.format("  %5d KB: %7.1f MB/s", size / 1024, speed));
+                if (size == sizes[sizes.length - 1] && speed > fastestSpeed) {
+                    fastest = hashName;
+                    fastestSpeed = speed;
+                }
+            }
+            System.out.println(line);
+        }
+        String picked = HashPicker.pick(Arrays.asList(BlobRef.hashNames()));
+        System.out.println("HashPicker picks " + picked + "; fastest here was " + fastest);
+        Assert.assertTrue(BlobRef.isSupported(picked));
+    }
+}
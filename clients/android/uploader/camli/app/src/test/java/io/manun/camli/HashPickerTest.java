@@ -0,0 +1,54 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HashPickerTest {
+
+    private static Map<String, Double> speeds(double sha1, double sha256) {
+        Map<String, Double> speeds = new HashMap<>();
+        speeds.put("sha1", sha1);
+        speeds.put("sha256", sha256);
+        return speeds;
+    }
+
+    @Test
+    public void pick_BothSupported_PicksFastest() {
+        Assert.assertEquals("sha256",
+                HashPicker.pick(Arrays.asList("sha1", "sha256"), speeds(400, 900)));
+        Assert.assertEquals("sha1",
+                HashPicker.pick(Arrays.asList("sha1", "sha256"), speeds(400, 300)));
+    }
+
+    @Test
+    public void pick_ServerOnlySha1_PicksSha1EvenIfSlower() {
+        Assert.assertEquals("sha1",
+                HashPicker.pick(Collections.singletonList("sha1"), speeds(400, 900)));
+    }
+
+    @Test
+    public void pick_UnknownHashesOnly_FallsBackToDefault() {
+        Assert.assertEquals(HashPicker.DEFAULT_HASH,
+                HashPicker.pick(Arrays.asList("blake2b", "md5"), speeds(400, 900)));
+        Assert.assertEquals(HashPicker.DEFAULT_HASH,
+                HashPicker.pick(Collections.<String>emptyList(), speeds(400, 900)));
+    }
+
+    @Test
+    public void pick_ServerDidNotSay_Default() {
+        Assert.assertEquals(HashPicker.DEFAULT_HASH, HashPicker.pick(null));
+    }
+
+    @Test
+    public void speeds_MeasuresEverySupportedHash() {
+        Map<String, Double> speeds = HashPicker.speeds();
+        for (String hashName : BlobRef.hashNames()) {
+            Assert.assertTrue(hashName, speeds.get(hashName) > 0);
+        }
+    }
+}
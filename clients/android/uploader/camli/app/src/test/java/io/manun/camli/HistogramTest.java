@@ -0,0 +1,70 @@
+package io.manun.camli;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void percentile_Empty_Zero() {
+        Histogram h = new Histogram();
+        Assert.assertEquals(0, h.count());
+        Assert.assertEquals(0, h.min());
+        Assert.assertEquals(0, h.max());
+        Assert.assertEquals(0, h.percentile(50));
+    }
+
+    @Test
+    public void record_Values_CountsAndBounds() {
+        Histogram h = new Histogram();
+        h.record(5);
+        h.record(100);
+        h.record(-3);
+        Assert.assertEquals(3, h.count());
+        Assert.assertEquals(105, h.sum());
+        Assert.assertEquals(0, h.min());
+        Assert.assertEquals(100, h.max());
+    }
+
+    @Test
+    public void percentile_Spread_WithinFactorOfTwo() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        long p50 = h.percentile(50);
+        Assert.assertTrue("p50=" + p50, p50 >= 500 && p50 < 1000);
+        long p99 = h.percentile(99);
+        Assert.assertTrue("p99=" + p99, p99 >= 990 && p99 <= 1000);
+        Assert.assertEquals(1000, h.percentile(100));
+    }
+
+    @Test
+    public void percentile_OneValue_ThatValue() {
+        Histogram h = new Histogram();
+        h.record(300);
+        Assert.assertEquals(300, h.percentile(1));
+        Assert.assertEquals(300, h.percentile(99));
+    }
+
+    @Test
+    public void record_LongMaxValue_Counted() {
+        Histogram h = new Histogram();
+        h.record(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, h.percentile(50));
+    }
+
+    @Test
+    public void toJSON_Values_Summarized() throws JSONException {
+        Histogram h = new Histogram();
+        h.record(2);
+        h.record(4);
+        JSONObject json = h.toJSON();
+        Assert.assertEquals(2, json.getLong("count"));
+        Assert.assertEquals(6, json.getLong("sum"));
+        Assert.assertEquals(2, json.getLong("min"));
+        Assert.assertEquals(4, json.getLong("max"));
+    }
+}
@@ -0,0 +1,74 @@
+package io.manun.camli;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Shows how upload queue bookkeeping scales with the backlog: the old
+ * LinkedList copy-and-remove pattern against IndexedQueue leasing. Each
+ * round leases a batch and completes every element of it, like
+ * UploadThread does.
+ */
+public class IndexedQueueBenchmark {
+
+    private static final int BATCH = 100;
+
+    private static long timeIndexedQueue(int n) {
+        IndexedQueue<Integer> q = new IndexedQueue<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            q.add(i);
+        }
+        List<Integer> batch;
+        while (!(batch = q.lease(BATCH)).isEmpty()) {
+            for (Integer e : batch) {
+                q.remove(e);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeLinkedList(int n) {
+        LinkedList<Integer> q = new LinkedList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            q.add(i);
+        }
+        LinkedList<Integer> copy;
+        while (!(copy = new LinkedList<>(q)).isEmpty()) {
+            for (int i = 0; i < BATCH && !copy.isEmpty(); i++) {
+                // Completions arrive oldest first, but remove(Object) still
+                // walks the list; take from the back to show the worst case.
+                q.remove(copy.removeLast());
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_LeaseAndComplete_ScalesLinearly() {
+        // Warm up the JIT.
+        timeIndexedQueue(100000);
+        timeLinkedList(2000);
+
+        int[] sizes = {1000, 10000, 50000, 200000};
+        for (int n : sizes) {
+            long indexed = timeIndexedQueue(n);
+            double perOp = (double) indexed / n;
+            String line = String.format("n=%7d IndexedQueue: %8.1f ns/item", n, perOp);
+            if (n <= 10000) {
+                long linked = timeLinkedList(n);
+                line += String.format("  LinkedList: %10.1f ns/item", (double) linked / n);
+            }
+            System.out.println(line);
+        }
+    }
+}
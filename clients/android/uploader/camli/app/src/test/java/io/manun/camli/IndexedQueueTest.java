@@ -0,0 +1,121 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class IndexedQueueTest {
+
+    private static IndexedQueue<String> queueOf(String... items) {
+        IndexedQueue<String> q = new IndexedQueue<>();
+        for (String s : items) {
+            q.add(s);
+        }
+        return q;
+    }
+
+    @Test
+    public void add_Duplicate_ReturnsFalse() {
+        IndexedQueue<String> q = queueOf("a");
+        Assert.assertFalse(q.add("a"));
+        Assert.assertEquals(1, q.size());
+    }
+
+    @Test
+    public void add_DuplicateOfLeased_ReturnsFalse() {
+        IndexedQueue<String> q = queueOf("a");
+        q.lease(1);
+        Assert.assertFalse(q.add("a"));
+    }
+
+    @Test
+    public void lease_ReturnsInInsertionOrder() {
+        IndexedQueue<String> q = queueOf("a", "b", "c");
+        Assert.assertEquals(Collections.singletonList("a"), q.lease(1));
+        Assert.assertEquals(Collections.singletonList("b"), q.lease(1));
+        Assert.assertEquals(Collections.singletonList("c"), q.lease(1));
+        Assert.assertTrue(q.lease(1).isEmpty());
+        Assert.assertEquals(0, q.pendingSize());
+    }
+
+    @Test
+    public void remove_Middle_KeepsOrder() {
+        IndexedQueue<String> q = queueOf("a", "b", "c");
+        Assert.assertTrue(q.remove("b"));
+        Assert.assertFalse(q.remove("b"));
+        Assert.assertEquals(Arrays.asList("a", "c"), q.lease(10));
+    }
+
+    @Test
+    public void lease_HandsOutDisjointBatches() {
+        IndexedQueue<String> q = queueOf("a", "b", "c", "d", "e");
+        Assert.assertEquals(Arrays.asList("a", "b"), q.lease(2));
+        Assert.assertEquals(Arrays.asList("c", "d"), q.lease(2));
+        Assert.assertEquals(Collections.singletonList("e"), q.lease(2));
+        Assert.assertTrue(q.lease(2).isEmpty());
+        Assert.assertEquals(5, q.size());
+        Assert.assertEquals(5, q.leasedSize());
+        Assert.assertEquals(0, q.pendingSize());
+    }
+
+    @Test
+    public void remove_Leased_DropsIt() {
+        IndexedQueue<String> q = queueOf("a", "b");
+        List<String> batch = q.lease(2);
+        Assert.assertTrue(q.remove("a"));
+        Assert.assertEquals(1, q.leasedSize());
+        q.release(batch);
+        Assert.assertEquals(Collections.singletonList("b"), q.lease(10));
+    }
+
+    @Test
+    public void release_PutsBatchBackAtHeadInOrder() {
+        IndexedQueue<String> q = queueOf("a", "b", "c", "d");
+        List<String> batch = q.lease(2);
+        q.add("e");
+        q.release(batch);
+        Assert.assertEquals(0, q.leasedSize());
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d", "e"), q.lease(10));
+    }
+
+    @Test
+    public void release_Twice_IsIgnored() {
+        IndexedQueue<String> q = queueOf("a", "b");
+        List<String> batch = q.lease(1);
+        q.release(batch);
+        q.release(batch);
+        Assert.assertEquals(2, q.pendingSize());
+        Assert.assertEquals(Arrays.asList("a", "b"), q.lease(10));
+    }
+
+    @Test
+    public void requeue_Leased_GoesToBack() {
+        IndexedQueue<String> q = queueOf("a", "b", "c");
+        List<String> batch = q.lease(2);
+        Assert.assertTrue(q.requeue("a"));
+        q.release(batch);
+        Assert.assertEquals(Arrays.asList("b", "c", "a"), q.lease(10));
+    }
+
+    @Test
+    public void requeue_NotLeased_ReturnsFalse() {
+        IndexedQueue<String> q = queueOf("a", "b");
+        Assert.assertFalse(q.requeue("a"));
+        Assert.assertFalse(q.requeue("z"));
+        Assert.assertEquals(Arrays.asList("a", "b"), q.lease(10));
+    }
+
+    @Test
+    public void isLeased_OnlyWhileLeased() {
+        IndexedQueue<String> q = queueOf("a", "b");
+        List<String> batch = q.lease(1);
+        Assert.assertTrue(q.isLeased("a"));
+        Assert.assertFalse(q.isLeased("b"));
+        Assert.assertFalse(q.isLeased("z"));
+        q.release(batch);
+        Assert.assertFalse(q.isLeased("a"));
+    }
+}
@@ -0,0 +1,62 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+public class PendingWritesTest {
+
+    @Test
+    public void drain_AddsAndRemoves_InArrivalOrder() {
+        PendingWrites<String> w = new PendingWrites<>();
+        w.add("a");
+        w.remove("b");
+        w.add("c");
+        Map<String, Boolean> writes = w.drain();
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(writes.keySet()));
+        Assert.assertEquals(Arrays.asList(true, false, true), new ArrayList<>(writes.values()));
+        Assert.assertEquals(0, w.size());
+        Assert.assertTrue(w.drain().isEmpty());
+    }
+
+    @Test
+    public void remove_PendingAdd_DropsBoth() {
+        PendingWrites<String> w = new PendingWrites<>();
+        w.add("a");
+        w.remove("a");
+        Assert.assertEquals(0, w.size());
+        Assert.assertTrue(w.drain().isEmpty());
+    }
+
+    @Test
+    public void add_PendingRemove_WritesAdd() {
+        PendingWrites<String> w = new PendingWrites<>();
+        w.remove("a");
+        w.add("a");
+        Assert.assertEquals(Boolean.TRUE, w.drain().get("a"));
+    }
+
+    @Test
+    public void remove_AddThatReplacedRemove_KeepsRemove() {
+        PendingWrites<String> w = new PendingWrites<>();
+        w.add("a");
+        w.drain(); // "a" is on disk now.
+        w.remove("a");
+        w.add("a");
+        w.remove("a");
+        Assert.assertEquals(1, w.size());
+        Assert.assertEquals(Boolean.FALSE, w.drain().get("a"));
+    }
+
+    @Test
+    public void remove_AfterDrain_WritesRemove() {
+        PendingWrites<String> w = new PendingWrites<>();
+        w.add("a");
+        w.drain();
+        w.remove("a");
+        Assert.assertEquals(Boolean.FALSE, w.drain().get("a"));
+    }
+}
@@ -0,0 +1,375 @@
+package io.manun.camli;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+public class PooledHttpTransportTest {
+
+    // What PooledHttpTransport.basicAuth("pass") makes on a device.
+    private static final String BASIC_AUTH = "Basic " + Base64.getEncoder().encodeToString(
+            "TOD-DUMMY-USER:pass".getBytes(StandardCharsets.UTF_8));
+
+    private HttpServer mServer;
+    private PooledHttpTransport mTransport;
+    private CountingServer mCountingServer;
+    // Uptime as the transport sees it, for token expiry.
+    private long mUptimeMillis = 1000 * 1000;
+    private final PooledHttpTransport.Clock mClock = new PooledHttpTransport.Clock() {
+        @Override
+        public long uptimeMillis() {
+            return mUptimeMillis;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        mServer.start();
+        mTransport = newTransport(PooledHttpTransport.DEFAULT_EXPECT_CONTINUE_MILLIS);
+    }
+
+    private PooledHttpTransport newTransport(int expectContinueMillis) {
+        return new PooledHttpTransport(BASIC_AUTH, 2, expectContinueMillis, mClock);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mTransport.shutdown();
+        mServer.stop(0);
+        if (mCountingServer != null) {
+            mCountingServer.mSocket.close();
+        }
+    }
+
+    private void get() throws IOException {
+        HttpResponse res = mTransport.execute(new HttpGet("http://127.0.0.1:" +
+                mServer.getAddress().getPort() + "/"));
+        Assert.assertEquals(200, res.getStatusLine().getStatusCode());
+        EntityUtils.consume(res.getEntity());
+    }
+
+    @Test
+    public void execute_SequentialRequests_ReuseConnection() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            get();
+        }
+        Assert.assertEquals(5, mTransport.requestCount());
+        Assert.assertEquals(4, mTransport.reusedConnectionCount());
+    }
+
+    @Test
+    public void closeIdleConnections_AllIdle_NextRequestReconnects() throws IOException {
+        get();
+        mTransport.closeIdleConnections(0);
+        get();
+        Assert.assertEquals(2, mTransport.requestCount());
+        Assert.assertEquals(0, mTransport.reusedConnectionCount());
+    }
+
+    // Minimal HTTP/1.1 server that wants "pass" or the token "good-token",
+    // and counts every byte it receives. Like the blobserver, it refuses
+    // requests that sent "Expect: 100-continue" without reading their body.
+    private static class CountingServer extends Thread {
+        final ServerSocket mSocket;
+        // What authorized requests that expect 100-continue get: 100 and
+        // then the response, a refusal (417), or, if 0, just the response.
+        volatile int mExpectStatus = 100;
+        // Guarded by 'this':
+        long mBytesReceived = 0;
+        long mBodyBytesReceived = 0;
+        final List<String> mAuthorizations = new ArrayList<>();
+        int mExpects = 0;
+
+        CountingServer() throws IOException {
+            super("CountingServer");
+            mSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            setDaemon(true);
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/camli/upload";
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket s = mSocket.accept();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                serve(s);
+                            } catch (IOException e) {
+                                // Client went away.
+                            }
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // Closed by tearDown().
+            }
+        }
+
+        private void serve(Socket s) throws IOException {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                String headers = readHeaders(in);
+                if (headers == null) {
+                    s.close();
+                    return;
+                }
+                long length = 0;
+                String auth = null;
+                boolean expect = false;
+                for (String line : headers.split("\r\n")) {
+                    String lower = line.toLowerCase(Locale.US);
+                    if (lower.startsWith("content-length:")) {
+                        length = Long.parseLong(line.substring(15).trim());
+                    } else if (lower.startsWith("authorization:")) {
+                        auth = line.substring(14).trim();
+                    } else if (lower.equals("expect: 100-continue")) {
+                        expect = true;
+                    }
+                }
+                boolean authorized = BASIC_AUTH.equals(auth) || "Bearer good-token".equals(auth);
+                synchronized (this) {
+                    mBytesReceived += headers.length();
+                    mAuthorizations.add(auth);
+                    if (expect) {
+                        mExpects++;
+                    }
+                }
+                if (expect && (!authorized || mExpectStatus == 417)) {
+                    String status = authorized ? "417 Expectation Failed" : "401 Unauthorized";
+                    out.write(("HTTP/1.1 " + status + "\r\nConnection: close\r\n" +
+                            "Content-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+                    s.close();
+                    return;
+                }
+                if (expect && mExpectStatus == 100) {
+                    out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+                    out.flush();
+                }
+                byte[] buf = new byte[64 * 1024];
+                for (long left = length; left > 0; ) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n == -1) {
+                        throw new IOException("truncated body");
+                    }
+                    left -= n;
+                }
+                synchronized (this) {
+                    mBytesReceived += length;
+                    mBodyBytesReceived += length;
+                }
+                if (authorized) {
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+                            .getBytes("US-ASCII"));
+                } else {
+                    out.write(("HTTP/1.1 401 Unauthorized\r\n" +
+                            "WWW-Authenticate: Basic realm=\"camlistored\"\r\n" +
+                            "Content-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+                }
+                out.flush();
+            }
+        }
+
+        // Reads through the blank line ending a request's headers, or
+        // returns null at EOF.
+        private static String readHeaders(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < 4 || sb.lastIndexOf("\r\n\r\n") != sb.length() - 4) {
+                int c = in.read();
+                if (c == -1) {
+                    return null;
+                }
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        synchronized long bodyBytesReceived() {
+            return mBodyBytesReceived;
+        }
+
+        synchronized long bytesReceived() {
+            return mBytesReceived;
+        }
+
+        synchronized List<String> authorizations() {
+            return new ArrayList<>(mAuthorizations);
+        }
+
+        synchronized int expects() {
+            return mExpects;
+        }
+    }
+
+    // POSTs size bytes that can only be read once, returning the status.
+    private int post(String url, int size) throws IOException {
+        HttpPost req = new HttpPost(url);
+        req.setEntity(new InputStreamEntity(new ByteArrayInputStream(new byte[size]), size));
+        HttpResponse res = mTransport.execute(req);
+        EntityUtils.consume(res.getEntity());
+        return res.getStatusLine().getStatusCode();
+    }
+
+    private CountingServer startCountingServer() throws IOException {
+        CountingServer server = new CountingServer();
+        server.start();
+        mCountingServer = server;
+        return server;
+    }
+
+    @Test
+    public void execute_LargeUpload_BodySentOnce() throws IOException {
+        CountingServer server = startCountingServer();
+        int size = 4 * 1024 * 1024;
+        Assert.assertEquals(200, post(server.url(), size));
+        Assert.assertEquals(size, server.bodyBytesReceived());
+        // Just the one request's headers on top.
+        Assert.assertTrue(server.bytesReceived() < size + 1024);
+        Assert.assertEquals(1, server.authorizations().size());
+        Assert.assertTrue(server.authorizations().get(0).startsWith("Basic "));
+        Assert.assertEquals(1, mTransport.requestCount());
+        Assert.assertEquals(1, server.expects());
+    }
+
+    @Test
+    public void execute_RefusedBeforeBody_BodyNotSent() throws IOException {
+        CountingServer server = startCountingServer();
+        mTransport.setAuthToken("bad-token", mUptimeMillis + 600 * 1000);
+        long started = System.nanoTime();
+        Assert.assertEquals(401, post(server.url(), 4 * 1024 * 1024));
+        Assert.assertEquals(0, server.bodyBytesReceived());
+        // Refused right away, not after waiting out the timeout.
+        Assert.assertTrue(elapsedMillis(started) <
+                PooledHttpTransport.DEFAULT_EXPECT_CONTINUE_MILLIS);
+        // The password goes out next, on a new connection.
+        Assert.assertEquals(200, post(server.url(), 4 * 1024 * 1024));
+        Assert.assertEquals(4 * 1024 * 1024, server.bodyBytesReceived());
+    }
+
+    @Test
+    public void execute_SmallUpload_NoExpect() throws IOException {
+        CountingServer server = startCountingServer();
+        Assert.assertEquals(200, post(server.url(),
+                (int) PooledHttpTransport.EXPECT_CONTINUE_MIN_BYTES - 1));
+        Assert.assertEquals(0, server.expects());
+    }
+
+    @Test
+    public void execute_NoContinue_BodySentAfterWait() throws IOException {
+        mTransport.shutdown();
+        mTransport = newTransport(200);
+        CountingServer server = startCountingServer();
+        server.mExpectStatus = 0;
+        long started = System.nanoTime();
+        Assert.assertEquals(200, post(server.url(), 1024 * 1024));
+        Assert.assertTrue(elapsedMillis(started) >= 200);
+        Assert.assertEquals(1024 * 1024, server.bodyBytesReceived());
+    }
+
+    @Test
+    public void execute_ExpectationFailed_NotAskedAgain() throws IOException {
+        CountingServer server = startCountingServer();
+        server.mExpectStatus = 417;
+        Assert.assertEquals(417, post(server.url(), 1024 * 1024));
+        Assert.assertEquals(0, server.bodyBytesReceived());
+        Assert.assertEquals(200, post(server.url(), 1024 * 1024));
+        Assert.assertEquals(1, server.expects());
+    }
+
+    @Test
+    public void execute_ExpectContinueOff_NoExpect() throws IOException {
+        mTransport.shutdown();
+        mTransport = newTransport(0);
+        CountingServer server = startCountingServer();
+        Assert.assertEquals(200, post(server.url(), 1024 * 1024));
+        Assert.assertEquals(0, server.expects());
+    }
+
+    @Test
+    public void setAuthToken_Fresh_SentInsteadOfPassword() throws IOException {
+        CountingServer server = startCountingServer();
+        mTransport.setAuthToken("good-token", mUptimeMillis + 600 * 1000);
+        Assert.assertEquals(200, post(server.url(), 10));
+        Assert.assertEquals("Bearer good-token", server.authorizations().get(0));
+    }
+
+    @Test
+    public void setAuthToken_AboutToExpire_PasswordSent() throws IOException {
+        CountingServer server = startCountingServer();
+        mTransport.setAuthToken("good-token", mUptimeMillis + 1000);
+        Assert.assertEquals(200, post(server.url(), 10));
+        Assert.assertTrue(server.authorizations().get(0).startsWith("Basic "));
+    }
+
+    @Test
+    public void setAuthToken_Expired_PasswordSent() throws IOException {
+        CountingServer server = startCountingServer();
+        mTransport.setAuthToken("good-token", mUptimeMillis + 600 * 1000);
+        Assert.assertEquals(200, post(server.url(), 10));
+        mUptimeMillis += 600 * 1000;
+        Assert.assertEquals(200, post(server.url(), 10));
+        List<String> auths = server.authorizations();
+        Assert.assertEquals("Bearer good-token", auths.get(0));
+        Assert.assertTrue(auths.get(1).startsWith("Basic "));
+    }
+
+    @Test
+    public void execute_TokenRefused_PasswordNextTime() throws IOException {
+        CountingServer server = startCountingServer();
+        mTransport.setAuthToken("bad-token", mUptimeMillis + 600 * 1000);
+        Assert.assertEquals(401, post(server.url(), 1000));
+        // Not replayed.
+        Assert.assertEquals(1000, server.bodyBytesReceived());
+        Assert.assertEquals(200, post(server.url(), 1000));
+        List<String> auths = server.authorizations();
+        Assert.assertEquals(2, auths.size());
+        Assert.assertEquals("Bearer bad-token", auths.get(0));
+        Assert.assertTrue(auths.get(1).startsWith("Basic "));
+    }
+}
@@ -0,0 +1,93 @@
+package io.manun.camli;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares heap allocation and time for reading a 10k-blobref preupload
+ * response, where the server already has every blob: the old
+ * Util.slurp + JSONObject + map path against PreUploadResponse. Allocation
+ * is measured with HotSpot's per-thread allocation counter.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PreUploadResponseBenchmark {
+
+    private static final int BLOBS = 10000;
+    private static final int ROUNDS = 20;
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static Map<String, Long> oldPath(byte[] body) throws IOException, JSONException {
+        JSONObject preUpload = new JSONObject(Util.slurp(new ByteArrayInputStream(body)));
+        Map<String, Long> have = new HashMap<>();
+        JSONArray alreadyHave = preUpload.optJSONArray("alreadyHave");
+        for (int i = 0; i < alreadyHave.length(); i++) {
+            JSONObject blob = alreadyHave.optJSONObject(i);
+            have.put(blob.optString("blobRef", null), blob.optLong("size", 0));
+        }
+        return have;
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_TenThousandBlobs_Allocation() throws Exception {
+        StringBuilder json = new StringBuilder("{\"alreadyHave\":[");
+        for (int i = 0; i < BLOBS; i++) {
+            String blobRef = "sha1-" + Util.getSha1(Integer.toString(i).getBytes("UTF-8"));
+            json.append(i == 0 ? "" : ",").append("{\"blobRef\":\"").append(blobRef)
+                    .append("\",\"size\":").append(1000 + i).append('}');
+        }
+        json.append("],\"maxUploadSize\":2147483647,\"uploadUrl\":\"/camli/upload\"," +
+                "\"uploadUrlExpirationSeconds\":86400}");
+        byte[] body = json.toString().getBytes("UTF-8");
+
+        // Warm up the JIT.
+        for (int i = 0; i < ROUNDS; i++) {
+            oldPath(body);
+            PreUploadResponse.read(new ByteArrayInputStream(body));
+        }
+
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            Assert.assertEquals(BLOBS, oldPath(body).size());
+        }
+        long oldNanos = (System.nanoTime() - start) / ROUNDS;
+        long oldBytes = (allocatedBytes() - allocBefore) / ROUNDS;
+
+        allocBefore = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            PreUploadResponse res = PreUploadResponse.read(new ByteArrayInputStream(body));
+            Assert.assertEquals(BLOBS, res.alreadyHaveCount());
+        }
+        long newNanos = (System.nanoTime() - start) / ROUNDS;
+        long newBytes = (allocatedBytes() - allocBefore) / ROUNDS;
+
+        System.out.println(String.format("%d blobs, %d KB response", BLOBS, body.length / 1024));
+        System.out.println(String.format("slurp + JSONObject: %8d KB allocated, %6.2f ms",
+                oldBytes / 1024, oldNanos / 1e6));
+        System.out.println(String.format("PreUploadResponse:  %8d KB allocated, %6.2f ms",
+                newBytes / 1024, newNanos / 1e6));
+        Assert.assertTrue("allocated " + newBytes + " vs " + oldBytes, newBytes < oldBytes);
+    }
+}
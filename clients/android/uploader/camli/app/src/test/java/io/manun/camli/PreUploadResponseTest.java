@@ -0,0 +1,144 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreUploadResponseTest {
+
+    private static final String A = "sha1-a94a8fe5ccb19ba61c4c0873d391e987982fbbd3";
+    private static final String B = "sha1-62cdb7020ff920e5aa642c3d4066950dd1f01f4d";
+    private static final String C = "sha1-0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+
+    private static PreUploadResponse read(String json) throws IOException {
+        return PreUploadResponse.read(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+    private static BlobRef ref(String s) {
+        return BlobRef.parse(s);
+    }
+
+    @Test
+    public void read_ServerResponse_ParsesFields() throws IOException {
+        PreUploadResponse res = read("{\"alreadyHave\":[{\"blobRef\":\"" + A + "\",\"size\":12}]," +
+                "\"maxUploadSize\":2147483647," +
+                "\"uploadUrl\":\"http://localhost:3179/camli/upload\"," +
+                "\"uploadUrlExpirationSeconds\":86400}");
+        Assert.assertTrue(res.alreadyHas(ref(A)));
+        Assert.assertEquals(12, res.alreadyHaveSize(ref(A)));
+        Assert.assertFalse(res.alreadyHas(ref(B)));
+        Assert.assertEquals(1, res.alreadyHaveCount());
+        Assert.assertEquals(2147483647L, res.getMaxUploadSize());
+        Assert.assertEquals("http://localhost:3179/camli/upload", res.getUploadUrl());
+        Assert.assertEquals(86400, res.getUploadUrlExpirationSeconds());
+    }
+
+    @Test
+    public void read_MalformedBlobRef_Ignored() throws IOException {
+        PreUploadResponse res = read("{\"alreadyHave\":[{\"blobRef\":\"sha1-xyz\",\"size\":1}," +
+                "{\"blobRef\":\"md5-" + A.substring(5) + "\"}]}");
+        Assert.assertEquals(0, res.alreadyHaveCount());
+    }
+
+    @Test
+    public void read_SupportedHashes_Listed() throws IOException {
+        PreUploadResponse res = read("{\"supportedHashes\":[\"sha1\", \"sha256\", 3]}");
+        Assert.assertEquals(Arrays.asList("sha1", "sha256"), res.getSupportedHashes());
+        Assert.assertNull(read("{}").getSupportedHashes());
+    }
+
+    @Test
+    public void read_SupportedEncodings_Listed() throws IOException {
+        PreUploadResponse res = read("{\"supportedEncodings\":[\"deflate\"]}");
+        Assert.assertEquals(Arrays.asList("deflate"), res.getSupportedEncodings());
+        Assert.assertNull(read("{}").getSupportedEncodings());
+    }
+
+    @Test
+    public void read_AuthToken_Parsed() throws IOException {
+        PreUploadResponse res = read("{\"authToken\":\"abc.def\"," +
+                "\"authTokenExpirationSeconds\":3600}");
+        Assert.assertEquals("abc.def", res.getAuthToken());
+        Assert.assertEquals(3600, res.getAuthTokenExpirationSeconds());
+        Assert.assertNull(read("{\"authToken\":null}").getAuthToken());
+    }
+
+    @Test
+    public void read_NullAlreadyHave_NoneHad() throws IOException {
+        PreUploadResponse res = read("{\"alreadyHave\": null, \"maxUploadSize\": 10}");
+        Assert.assertEquals(0, res.alreadyHaveCount());
+        Assert.assertEquals(10, res.getMaxUploadSize());
+        Assert.assertNull(res.getUploadUrl());
+    }
+
+    @Test
+    public void read_UnknownFieldsAndWhitespace_Skipped() throws IOException {
+        PreUploadResponse res = read("{\n  \"extra\": {\"a\": [1, 2.5e3, true, null, \"x\\\"}\"]," +
+                " \"b\": {}},\n  \"alreadyHave\": [ {\"note\": [], \"size\": 7, \"blobRef\": \"" + B +
+                "\"}, 42, {} ],\n  \"empty\": []\n}");
+        Assert.assertTrue(res.alreadyHas(ref(B)));
+        Assert.assertEquals(7, res.alreadyHaveSize(ref(B)));
+        Assert.assertFalse(res.alreadyHas(ref(A)));
+    }
+
+    @Test
+    public void read_EscapedBlobRef_Matched() throws IOException {
+        PreUploadResponse res = read("{\"alreadyHave\":[{\"blobRef\":\"sha1-\\u0061" +
+                A.substring(6) + "\",\"size\":3}]}");
+        Assert.assertTrue(res.alreadyHas(ref(A)));
+    }
+
+    @Test
+    public void read_OneByteReads_SameResult() throws IOException {
+        byte[] json = ("{\"alreadyHave\":[{\"blobRef\":\"" + A + "\",\"size\":12}," +
+                "{\"blobRef\":\"" + C + "\",\"size\":5}],\"uploadUrl\":\"/camli/upload\"}")
+                .getBytes("UTF-8");
+        InputStream trickle = new ByteArrayInputStream(json) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        PreUploadResponse res = PreUploadResponse.read(trickle);
+        Assert.assertTrue(res.alreadyHas(ref(A)));
+        Assert.assertTrue(res.alreadyHas(ref(C)));
+        Assert.assertEquals(5, res.alreadyHaveSize(ref(C)));
+        Assert.assertEquals("/camli/upload", res.getUploadUrl());
+    }
+
+    @Test
+    public void read_ManyBlobs_AllFound() throws IOException {
+        BlobRef[] blobRefs = new BlobRef[5000];
+        StringBuilder json = new StringBuilder("{\"alreadyHave\":[");
+        for (int i = 0; i < blobRefs.length; i++) {
+            blobRefs[i] = BlobRef.sha1Of(Integer.toString(i).getBytes("UTF-8"));
+            if (i % 2 == 0) {
+                json.append(i == 0 ? "" : ",").append("{\"blobRef\":\"").append(blobRefs[i])
+                        .append("\",\"size\":").append(i).append('}');
+            }
+        }
+        PreUploadResponse res = read(json.append("]}").toString());
+        Assert.assertEquals(2500, res.alreadyHaveCount());
+        for (int i = 0; i < blobRefs.length; i++) {
+            Assert.assertEquals(i % 2 == 0, res.alreadyHas(blobRefs[i]));
+        }
+        Assert.assertEquals(4998, res.alreadyHaveSize(blobRefs[4998]));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_Truncated_Throws() throws IOException {
+        read("{\"alreadyHave\":[{\"blobRef\":\"" + A);
+    }
+
+    @Test(expected = IOException.class)
+    public void read_NotJson_Throws() throws IOException {
+        read("<html>502 Bad Gateway</html>");
+    }
+}
@@ -0,0 +1,96 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+public class RetrySchedulerTest {
+
+    private static RetryScheduler<String> scheduler(int maxAttempts) {
+        return new RetryScheduler<>(1000, 60 * 1000, maxAttempts, new Random(42));
+    }
+
+    @Test
+    public void backoffMillis_Doubles_WithinJitter() {
+        RetryScheduler<String> r = scheduler(3);
+        long cap = 1000;
+        for (int n = 1; n <= 6; n++, cap *= 2) {
+            for (int i = 0; i < 100; i++) {
+                long wait = r.backoffMillis(n);
+                Assert.assertTrue("n=" + n + " wait=" + wait, wait >= cap / 2 && wait <= cap);
+            }
+        }
+    }
+
+    @Test
+    public void backoffMillis_ManyFailures_Capped() {
+        RetryScheduler<String> r = scheduler(3);
+        for (int n : new int[]{7, 30, 63, 64, 1000}) {
+            long wait = r.backoffMillis(n);
+            Assert.assertTrue("n=" + n + " wait=" + wait, wait >= 30 * 1000 && wait <= 60 * 1000);
+        }
+    }
+
+    @Test
+    public void backoffMillis_Jittered_NotAllEqual() {
+        RetryScheduler<String> r = scheduler(3);
+        long first = r.backoffMillis(4);
+        for (int i = 0; i < 10; i++) {
+            if (r.backoffMillis(4) != first) {
+                return;
+            }
+        }
+        Assert.fail("no jitter");
+    }
+
+    @Test
+    public void onRoundFailed_ThenDone_StartsOver() {
+        RetryScheduler<String> r = scheduler(3);
+        Assert.assertTrue(r.onRoundFailed() <= 1000);
+        Assert.assertTrue(r.onRoundFailed() >= 1000);
+        Assert.assertEquals(2, r.roundFailures());
+        r.onRoundDone();
+        Assert.assertEquals(0, r.roundFailures());
+        Assert.assertTrue(r.onRoundFailed() <= 1000);
+    }
+
+    @Test
+    public void onItemFailed_MaxAttempts_DeadLettered() {
+        RetryScheduler<String> r = scheduler(3);
+        Assert.assertFalse(r.onItemFailed("a"));
+        Assert.assertFalse(r.onItemFailed("a"));
+        Assert.assertEquals(2, r.failures("a"));
+        Assert.assertFalse(r.onItemFailed("b"));
+        Assert.assertTrue(r.onItemFailed("a"));
+        Assert.assertEquals(0, r.failures("a"));
+        Assert.assertEquals(Collections.singletonList("a"), r.deadLetters());
+    }
+
+    @Test
+    public void onItemDone_AfterFailures_Forgotten() {
+        RetryScheduler<String> r = scheduler(2);
+        r.onItemFailed("a");
+        r.onItemDone("a");
+        Assert.assertFalse(r.onItemFailed("a"));
+        Assert.assertTrue(r.onItemFailed("a"));
+        r.onItemDone("a");
+        Assert.assertTrue(r.deadLetters().isEmpty());
+    }
+
+    @Test
+    public void takeDeadLetters_OldestFirst_Emptied() {
+        RetryScheduler<String> r = scheduler(1);
+        r.onItemFailed("b");
+        r.onItemFailed("a");
+        Assert.assertEquals(Arrays.asList("b", "a"), r.takeDeadLetters());
+        Assert.assertTrue(r.deadLetters().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void new_ZeroAttempts_Throws() {
+        new RetryScheduler<String>(1000, 60 * 1000, 0, new Random());
+    }
+}
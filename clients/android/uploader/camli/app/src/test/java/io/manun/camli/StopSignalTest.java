@@ -0,0 +1,201 @@
+package io.manun.camli;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StopSignalTest {
+
+    private static final long MAX_STOP_MILLIS = 100;
+    // So a request that isn't stopped fails the test instead of hanging the
+    // suite until the socket timeout.
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private ServerSocket mServer;
+    private final List<Socket> mAccepted = new ArrayList<>();
+    private PooledHttpTransport mTransport;
+
+    @Before
+    public void setUp() {
+        // Bodies go out without waiting for "100 Continue", which the slow
+        // server never sends, so uploads do block writing.
+        mTransport = new PooledHttpTransport("pass", 2, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mTransport.shutdown();
+        if (mServer != null) {
+            mServer.close();
+        }
+        synchronized (mAccepted) {
+            for (Socket s : mAccepted) {
+                s.close();
+            }
+        }
+    }
+
+    // A server that accepts connections and never answers. If drain, it
+    // reads whatever is sent; if not, it reads nothing, so a large upload
+    // blocks once the socket buffers fill.
+    private String startSlowServer(final boolean drain) throws IOException {
+        mServer = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread("SlowServer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket s = mServer.accept();
+                        synchronized (mAccepted) {
+                            mAccepted.add(s);
+                        }
+                        if (drain) {
+                            InputStream in = s.getInputStream();
+                            byte[] buf = new byte[64 * 1024];
+                            while (in.read(buf) != -1) {
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed by tearDown().
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return "http://127.0.0.1:" + mServer.getLocalPort() + "/camli/upload";
+    }
+
+    // Body that streams zeros until its connection fails.
+    private static class EndlessEntity extends AbstractHttpEntity {
+        final AtomicLong mWritten = new AtomicLong();
+
+        EndlessEntity() {
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] buf = new byte[64 * 1024];
+            while (true) {
+                out.write(buf);
+                mWritten.addAndGet(buf.length);
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+    }
+
+    // Runs req on another thread; stop() is called once it's blocked, and
+    // returns how long after that execute() threw.
+    private long stopAndTime(final HttpPost req, StopSignal stop) throws Exception {
+        final AtomicLong threwAt = new AtomicLong();
+        final List<Throwable> errors = new ArrayList<>();
+        stop.abortOnStop(req);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mTransport.execute(req);
+                    errors.add(new AssertionError("request wasn't aborted"));
+                } catch (IOException e) {
+                    threwAt.set(System.nanoTime());
+                }
+            }
+        };
+        t.start();
+        // Long enough to fill the socket buffers, or send the request.
+        Thread.sleep(500);
+        Assert.assertTrue("request finished early", t.isAlive());
+        long stoppedAt = System.nanoTime();
+        stop.stop();
+        t.join(5000);
+        Assert.assertFalse("request still running", t.isAlive());
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(threwAt.get() - stoppedAt);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void stop_UploadBlockedWriting_AbortsQuickly() throws Exception {
+        HttpPost req = new HttpPost(startSlowServer(false));
+        EndlessEntity entity = new EndlessEntity();
+        req.setEntity(entity);
+        long millis = stopAndTime(req, new StopSignal());
+        Assert.assertTrue("stopped after " + millis + "ms", millis < MAX_STOP_MILLIS);
+        Assert.assertTrue(entity.mWritten.get() > 0);
+        Assert.assertEquals(0, mTransport.leasedConnectionCount());
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void stop_AwaitingResponse_AbortsQuickly() throws Exception {
+        HttpPost req = new HttpPost(startSlowServer(true));
+        req.setEntity(new ByteArrayEntity(new byte[1024]));
+        long millis = stopAndTime(req, new StopSignal());
+        Assert.assertTrue("stopped after " + millis + "ms", millis < MAX_STOP_MILLIS);
+        Assert.assertEquals(0, mTransport.leasedConnectionCount());
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void abortOnStop_AlreadyStopped_ExecuteThrows() throws IOException {
+        HttpPost req = new HttpPost(startSlowServer(true));
+        req.setEntity(new ByteArrayEntity(new byte[1024]));
+        StopSignal stop = new StopSignal();
+        stop.stop();
+        stop.abortOnStop(req);
+        Assert.assertEquals(0, stop.inFlightCount());
+        try {
+            mTransport.execute(req);
+            Assert.fail("request wasn't aborted");
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+        Assert.assertFalse(Thread.interrupted());
+        // Not sent at all: it never even connected.
+        Assert.assertEquals(0, mTransport.requestCount());
+        Assert.assertEquals(0, mTransport.leasedConnectionCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void throwIfStopped_Stopped_Throws() throws IOException {
+        StopSignal stop = new StopSignal();
+        stop.throwIfStopped();
+        stop.stop();
+        stop.throwIfStopped();
+    }
+}
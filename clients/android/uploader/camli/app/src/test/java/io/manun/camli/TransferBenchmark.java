@@ -0,0 +1,155 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the two ways MultipartEntity has streamed file data to the
+ * connection, over a loopback socket to a sink that reads and discards
+ * everything: the old 1 KB read into a BufferedOutputStream, and
+ * Util.transfer's 64 KB positional FileChannel reads written straight
+ * through. The file is 256 MB by default; set -Dcamli.bench.transferMB
+ * to change it.
+ */
+public class TransferBenchmark {
+
+    private static final long MB = 1024 * 1024;
+
+    // Accepts connections on loopback and drains them.
+    private static class Sink implements Runnable {
+        final ServerSocket mServer;
+        final AtomicLong mReceived = new AtomicLong();
+
+        Sink() throws IOException {
+            mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        }
+
+        @Override
+        public void run() {
+            byte[] b = new byte[256 * 1024];
+            try {
+                while (true) {
+                    try (Socket s = mServer.accept()) {
+                        InputStream in = s.getInputStream();
+                        for (int n; (n = in.read(b)) != -1; ) {
+                            mReceived.addAndGet(n);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+    }
+
+    private static long oldPath(File file, OutputStream out) throws IOException {
+        BufferedOutputStream bos = new BufferedOutputStream(out);
+        byte[] buf = new byte[1024];
+        long total = 0;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            for (int n; (n = fis.read(buf)) != -1; ) {
+                bos.write(buf, 0, n);
+                total += n;
+            }
+        }
+        bos.flush();
+        return total;
+    }
+
+    private static long newPath(File file, OutputStream out) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        long total;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            total = Util.transfer(fis.getChannel(), 0, file.length(), out, buf, null);
+        }
+        out.flush();
+        return total;
+    }
+
+    private interface Path {
+        long send(File file, OutputStream out) throws IOException;
+    }
+
+    // Returns the best of a few runs, in MB/s.
+    private static double measure(Sink sink, File file, Path path) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long before = sink.mReceived.get();
+            long start = System.nanoTime();
+            try (Socket s = new Socket(sink.mServer.getInetAddress(),
+                    sink.mServer.getLocalPort())) {
+                Assert.assertEquals(file.length(), path.send(file, s.getOutputStream()));
+            }
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            // Let the sink catch up before the next run.
+            while (sink.mReceived.get() - before < file.length()) {
+                Thread.yield();
+            }
+        }
+        return (double) file.length() / MB / (best / 1e9);
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void benchmark_Loopback_OldVsNewPath() throws IOException {
+        long size = Long.getLong("camli.bench.transferMB", 256) * MB;
+        File file = File.createTempFile("transfer", ".bin");
+        Sink sink = new Sink();
+        Thread sinkThread = new Thread(sink);
+        sinkThread.setDaemon(true);
+        sinkThread.start();
+        try {
+            byte[] block = new byte[(int) MB];
+            new Random(1).nextBytes(block);
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                for (long written = 0; written < size; written += block.length) {
+                    fos.write(block);
+                }
+            }
+
+            Path oldPath = new Path() {
+                @Override
+                public long send(File f, OutputStream out) throws IOException {
+                    return oldPath(f, out);
+                }
+            };
+            Path newPath = new Path() {
+                @Override
+                public long send(File f, OutputStream out) throws IOException {
+                    return newPath(f, out);
+                }
+            };
+            // Warm up the JIT and the page cache.
+            measure(sink, file, oldPath);
+            measure(sink, file, newPath);
+
+            double oldRate = measure(sink, file, oldPath);
+            double newRate = measure(sink, file, newPath);
+            System.out.println(String.format("%d MB over loopback", size / MB));
+            System.out.println(String.format("1 KB + BufferedOutputStream: %8.1f MB/s", oldRate));
+            System.out.println(String.format("64 KB FileChannel:           %8.1f MB/s", newRate));
+        } finally {
+            sink.mServer.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.manun.camli;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UploadMetricsTest {
+
+    @Test
+    public void progress_Unchanged_Null() {
+        UploadMetrics m = new UploadMetrics(0);
+        Assert.assertNotNull(m.progress(3, true, 100));
+        Assert.assertNull(m.progress(3, true, 600));
+        Assert.assertNotNull(m.progress(2, true, 1100));
+        Assert.assertNotNull(m.progress(2, false, 1600));
+        m.onRetry();
+        Assert.assertNotNull(m.progress(2, false, 2100));
+    }
+
+    @Test
+    public void progress_BytesSent_RateSinceLast() {
+        UploadMetrics m = new UploadMetrics(0);
+        m.progress(1, true, 1000);
+        m.onBytesSent(1000);
+        m.onBytesSent(500);
+        UploadProgress p = m.progress(1, true, 1500);
+        Assert.assertEquals(1500, p.getBytesSent());
+        Assert.assertEquals(3000, p.getBytesPerSecond());
+        // Nothing new for a while, then some: the rate covers the whole gap.
+        Assert.assertNull(m.progress(1, true, 2000));
+        m.onBytesSent(1000);
+        Assert.assertEquals(1000, m.progress(1, true, 2500).getBytesPerSecond());
+    }
+
+    @Test
+    public void progress_Counters_Reported() {
+        UploadMetrics m = new UploadMetrics(0);
+        m.onHashed(100, 5, false);
+        m.onHashed(100, 0, true);
+        m.onUploaded();
+        m.onDedupHit(40);
+        m.onPreUpload(2, 30, false);
+        m.onBatch(1, 100, 10, 5, false);
+        UploadProgress p = m.progress(0, false, 10);
+        Assert.assertEquals(2, p.getFilesHashed());
+        Assert.assertEquals(1, p.getFilesUploaded());
+        Assert.assertEquals(1, p.getFilesSkipped());
+        Assert.assertEquals(40, p.getBytesSkipped());
+        Assert.assertEquals(2, p.getFailures());
+    }
+
+    @Test
+    public void dump_AfterBatches_CountersAndHistograms() throws JSONException {
+        UploadMetrics m = new UploadMetrics(1000);
+        m.onHashed(4096, 8, false);
+        m.onHashed(4096, 0, true);
+        m.onPreUpload(10, 20, true);
+        m.onBatch(4, 2 * 1024 * 1024, 1000, 50, true);
+        m.onBatch(2, 1024, 0, 10, true);
+        m.onBytesSent(2 * 1024 * 1024 + 1024);
+        m.onRetry();
+        m.onCompressed(3000, 1000);
+        JSONObject dump = new JSONObject(m.dump(6000));
+        Assert.assertEquals(5000, dump.getLong("uptimeMillis"));
+        JSONObject counters = dump.getJSONObject("counters");
+        Assert.assertEquals(2, counters.getLong("filesHashed"));
+        Assert.assertEquals(1, counters.getLong("hashCacheHits"));
+        Assert.assertEquals(4096, counters.getLong("hashBytes"));
+        Assert.assertEquals(2, counters.getLong("batches"));
+        Assert.assertEquals(1, counters.getLong("retries"));
+        Assert.assertEquals(2 * 1024 * 1024 + 1024, counters.getLong("bytesSent"));
+        Assert.assertEquals(1, counters.getLong("compressedBlobs"));
+        Assert.assertEquals(3000, counters.getLong("compressedRawBytes"));
+        Assert.assertEquals(1000, counters.getLong("compressedBytes"));
+        JSONObject histograms = dump.getJSONObject("histograms");
+        Assert.assertEquals(1, histograms.getJSONObject("hashMillis").getLong("count"));
+        Assert.assertEquals(6, histograms.getJSONObject("batchFiles").getLong("sum"));
+        // Only the batch that took measurable time has a throughput.
+        JSONObject throughput = histograms.getJSONObject("throughputKBps");
+        Assert.assertEquals(1, throughput.getLong("count"));
+        Assert.assertEquals(2048, throughput.getLong("max"));
+    }
+}
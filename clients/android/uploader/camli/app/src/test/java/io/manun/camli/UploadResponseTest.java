@@ -0,0 +1,65 @@
+package io.manun.camli;
+
+import android.util.MalformedJsonException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+public class UploadResponseTest {
+
+    private static final String A = "sha1-a94a8fe5ccb19ba61c4c0873d391e987982fbbd3";
+    private static final String B = "sha1-62cdb7020ff920e5aa642c3d4066950dd1f01f4d";
+
+    private static BlobRefSet read(String json) throws IOException {
+        return UploadResponse.readReceived(new ByteArrayInputStream(json.getBytes("UTF-8")), 2);
+    }
+
+    @Test
+    public void readReceived_ServerResponse_ListsBlobRefs() throws IOException {
+        BlobRefSet received = read("{\"received\":[{\"blobRef\":\"" + A + "\",\"size\":12}," +
+                "{\"blobRef\":\"" + B + "\",\"size\":3}],\"errorText\":null}");
+        Assert.assertEquals(2, received.size());
+        Assert.assertTrue(received.contains(BlobRef.parse(A)));
+        Assert.assertTrue(received.contains(BlobRef.parse(B)));
+    }
+
+    @Test
+    public void readReceived_BogusEntries_Skipped() throws IOException {
+        BlobRefSet received = read("{\"received\":[42, {\"blobRef\":\"sha1-xyz\"}," +
+                " {\"size\":1}, {\"blobRef\":7}, {\"extra\":[1], \"blobRef\":\"" + A + "\"}]}");
+        Assert.assertEquals(1, received.size());
+        Assert.assertTrue(received.contains(BlobRef.parse(A)));
+    }
+
+    @Test
+    public void readReceived_EmptyList_ReturnsEmpty() throws IOException {
+        Assert.assertTrue(read("{\"received\":[]}").isEmpty());
+    }
+
+    @Test
+    public void readReceived_NoList_ReturnsNull() throws IOException {
+        Assert.assertNull(read("{}"));
+        Assert.assertNull(read("{\"received\":null}"));
+    }
+
+    @Test(expected = MalformedJsonException.class)
+    public void readReceived_NotJson_ThrowsMalformed() throws IOException {
+        read("<html>Upload done</html>");
+    }
+
+    @Test(expected = MalformedJsonException.class)
+    public void readReceived_Empty_ThrowsMalformed() throws IOException {
+        read("");
+    }
+
+    @Test(expected = MalformedJsonException.class)
+    public void readReceived_NotAnObject_ThrowsMalformed() throws IOException {
+        read("[1, 2]");
+    }
+}
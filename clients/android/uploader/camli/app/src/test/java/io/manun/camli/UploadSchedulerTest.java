@@ -0,0 +1,175 @@
+package io.manun.camli;
+
+import io.manun.camli.UploadScheduler.Conditions;
+import io.manun.camli.UploadScheduler.Plan;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UploadSchedulerTest {
+
+    // Fake connectivity.
+    private static final Conditions OFFLINE = new Conditions(false, false, false, false);
+    private static final Conditions CELLULAR = new Conditions(true, false, false, false);
+    private static final Conditions ROAMING = new Conditions(true, false, true, false);
+    private static final Conditions WIFI = new Conditions(true, true, false, false);
+    private static final Conditions WIFI_CHARGING = new Conditions(true, true, false, true);
+
+    // Fake clock, in elapsedRealtime() millis. The backlog starts at 0.
+    private long mNow = 0;
+
+    private Plan plan(String policy, Conditions c, int fastLane, int backlog) {
+        return new UploadScheduler(policy).plan(c, fastLane, backlog, 0, false, mNow);
+    }
+
+    @Test
+    public void plan_Shared_GoesOnAnyNetwork() {
+        for (Conditions c : new Conditions[]{CELLULAR, ROAMING, WIFI}) {
+            Plan p = plan(UploadScheduler.POLICY_CHARGING, c, 1, 0);
+            Assert.assertTrue(p.fastLane);
+            Assert.assertFalse(p.isWaiting());
+        }
+    }
+
+    @Test
+    public void plan_SharedOffline_WaitsForAnyNetwork() {
+        Plan p = plan(UploadScheduler.POLICY_CHARGING, OFFLINE, 1, 10);
+        Assert.assertFalse(p.fastLane);
+        Assert.assertFalse(p.backlog);
+        Assert.assertEquals(0, p.waitMillis);
+        Assert.assertFalse(p.needUnmetered);
+        Assert.assertFalse(p.needCharging);
+    }
+
+    @Test
+    public void plan_Empty_NothingWaits() {
+        Plan p = plan(UploadScheduler.DEFAULT_POLICY, OFFLINE, 0, 0);
+        Assert.assertFalse(p.fastLane);
+        Assert.assertFalse(p.backlog);
+        Assert.assertFalse(p.isWaiting());
+    }
+
+    @Test
+    public void plan_BacklogOnCellular_WaitsForWifiUntilDeadline() {
+        mNow = 60 * 60 * 1000;
+        Plan p = plan(UploadScheduler.POLICY_UNMETERED, CELLULAR, 0, 10);
+        Assert.assertFalse(p.backlog);
+        Assert.assertTrue(p.isWaiting());
+        Assert.assertTrue(p.needUnmetered);
+        Assert.assertFalse(p.needCharging);
+        Assert.assertEquals(UploadScheduler.MAX_DELAY_MILLIS - mNow, p.deadlineMillis);
+    }
+
+    @Test
+    public void plan_BacklogOverdue_GoesOnCellularButNotRoaming() {
+        mNow = UploadScheduler.MAX_DELAY_MILLIS;
+        Assert.assertTrue(plan(UploadScheduler.POLICY_CHARGING, CELLULAR, 0, 1).backlog);
+
+        Plan p = plan(UploadScheduler.POLICY_CHARGING, ROAMING, 0, 1);
+        Assert.assertFalse(p.backlog);
+        // Any network but a roaming one; charging no longer matters.
+        Assert.assertTrue(p.needUnmetered);
+        Assert.assertFalse(p.needCharging);
+        Assert.assertEquals(-1, p.deadlineMillis);
+    }
+
+    @Test
+    public void plan_AnyPolicyRoaming_WaitsForUnmetered() {
+        Plan p = plan(UploadScheduler.POLICY_ANY, ROAMING, 0, 1);
+        Assert.assertFalse(p.backlog);
+        Assert.assertTrue(p.needUnmetered);
+    }
+
+    @Test
+    public void plan_BacklogOnWifi_CoalescedIntoBurst() {
+        mNow = 10 * 1000;
+        Plan p = plan(UploadScheduler.POLICY_UNMETERED, WIFI, 0, 3);
+        Assert.assertFalse(p.backlog);
+        Assert.assertEquals(UploadScheduler.COALESCE_UNMETERED_MILLIS - mNow, p.waitMillis);
+        Assert.assertTrue(p.needUnmetered);
+
+        mNow = UploadScheduler.COALESCE_UNMETERED_MILLIS;
+        p = plan(UploadScheduler.POLICY_UNMETERED, WIFI, 0, 3);
+        Assert.assertTrue(p.backlog);
+        Assert.assertFalse(p.isWaiting());
+    }
+
+    @Test
+    public void plan_AnyPolicyOnCellular_CoalescedLonger() {
+        mNow = UploadScheduler.COALESCE_UNMETERED_MILLIS;
+        Plan p = plan(UploadScheduler.POLICY_ANY, CELLULAR, 0, 3);
+        Assert.assertFalse(p.backlog);
+        Assert.assertEquals(UploadScheduler.COALESCE_METERED_MILLIS - mNow, p.waitMillis);
+        Assert.assertFalse(p.needUnmetered);
+
+        mNow = UploadScheduler.COALESCE_METERED_MILLIS;
+        Assert.assertTrue(plan(UploadScheduler.POLICY_ANY, CELLULAR, 0, 3).backlog);
+    }
+
+    @Test
+    public void plan_BigBacklog_GoesWithoutWaiting() {
+        Plan p = plan(UploadScheduler.POLICY_UNMETERED, WIFI, 0, UploadScheduler.BURST_FILES);
+        Assert.assertTrue(p.backlog);
+    }
+
+    @Test
+    public void plan_Charging_GoesWithoutWaiting() {
+        Assert.assertTrue(plan(UploadScheduler.POLICY_UNMETERED, WIFI_CHARGING, 0, 1).backlog);
+    }
+
+    @Test
+    public void plan_ChargingPolicy_WaitsForCharger() {
+        Plan p = plan(UploadScheduler.POLICY_CHARGING, WIFI, 0, 1);
+        Assert.assertFalse(p.backlog);
+        Assert.assertTrue(p.needUnmetered);
+        Assert.assertTrue(p.needCharging);
+        Assert.assertTrue(plan(UploadScheduler.POLICY_CHARGING, WIFI_CHARGING, 0, 1).backlog);
+    }
+
+    @Test
+    public void plan_RadioAlreadyUp_BacklogRidesAlong() {
+        // With a share going out.
+        Plan p = plan(UploadScheduler.POLICY_UNMETERED, WIFI, 1, 1);
+        Assert.assertTrue(p.fastLane);
+        Assert.assertTrue(p.backlog);
+        // With workers running.
+        p = new UploadScheduler(UploadScheduler.POLICY_UNMETERED).plan(WIFI, 0, 1, 0, true, mNow);
+        Assert.assertTrue(p.backlog);
+        // But not over a network the policy doesn't allow.
+        p = plan(UploadScheduler.POLICY_UNMETERED, CELLULAR, 1, 1);
+        Assert.assertTrue(p.fastLane);
+        Assert.assertFalse(p.backlog);
+        Assert.assertTrue(p.needUnmetered);
+    }
+
+    @Test
+    public void plan_CellularBudgetSpent_WaitsForWifiOrRenewal() {
+        Conditions spent = new Conditions(true, false, false, false, 5000);
+        Plan p = plan(UploadScheduler.POLICY_ANY, spent, 1, 1);
+        Assert.assertFalse(p.fastLane);
+        Assert.assertFalse(p.backlog);
+        Assert.assertEquals(0, p.waitMillis);
+        Assert.assertTrue(p.needUnmetered);
+        Assert.assertEquals(5000, p.deadlineMillis);
+        Assert.assertFalse(plan(UploadScheduler.POLICY_ANY, spent, 0, 0).isWaiting());
+    }
+
+    @Test
+    public void plan_WifiBudgetSpent_WaitsForRenewal() {
+        Conditions spent = new Conditions(true, true, false, false, 5000);
+        Plan p = plan(UploadScheduler.POLICY_ANY, spent, 1, 1);
+        Assert.assertFalse(p.fastLane);
+        Assert.assertFalse(p.backlog);
+        Assert.assertEquals(5000, p.waitMillis);
+        Assert.assertFalse(p.needUnmetered);
+    }
+
+    @Test
+    public void constructor_UnknownPolicy_Default() {
+        Assert.assertEquals(UploadScheduler.DEFAULT_POLICY, new UploadScheduler(null).getPolicy());
+        Assert.assertEquals(UploadScheduler.DEFAULT_POLICY,
+                new UploadScheduler("sometimes").getPolicy());
+        Assert.assertEquals(UploadScheduler.POLICY_ANY,
+                new UploadScheduler(UploadScheduler.POLICY_ANY).getPolicy());
+    }
+}
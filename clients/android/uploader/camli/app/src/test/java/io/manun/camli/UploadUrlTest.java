@@ -0,0 +1,56 @@
+package io.manun.camli;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+public class UploadUrlTest {
+
+    private static final String BASE = "http://localhost:3179";
+
+    private static PreUploadResponse preUpload(String json) throws IOException {
+        return PreUploadResponse.read(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void fromPreUpload_AbsoluteUrl_KeptAsIs() throws IOException {
+        PreUploadResponse pre = preUpload("{\"uploadUrl\": \"http://example.com:80/camli/upload\"," +
+                " \"maxUploadSize\": 1000, \"uploadUrlExpirationSeconds\": 60}");
+        UploadUrl url = UploadUrl.fromPreUpload(pre, BASE, 5000);
+        Assert.assertEquals("http://example.com:80/camli/upload", url.getUrl());
+        Assert.assertEquals(1000, url.getMaxUploadSize());
+    }
+
+    @Test
+    public void fromPreUpload_RelativeUrl_ResolvedAgainstBase() throws IOException {
+        UploadUrl url = UploadUrl.fromPreUpload(preUpload("{\"uploadUrl\": \"/camli/upload\"}"),
+                BASE, 0);
+        Assert.assertEquals(BASE + "/camli/upload", url.getUrl());
+    }
+
+    @Test
+    public void fromPreUpload_NoUrl_ReturnsNull() throws IOException {
+        Assert.assertNull(UploadUrl.fromPreUpload(preUpload("{}"), BASE, 0));
+    }
+
+    @Test
+    public void isFresh_UntilExpiration() throws IOException {
+        PreUploadResponse pre = preUpload("{\"uploadUrl\": \"/camli/upload\"," +
+                " \"uploadUrlExpirationSeconds\": 60}");
+        UploadUrl url = UploadUrl.fromPreUpload(pre, BASE, 5000);
+        Assert.assertTrue(url.isFresh(5000));
+        Assert.assertTrue(url.isFresh(64999));
+        Assert.assertFalse(url.isFresh(65000));
+    }
+
+    @Test
+    public void isFresh_NoExpiration_NeverFresh() throws IOException {
+        PreUploadResponse pre = preUpload("{\"uploadUrl\": \"/camli/upload\"}");
+        Assert.assertFalse(UploadUrl.fromPreUpload(pre, BASE, 5000).isFresh(5000));
+    }
+}
@@ -6,12 +6,18 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class UtilUnitTest {
 
@@ -22,6 +28,18 @@ public class UtilUnitTest {
         Assert.assertEquals("test data", actual);
     }
 
+    @Test
+    public void slurp_MultiByteCharSplitAcrossReads_DecodedWhole() throws IOException {
+        byte[] utf8 = "h\u00e9llo \u2603".getBytes("UTF-8");
+        InputStream in = new ByteArrayInputStream(utf8) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 2));
+            }
+        };
+        Assert.assertEquals("h\u00e9llo \u2603", Util.slurp(in));
+    }
+
     @Test
     public void getSha1_CorrectFileDescriptor_ReturnsSha1() throws Exception {
         assert this.getClass().getClassLoader() != null;
@@ -34,4 +52,61 @@ public class UtilUnitTest {
         Assert.assertEquals("c87f092bc124685bf754caf1f370c82c7d3fccc3", actual);
     }
 
-}
\ No newline at end of file
+    private static File tempFile(byte[] data) throws IOException {
+        File file = File.createTempFile("util", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(data);
+        }
+        return file;
+    }
+
+    private static byte[] testData(int n) {
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void transfer_Range_CopiesRangeAndKeepsPosition() throws IOException {
+        byte[] data = testData(10000);
+        try (FileInputStream fis = new FileInputStream(tempFile(data))) {
+            FileChannel ch = fis.getChannel();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long copied = Util.transfer(ch, 1000, 5000, out, new byte[777], null);
+            Assert.assertEquals(5000, copied);
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 6000), out.toByteArray());
+            Assert.assertEquals(0, ch.position());
+        }
+    }
+
+    @Test
+    public void transfer_UnknownCount_CopiesToEof() throws IOException {
+        byte[] data = testData(10000);
+        try (FileInputStream fis = new FileInputStream(tempFile(data))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long copied = Util.transfer(fis.getChannel(), -1, -1, out, new byte[4096], null);
+            Assert.assertEquals(data.length, copied);
+            Assert.assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void transfer_CountPastEof_ReturnsShortCount() throws IOException {
+        try (FileInputStream fis = new FileInputStream(tempFile(testData(100)))) {
+            long copied = Util.transfer(fis.getChannel(), 50, 100,
+                    new ByteArrayOutputStream(), new byte[64], null);
+            Assert.assertEquals(50, copied);
+        }
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void transfer_StopSet_Throws() throws IOException {
+        try (FileInputStream fis = new FileInputStream(tempFile(testData(1000)))) {
+            Util.transfer(fis.getChannel(), 0, 1000, new ByteArrayOutputStream(),
+                    new byte[64], new AtomicBoolean(true));
+        }
+    }
+}